@@ -0,0 +1,502 @@
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Benchmarks for the copy path, in the spirit of JMH but without needing a build tool: every benchmark is set up
+    once, run a few times to warm up the JIT and the page cache, then measured over several iterations. Results are
+    printed and can be appended to a CSV file together with a label such as the commit hash, so runs from different
+    commits on the same machine can be lined up against each other. The source trees come from
+    SyntheticTreeGenerator with a fixed seed, so every run copies exactly the same files.
+
+    Build and run from the project root:
+
+        javac -d /tmp/bench -cp lib/commons-io-2.6.jar src/*.java bench/*.java
+        java -cp /tmp/bench:lib/commons-io-2.6.jar BenchmarkSuite -o results.csv -label $(git rev-parse --short HEAD)
+
+    Arguments:
+
+        -w [count]         warmup iterations, default 1
+        -n [count]         measured iterations, default 5
+        -scale [factor]    size of the generated trees, default 1.0
+        -seed [seed]       seed for the generated trees, default 42
+        -dir [directory]   where to generate trees and snapshots, default a new temporary directory
+        -only [text]       only run benchmarks whose name contains text
+        -o [file]          append results to this CSV file
+        -label [text]      label for the results in the CSV file, e.g. the commit hash
+ */
+public class BenchmarkSuite {
+
+    private static final int LOG_MESSAGES_PER_ITERATION = 50000;
+    private static final int PRUNE_FILES_PER_DIRECTORY = 1000;
+
+    private final int warmupIterations;
+    private final int measuredIterations;
+    private final double scale;
+    private final long seed;
+    private final File workDirectory;
+    private final PrintStream console;
+    private final Logger logger;
+    private final List<Result> results = new ArrayList<Result>();
+
+    private BenchmarkSuite(int warmupIterations, int measuredIterations, double scale, long seed, File workDirectory) {
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+        this.scale = scale;
+        this.seed = seed;
+        this.workDirectory = workDirectory;
+        this.console = System.out;
+        this.logger = new Logger(null, -1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int warmupIterations = 1;
+        int measuredIterations = 5;
+        double scale = 1.0;
+        long seed = 42;
+        File workDirectory = null;
+        String only = null;
+        File output = null;
+        String label = "unlabelled";
+
+        for (int a = 0; a < args.length; a += 2) {
+            if (a + 1 >= args.length) {
+                System.err.println("Missing value for " + args[a]);
+                System.exit(1);
+            }
+            if (args[a].equals("-w")) {
+                warmupIterations = Integer.parseInt(args[a + 1]);
+            } else if (args[a].equals("-n")) {
+                measuredIterations = Integer.parseInt(args[a + 1]);
+            } else if (args[a].equals("-scale")) {
+                scale = Double.parseDouble(args[a + 1]);
+            } else if (args[a].equals("-seed")) {
+                seed = Long.parseLong(args[a + 1]);
+            } else if (args[a].equals("-dir")) {
+                workDirectory = new File(args[a + 1]);
+            } else if (args[a].equals("-only")) {
+                only = args[a + 1];
+            } else if (args[a].equals("-o")) {
+                output = new File(args[a + 1]);
+            } else if (args[a].equals("-label")) {
+                label = args[a + 1];
+            } else {
+                System.err.println("Unrecognized argument \"" + args[a] + "\"");
+                System.exit(1);
+            }
+        }
+        if (measuredIterations < 1 || warmupIterations < 0) {
+            System.err.println("Need at least one measured iteration.");
+            System.exit(1);
+        }
+
+        boolean temporary = workDirectory == null;
+        if (temporary)
+            workDirectory = Files.createTempDirectory("sjdb-bench").toFile();
+        else if (!workDirectory.isDirectory() && !workDirectory.mkdirs())
+            throw new IOException("Failed to create " + workDirectory.getAbsolutePath());
+
+        BenchmarkSuite suite = new BenchmarkSuite(warmupIterations, measuredIterations, scale, seed, workDirectory);
+        try {
+            suite.runAll(only);
+        } finally {
+            if (temporary)
+                FileUtils.deleteDirectory(workDirectory);
+        }
+        if (output != null)
+            suite.writeCsv(output, label);
+    }
+
+    private void runAll(String only) throws Exception {
+        console.println("Java " + System.getProperty("java.version") + " on " + System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", " + Runtime.getRuntime().availableProcessors() + " cores");
+        console.println("Seed " + seed + ", scale " + scale + ", " + warmupIterations + " warmup and " + measuredIterations + " measured iterations in " + workDirectory.getAbsolutePath());
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (SyntheticTreeGenerator.Shape shape : SyntheticTreeGenerator.Shape.values()) {
+            benchmarks.add(new SnapshotBenchmark(shape, 1, 1, false));
+            benchmarks.add(new SnapshotBenchmark(shape, 4, 4, false));
+        }
+        benchmarks.add(new SnapshotBenchmark(SyntheticTreeGenerator.Shape.MIXED, 1, 1, true));
+        benchmarks.add(new SnapshotBenchmark(SyntheticTreeGenerator.Shape.MIXED, 4, 4, true));
+        for (FileCopier.Backend backend : FileCopier.Backend.values()) {
+            benchmarks.add(new PerFileBenchmark(backend));
+        }
+        benchmarks.add(new LogBenchmark(false));
+        benchmarks.add(new LogBenchmark(true));
+        for (int files : new int[]{1000, 10000, 100000}) {
+            benchmarks.add(new PruneBenchmark((int) Math.max(1, files * scale), false));
+            benchmarks.add(new PruneBenchmark((int) Math.max(1, files * scale), true));
+        }
+
+        for (Benchmark benchmark : benchmarks) {
+            if (only != null && !benchmark.getName().contains(only))
+                continue;
+            run(benchmark);
+        }
+    }
+
+    private void run(Benchmark benchmark) throws Exception {
+        console.println();
+        console.println(benchmark.getName());
+        // Whatever the code under test logs would drown out the results
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        double[] scores = new double[measuredIterations];
+        try {
+            benchmark.setUp();
+            for (int i = 0; i < warmupIterations + measuredIterations; i++) {
+                benchmark.setUpIteration();
+                double score = benchmark.runIteration();
+                benchmark.tearDownIteration();
+                logger.flush();
+                if (i >= warmupIterations) {
+                    scores[i - warmupIterations] = score;
+                    console.println(String.format("  iteration %d: %.3f %s", i - warmupIterations + 1, score, benchmark.getUnit()));
+                } else {
+                    console.println(String.format("  warmup %d: %.3f %s", i + 1, score, benchmark.getUnit()));
+                }
+            }
+            benchmark.tearDown();
+        } finally {
+            logger.flush();
+            System.setOut(console);
+        }
+        Result result = new Result(benchmark.getName(), benchmark.getUnit(), scores);
+        results.add(result);
+        console.println("  " + result);
+    }
+
+    private void writeCsv(File output, String label) throws IOException {
+        boolean newFile = !output.exists();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(output, true), StandardCharsets.UTF_8)) {
+            if (newFile)
+                writer.write("label,benchmark,unit,iterations,mean,stddev,min,max,seed,scale\n");
+            for (Result result : results) {
+                writer.write(String.format("%s,%s,%s,%d,%.6f,%.6f,%.6f,%.6f,%d,%s%n", label, result.name, result.unit, result.scores.length,
+                        result.mean(), result.stddev(), result.min(), result.max(), seed, scale));
+            }
+        }
+        console.println();
+        console.println("Appended " + results.size() + " results to " + output.getAbsolutePath());
+    }
+
+    private File newDirectory(String name) throws IOException {
+        File directory = new File(workDirectory, name);
+        if (directory.exists())
+            FileUtils.deleteDirectory(directory);
+        return directory;
+    }
+
+    /*
+        One thing to measure. setUp and tearDown run once around all iterations, the iteration methods around each
+        one, and only runIteration is measured.
+     */
+    private abstract static class Benchmark {
+        abstract String getName();
+
+        abstract String getUnit();
+
+        void setUp() throws Exception {
+        }
+
+        void setUpIteration() throws Exception {
+        }
+
+        /**
+         *
+         * @return The score of this iteration, in getUnit().
+         */
+        abstract double runIteration() throws Exception;
+
+        void tearDownIteration() throws Exception {
+        }
+
+        void tearDown() throws Exception {
+        }
+    }
+
+    /*
+        End to end throughput of a snapshot through CopyEngine, either a full copy or an incremental one where
+        everything is linked against an earlier snapshot.
+     */
+    private class SnapshotBenchmark extends Benchmark {
+        private final SyntheticTreeGenerator.Shape shape;
+        private final int traversalThreads;
+        private final int copyThreads;
+        private final boolean incremental;
+        private File source;
+        private File destination;
+        private File previous;
+        private File snapshot;
+        private SyntheticTreeGenerator.Summary summary;
+
+        private SnapshotBenchmark(SyntheticTreeGenerator.Shape shape, int traversalThreads, int copyThreads, boolean incremental) {
+            this.shape = shape;
+            this.traversalThreads = traversalThreads;
+            this.copyThreads = copyThreads;
+            this.incremental = incremental;
+        }
+
+        String getName() {
+            return "snapshot." + (incremental ? "incremental" : "full") + "[" + shape + ",pt=" + traversalThreads + ",pc=" + copyThreads + "]";
+        }
+
+        String getUnit() {
+            // Many small files are limited by files per second, large ones by bytes per second
+            return shape == SyntheticTreeGenerator.Shape.HUGE_FILES ? "MB/s" : "files/s";
+        }
+
+        void setUp() throws Exception {
+            source = newDirectory("source-" + shape);
+            summary = new SyntheticTreeGenerator(seed, scale).generate(source, shape);
+            console.println("  source: " + summary);
+            destination = newDirectory("destination");
+            if (!destination.mkdirs())
+                throw new IOException("Failed to create " + destination.getAbsolutePath());
+            if (incremental) {
+                previous = new File(destination, "1");
+                copy(previous, null);
+            }
+        }
+
+        void setUpIteration() {
+            snapshot = new File(destination, Long.toString(System.nanoTime()));
+            snapshot.mkdirs();
+        }
+
+        double runIteration() throws Exception {
+            CopyStatistics statistics = copy(snapshot, previous);
+            double seconds = statistics.getWallNanos() / 1e9;
+            if (getUnit().equals("MB/s"))
+                return statistics.getBytesCopied() / (1024.0 * 1024.0) / seconds;
+            return (statistics.getFilesCopied() + statistics.getFilesLinked()) / seconds;
+        }
+
+        void tearDownIteration() throws IOException {
+            FileUtils.deleteDirectory(snapshot);
+        }
+
+        void tearDown() throws IOException {
+            FileUtils.deleteDirectory(destination);
+            FileUtils.deleteDirectory(source);
+        }
+
+        private CopyStatistics copy(File target, File previousSnapshot) throws Exception {
+            target.mkdirs();
+            CopyEngine copyEngine = new CopyEngine(logger, true, traversalThreads, copyThreads, false, new FileCopier(FileCopier.Backend.COMMONS_IO, logger, new LatencyHistogram()), IoThrottle.unlimited());
+            return copyEngine.copy(source, new SnapshotTarget(destination, target, previousSnapshot), null);
+        }
+    }
+
+    /*
+        The fixed cost of copying one small file with each FileCopier backend, i.e. everything except moving the data.
+     */
+    private class PerFileBenchmark extends Benchmark {
+        private final FileCopier.Backend backend;
+        private File source;
+        private File destination;
+        private File snapshot;
+        private long files;
+
+        private PerFileBenchmark(FileCopier.Backend backend) {
+            this.backend = backend;
+        }
+
+        String getName() {
+            return "copy.perFile[" + backend + "]";
+        }
+
+        String getUnit() {
+            return "us/file";
+        }
+
+        void setUp() throws Exception {
+            source = newDirectory("source-" + SyntheticTreeGenerator.Shape.TINY_FILES);
+            files = new SyntheticTreeGenerator(seed, scale).generate(source, SyntheticTreeGenerator.Shape.TINY_FILES).getFiles();
+            destination = newDirectory("destination");
+            destination.mkdirs();
+        }
+
+        void setUpIteration() {
+            snapshot = new File(destination, Long.toString(System.nanoTime()));
+            snapshot.mkdirs();
+        }
+
+        double runIteration() throws Exception {
+            CopyEngine copyEngine = new CopyEngine(logger, false, 1, 1, false, new FileCopier(backend, logger, new LatencyHistogram()), IoThrottle.unlimited());
+            CopyStatistics statistics = copyEngine.copy(source, new SnapshotTarget(destination, snapshot, null), null);
+            return statistics.getWallNanos() / 1e3 / files;
+        }
+
+        void tearDownIteration() throws IOException {
+            FileUtils.deleteDirectory(snapshot);
+        }
+
+        void tearDown() throws IOException {
+            FileUtils.deleteDirectory(destination);
+            FileUtils.deleteDirectory(source);
+        }
+    }
+
+    /*
+        What Logger.log costs the copy threads that call it, and what it costs to get the messages all the way out.
+     */
+    private class LogBenchmark extends Benchmark {
+        private final boolean includeWrite;
+        private Logger fileLogger;
+        private File logDirectory;
+
+        private LogBenchmark(boolean includeWrite) {
+            this.includeWrite = includeWrite;
+        }
+
+        String getName() {
+            return includeWrite ? "log.written" : "log.call";
+        }
+
+        String getUnit() {
+            return "ns/message";
+        }
+
+        void setUp() throws IOException {
+            logDirectory = newDirectory("logs");
+            logDirectory.mkdirs();
+            fileLogger = new Logger(new File(logDirectory, "bench").getPath(), 1024 * 1024);
+        }
+
+        double runIteration() {
+            long start = System.nanoTime();
+            for (int i = 0; i < LOG_MESSAGES_PER_ITERATION; i++) {
+                fileLogger.log("Failed to copy entity at /some/fairly/typical/path/to/a/file" + i + ".dat: Permission denied");
+            }
+            long called = System.nanoTime();
+            fileLogger.flush();
+            long written = System.nanoTime();
+            return (double) ((includeWrite ? written : called) - start) / LOG_MESSAGES_PER_ITERATION;
+        }
+
+        void tearDown() throws IOException {
+            fileLogger.close();
+            FileUtils.deleteDirectory(logDirectory);
+        }
+    }
+
+    /*
+        Pruning a snapshot of a given number of files, either how long the copy is held up by it or how long it takes
+        until the snapshot is actually gone.
+     */
+    private class PruneBenchmark extends Benchmark {
+        private final int files;
+        private final boolean untilDeleted;
+        private File destination;
+        private SnapshotPruner snapshotPruner;
+
+        private PruneBenchmark(int files, boolean untilDeleted) {
+            this.files = files;
+            this.untilDeleted = untilDeleted;
+        }
+
+        String getName() {
+            return (untilDeleted ? "prune.deleted" : "prune.blocking") + "[files=" + files + "]";
+        }
+
+        String getUnit() {
+            return "ms";
+        }
+
+        void setUp() {
+            snapshotPruner = new SnapshotPruner(logger, new BackupMetrics(logger));
+        }
+
+        void setUpIteration() throws IOException {
+            destination = newDirectory("prune");
+            // The older snapshot gets pruned, the newer one is kept
+            for (String name : new String[]{"1000", "2000"}) {
+                File snapshot = new File(destination, name);
+                for (int i = 0; i < files; i++) {
+                    File directory = new File(snapshot, "dir" + (i / PRUNE_FILES_PER_DIRECTORY));
+                    if (i % PRUNE_FILES_PER_DIRECTORY == 0 && !directory.mkdirs())
+                        throw new IOException("Failed to create " + directory.getAbsolutePath());
+                    new File(directory, "file" + i).createNewFile();
+                }
+            }
+        }
+
+        double runIteration() throws Exception {
+            long start = System.nanoTime();
+            snapshotPruner.prune(destination, 1);
+            if (untilDeleted)
+                snapshotPruner.awaitBackgroundDeletes();
+            return (System.nanoTime() - start) / 1e6;
+        }
+
+        void tearDownIteration() throws Exception {
+            snapshotPruner.awaitBackgroundDeletes();
+            FileUtils.deleteDirectory(destination);
+        }
+    }
+
+    private static class Result {
+        private final String name;
+        private final String unit;
+        private final double[] scores;
+
+        private Result(String name, String unit, double[] scores) {
+            this.name = name;
+            this.unit = unit;
+            this.scores = scores;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double score : scores)
+                sum += score;
+            return sum / scores.length;
+        }
+
+        double stddev() {
+            if (scores.length < 2)
+                return 0;
+            double mean = mean();
+            double sum = 0;
+            for (double score : scores)
+                sum += (score - mean) * (score - mean);
+            return Math.sqrt(sum / (scores.length - 1));
+        }
+
+        double min() {
+            double min = Double.POSITIVE_INFINITY;
+            for (double score : scores)
+                min = Math.min(min, score);
+            return min;
+        }
+
+        double max() {
+            double max = Double.NEGATIVE_INFINITY;
+            for (double score : scores)
+                max = Math.max(max, score);
+            return max;
+        }
+
+        public String toString() {
+            return String.format("%s: %.3f +- %.3f %s (min %.3f, max %.3f)", name, mean(), stddev(), unit, min(), max());
+        }
+    }
+}
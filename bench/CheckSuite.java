@@ -0,0 +1,227 @@
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+    Checks of the parts of the code whose behavior is easy to get subtly wrong: how .sjdbignore files are parsed and
+    matched, the path order every manifest, pack index and snapshot index is sorted by, and listings read ahead of time
+    by DirectoryScanner. Like the benchmarks it needs no build tool or test framework. Every failed check is printed,
+    and the exit status is 1 if there were any.
+
+    Build and run from the project root:
+
+        javac -d /tmp/bench -cp lib/commons-io-2.6.jar src/*.java bench/*.java
+        java -cp /tmp/bench:lib/commons-io-2.6.jar CheckSuite
+ */
+public class CheckSuite {
+
+    private int checks = 0;
+    private int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        CheckSuite suite = new CheckSuite();
+        suite.checkIgnoreMarker();
+        suite.checkIgnorePatterns();
+        suite.checkIgnoreDirectoryOnly();
+        suite.checkIgnoreNegation();
+        suite.checkIgnoreAnchoring();
+        suite.checkIgnoreNesting();
+        suite.checkIgnoreUnreadable();
+        suite.checkPathOrder();
+        suite.checkPrefetch();
+        System.out.println(suite.checks + " checks, " + suite.failures + " failed");
+        System.exit(suite.failures == 0 ? 0 : 1);
+    }
+
+    /*
+        Only a file starting with the marker holds patterns, anything else leaves out its whole directory.
+     */
+    private void checkIgnoreMarker() {
+        check("empty file excludes its directory", rules().excludesDirectory());
+        check("plain text excludes its directory", rules("don't back this up").excludesDirectory());
+        check("patterns without the marker exclude their directory", rules("*.log").excludesDirectory());
+        check("marker without patterns excludes its directory", rules(IgnoreRules.PATTERN_MARKER, "# nothing here", "").excludesDirectory());
+        check("marker with a pattern does not exclude its directory", !rules(IgnoreRules.PATTERN_MARKER, "*.log").excludesDirectory());
+        check("marker may have surrounding spaces", !rules(" " + IgnoreRules.PATTERN_MARKER + " ", "*.log").excludesDirectory());
+    }
+
+    private void checkIgnorePatterns() {
+        IgnoreRules rules = rules(IgnoreRules.PATTERN_MARKER, "*.log", "**/build", "docs/**/*.md", "cache-?", "[ab].txt", "\\#notes", "trailing.txt  ");
+        check("* matches within a name", rules.isIgnored("x.log", false));
+        check("unanchored pattern matches at any depth", rules.isIgnored("a/b/x.log", false));
+        check("* does not cross directories", !rules(IgnoreRules.PATTERN_MARKER, "a*b").isIgnored("a/b", false));
+        check("**/ matches zero directories", rules.isIgnored("build", true));
+        check("**/ matches several directories", rules.isIgnored("a/b/build", true));
+        check("/**/ matches zero directories", rules.isIgnored("docs/x.md", false));
+        check("/**/ matches several directories", rules.isIgnored("docs/a/b/x.md", false));
+        check("/**/ stays anchored", !rules.isIgnored("x.md", false) && !rules.isIgnored("other/docs/x.md", false));
+        check("? matches a single character", rules.isIgnored("cache-1", true) && !rules.isIgnored("cache-12", true));
+        check("[...] matches one of a set", rules.isIgnored("a.txt", false) && rules.isIgnored("b.txt", false) && !rules.isIgnored("c.txt", false));
+        check("escaped # is a pattern", rules.isIgnored("#notes", false));
+        check("trailing spaces are trimmed", rules.isIgnored("trailing.txt", false));
+        check("unmatched names are kept", !rules.isIgnored("keep.txt", false));
+    }
+
+    private void checkIgnoreDirectoryOnly() {
+        IgnoreRules rules = rules(IgnoreRules.PATTERN_MARKER, "logs/", "out/*/");
+        check("trailing / matches a directory", rules.isIgnored("logs", true));
+        check("trailing / matches a directory at any depth", rules.isIgnored("a/logs", true));
+        check("trailing / does not match a file", !rules.isIgnored("logs", false));
+        check("trailing / with a wildcard matches a directory", rules.isIgnored("out/x", true));
+        check("trailing / with a wildcard does not match a file", !rules.isIgnored("out/x", false));
+    }
+
+    private void checkIgnoreNegation() {
+        IgnoreRules rules = rules(IgnoreRules.PATTERN_MARKER, "*.log", "!keep.log", "temp*", "!temp-keep", "temp-keep");
+        check("! brings back a file", !rules.isIgnored("keep.log", false));
+        check("! brings back a file at any depth", !rules.isIgnored("a/keep.log", false));
+        check("! leaves other matches alone", rules.isIgnored("other.log", false));
+        check("the last matching pattern wins", rules.isIgnored("temp-keep", false));
+        check("escaped ! is a pattern", rules(IgnoreRules.PATTERN_MARKER, "\\!important").isIgnored("!important", false));
+    }
+
+    private void checkIgnoreAnchoring() {
+        IgnoreRules rules = rules(IgnoreRules.PATTERN_MARKER, "/top.txt", "a/b.txt");
+        check("leading / anchors to the directory", rules.isIgnored("top.txt", false));
+        check("leading / does not match deeper", !rules.isIgnored("x/top.txt", false));
+        check("inner / anchors to the directory", rules.isIgnored("a/b.txt", false));
+        check("inner / does not match deeper", !rules.isIgnored("x/a/b.txt", false));
+    }
+
+    /*
+        The rules of a deeper directory come before those of its ancestors, and only apply below it.
+     */
+    private void checkIgnoreNesting() {
+        IgnoreRules parent = rules(IgnoreRules.PATTERN_MARKER, "*.tmp", "/root-only");
+        IgnoreRules child = IgnoreRules.parse(Arrays.asList(IgnoreRules.PATTERN_MARKER, "!keep.tmp", "local"), "sub", parent);
+        check("parent rules apply below a child", child.isIgnored("sub/x.tmp", false));
+        check("child rules win over parent rules", !child.isIgnored("sub/keep.tmp", false));
+        check("child rules only apply below the child", !child.isIgnored("other/local", false) && child.isIgnored("sub/deeper/local", false));
+        check("parent anchoring is relative to the parent", child.isIgnored("root-only", false) && !child.isIgnored("sub/root-only", false));
+    }
+
+    private void checkIgnoreUnreadable() throws IOException {
+        Logger logger = new Logger(null, -1);
+        File directory = Files.createTempDirectory("sjdbcheck").toFile();
+        try {
+            check("no .sjdbignore keeps the parent's rules", IgnoreRules.forDirectory(directory, null, "", null, logger) == null);
+            File ignoreFile = new File(directory, IgnoreRules.FILE_NAME);
+            try (OutputStream outputStream = new FileOutputStream(ignoreFile)) {
+                outputStream.write((IgnoreRules.PATTERN_MARKER + "\n*.log\n").getBytes(StandardCharsets.UTF_8));
+                outputStream.write(new byte[]{(byte) 0xFF, (byte) 0xFE, '\n'});
+            }
+            IgnoreRules rules = IgnoreRules.forDirectory(directory, ignoreFile, "", null, logger);
+            check("a .sjdbignore that is not UTF-8 excludes its directory", rules != null && rules.excludesDirectory());
+            rules = IgnoreRules.forDirectory(directory, new File(directory, "missing"), "", null, logger);
+            check("a .sjdbignore that cannot be read excludes its directory", rules != null && rules.excludesDirectory());
+        } finally {
+            logger.close();
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /*
+        '/' sorts before everything else, so the entries of a directory come right after it in a depth first order,
+        and bytes are compared unsigned, so UTF-8 sorts like the code points it encodes.
+     */
+    private void checkPathOrder() {
+        check("equal paths compare equal", comparePaths("a/b", "a/b") == 0);
+        check("a path sorts before what is below it", comparePaths("a", "a/b") < 0);
+        check("'/' sorts before every other character", comparePaths("a/b", "a-b") < 0 && comparePaths("a/b", "a b") < 0);
+        check("'/' sorts before a longer name", comparePaths("a/z", "a0") < 0);
+        check("non-ASCII sorts after ASCII", comparePaths("z", "\u00e9") < 0);
+        check("the order is antisymmetric", comparePaths("a0", "a/z") > 0);
+
+        List<String> paths = new ArrayList<String>(Arrays.asList("a0", "a/b", "a-b", "a", "a/b/c", "a/c", "b", "\u00e9", "a b"));
+        Collections.sort(paths, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return comparePaths(a, b);
+            }
+        });
+        check("paths sort depth first", paths.equals(Arrays.asList("a", "a/b", "a/b/c", "a/c", "a b", "a-b", "a0", "b", "\u00e9")));
+    }
+
+    /*
+        A listing read ahead of time has to be the same as one read when asked for.
+     */
+    private void checkPrefetch() throws IOException {
+        File root = Files.createTempDirectory("sjdbcheck").toFile();
+        DirectoryScanner direct = new DirectoryScanner(false, 0);
+        DirectoryScanner prefetching = new DirectoryScanner(false, 2);
+        try {
+            List<File> directories = new ArrayList<File>();
+            for (int i = 0; i < 300; i++) {
+                File directory = new File(root, "d" + i);
+                if (!directory.mkdir())
+                    throw new IOException("Failed to create " + directory.getAbsolutePath());
+                for (int j = 0; j < i % 5; j++) {
+                    FileUtils.writeStringToFile(new File(directory, "f" + j), "x", StandardCharsets.UTF_8);
+                }
+                directories.add(directory);
+            }
+            FileUtils.writeStringToFile(new File(directories.get(3), IgnoreRules.FILE_NAME), "", StandardCharsets.UTF_8);
+
+            // More than can be held ahead of the walk, so some are read when asked for instead
+            for (File directory : directories) {
+                prefetching.prefetch(directory);
+            }
+            boolean same = true;
+            for (File directory : directories) {
+                same &= names(prefetching.list(directory)).equals(names(direct.list(directory)));
+            }
+            check("prefetched listings match direct listings", same);
+            check("prefetched listing finds the .sjdbignore", prefetching.list(directories.get(3)).getIgnoreFile() != null);
+            check("prefetched listing without a .sjdbignore has none", prefetching.list(directories.get(4)).getIgnoreFile() == null);
+
+            File missing = new File(root, "missing");
+            prefetching.prefetch(missing);
+            boolean failed = false;
+            try {
+                prefetching.list(missing);
+            } catch (IOException exc) {
+                failed = true;
+            }
+            check("a failed prefetched listing throws when asked for", failed);
+        } finally {
+            direct.close();
+            prefetching.close();
+            FileUtils.deleteQuietly(root);
+        }
+    }
+
+    private static IgnoreRules rules(String... lines) {
+        return IgnoreRules.parse(Arrays.asList(lines), "", null);
+    }
+
+    private static int comparePaths(String a, String b) {
+        return SnapshotManifest.comparePaths(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> names(DirectoryScanner.Listing listing) {
+        List<String> names = new ArrayList<String>();
+        for (DirectoryScanner.Entry entry : listing.getEntries()) {
+            names.add(entry.getName() + (entry.isDirectory() ? "/" : "") + ":" + entry.getSize());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private void check(String description, boolean passed) {
+        checks++;
+        if (!passed) {
+            failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+}
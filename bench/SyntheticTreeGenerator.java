@@ -0,0 +1,162 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/*
+    Generates source trees for the benchmarks. The same seed and scale always give the same tree, down to the content
+    and modification time of every file, so results from different commits are measured against identical input.
+ */
+public class SyntheticTreeGenerator {
+
+    public enum Shape {
+        // Lots of files of a few KB spread over a couple hundred directories
+        TINY_FILES,
+        // A handful of very large files
+        HUGE_FILES,
+        // A long chain of nested directories with a few files at every level
+        DEEP_NESTING,
+        // A bit of everything, including hidden files and subtrees containing an .sjdbignore file
+        MIXED
+    }
+
+    // Every generated file gets this modification time, so incremental copies see an unchanged tree
+    private static final long MODIFICATION_TIME = 1500000000000L;
+
+    private final long seed;
+    private final double scale;
+
+    /**
+     * @param scale Multiplies the number of files, or the file size for HUGE_FILES. 1.0 gives trees that take a few
+     *              seconds to copy on an SSD.
+     */
+    public SyntheticTreeGenerator(long seed, double scale) {
+        this.seed = seed;
+        this.scale = scale;
+    }
+
+    /**
+     * Create a tree of the given shape at root, which must not exist yet.
+     *
+     * @return Statistics about what was generated.
+     */
+    public Summary generate(File root, Shape shape) throws IOException {
+        if (root.exists())
+            throw new IOException(root.getAbsolutePath() + " already exists");
+        Random random = new Random(seed ^ shape.ordinal());
+        Summary summary = new Summary();
+        switch (shape) {
+            case TINY_FILES:
+                generateFlat(root, random, summary, scaled(200), scaled(20000), 4096);
+                break;
+            case HUGE_FILES:
+                mkdirs(root);
+                for (int i = 0; i < 3; i++) {
+                    writeFile(new File(root, "huge" + i + ".bin"), (long) (64L * 1024 * 1024 * scale), random, summary);
+                }
+                break;
+            case DEEP_NESTING:
+                File directory = root;
+                for (int depth = 0; depth < 64; depth++) {
+                    mkdirs(directory);
+                    summary.directories++;
+                    for (int i = 0; i < Math.max(1, scaled(20)); i++) {
+                        writeFile(new File(directory, "file" + i + ".dat"), random.nextInt(16384), random, summary);
+                    }
+                    directory = new File(directory, "level" + depth);
+                }
+                break;
+            case MIXED:
+                generateFlat(new File(root, "small"), random, summary, scaled(50), scaled(5000), 16384);
+                mkdirs(new File(root, "large"));
+                for (int i = 0; i < 4; i++) {
+                    writeFile(new File(root, "large/file" + i + ".bin"), (long) (8L * 1024 * 1024 * scale), random, summary);
+                }
+                mkdirs(new File(root, "hidden"));
+                for (int i = 0; i < scaled(500); i++) {
+                    writeFile(new File(root, "hidden/.hidden" + i), random.nextInt(4096), random, summary);
+                    summary.hiddenFiles++;
+                }
+                // Neither of these should be copied at all
+                for (int i = 0; i < 2; i++) {
+                    File ignored = new File(root, "ignored" + i);
+                    generateFlat(ignored, random, summary, scaled(10), scaled(1000), 4096);
+                    writeFile(new File(ignored, ".sjdbignore"), 0, random, summary);
+                    summary.ignoredDirectories++;
+                }
+                break;
+        }
+        return summary;
+    }
+
+    private void generateFlat(File root, Random random, Summary summary, int directories, int files, int maxSize) throws IOException {
+        directories = Math.max(1, directories);
+        for (int d = 0; d < directories; d++) {
+            File directory = new File(root, "dir" + d);
+            mkdirs(directory);
+            summary.directories++;
+            for (int f = d; f < files; f += directories) {
+                writeFile(new File(directory, "file" + f + ".dat"), random.nextInt(maxSize + 1), random, summary);
+            }
+        }
+    }
+
+    private int scaled(int count) {
+        return (int) Math.round(count * scale);
+    }
+
+    private static void mkdirs(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create " + directory.getAbsolutePath());
+    }
+
+    private static void writeFile(File file, long size, Random random, Summary summary) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(size, 1 << 20)];
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            long remaining = size;
+            while (remaining > 0) {
+                // Half random, half zeros, so compression has something to do but is not trivial
+                random.nextBytes(buffer);
+                int length = (int) Math.min(buffer.length, remaining);
+                for (int i = length / 2; i < length; i++) {
+                    buffer[i] = 0;
+                }
+                outputStream.write(buffer, 0, length);
+                remaining -= length;
+            }
+        }
+        if (!file.setLastModified(MODIFICATION_TIME))
+            throw new IOException("Failed to set the modification time of " + file.getAbsolutePath());
+        summary.files++;
+        summary.bytes += size;
+    }
+
+    /*
+        What a call to generate() created.
+     */
+    public static class Summary {
+        private long files;
+        private long bytes;
+        private long directories;
+        private long hiddenFiles;
+        private long ignoredDirectories;
+
+        public long getFiles() {
+            return files;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getDirectories() {
+            return directories;
+        }
+
+        public String toString() {
+            return String.format("%d files (%.1f MB) in %d directories, %d hidden files, %d ignored directories",
+                    files, bytes / (1024.0 * 1024.0), directories, hiddenFiles, ignoredDirectories);
+        }
+    }
+}
@@ -9,8 +9,33 @@ public class ApplicationArguments {
     private final Time time;
     private final boolean continuousMode;
     private final boolean ignoreHidden;
+    private final boolean incremental;
+    private final int traversalThreads;
+    private final int copyThreads;
+    private final boolean fanOut;
+    private final boolean writeManifests;
+    private final FileCopier.Backend copyBackend;
+    private final boolean archive;
+    private final int metricsPort;
+    private final long sourceBytesPerSecond;
+    private final long sourceOpsPerSecond;
+    private final boolean adaptiveThrottle;
+    private final long[] destinationBytesPerSecond;
+    private final long[] destinationOpsPerSecond;
+    private final boolean verify;
+    private final File verifySnapshot;
+    private final boolean buildIndex;
+    private final File restoreSnapshot;
+    private final String restorePath;
+    private final File restoreTarget;
+    private final String queryPath;
+    private final long queryTime;
+    private final File jobFile;
+    private final long deltaThreshold;
+    private final long packThreshold;
+    private final int maxRunningJobs;
 
-    public ApplicationArguments(File source, File[] destinations, int repeatDelayInSeconds, int keepCount, Time time, boolean continuousMode, boolean ignoreHidden) {
+    public ApplicationArguments(File source, File[] destinations, int repeatDelayInSeconds, int keepCount, Time time, boolean continuousMode, boolean ignoreHidden, boolean incremental, int traversalThreads, int copyThreads, boolean fanOut, boolean writeManifests, FileCopier.Backend copyBackend, boolean archive, int metricsPort, long sourceBytesPerSecond, long sourceOpsPerSecond, boolean adaptiveThrottle, long[] destinationBytesPerSecond, long[] destinationOpsPerSecond, boolean verify, File verifySnapshot, boolean buildIndex, File restoreSnapshot, String restorePath, File restoreTarget, String queryPath, long queryTime, File jobFile, int maxRunningJobs, long deltaThreshold, long packThreshold) {
         this.source = source;
         this.destinations = Arrays.copyOf(destinations, destinations.length);
         this.repeatDelayInSeconds = repeatDelayInSeconds;
@@ -21,6 +46,31 @@ public class ApplicationArguments {
             this.time = null;
         this.continuousMode = continuousMode;
         this.ignoreHidden = ignoreHidden;
+        this.incremental = incremental;
+        this.traversalThreads = traversalThreads;
+        this.copyThreads = copyThreads;
+        this.fanOut = fanOut;
+        this.writeManifests = writeManifests;
+        this.copyBackend = copyBackend;
+        this.archive = archive;
+        this.metricsPort = metricsPort;
+        this.sourceBytesPerSecond = sourceBytesPerSecond;
+        this.sourceOpsPerSecond = sourceOpsPerSecond;
+        this.adaptiveThrottle = adaptiveThrottle;
+        this.destinationBytesPerSecond = Arrays.copyOf(destinationBytesPerSecond, destinationBytesPerSecond.length);
+        this.destinationOpsPerSecond = Arrays.copyOf(destinationOpsPerSecond, destinationOpsPerSecond.length);
+        this.verify = verify;
+        this.verifySnapshot = verifySnapshot;
+        this.buildIndex = buildIndex;
+        this.restoreSnapshot = restoreSnapshot;
+        this.restorePath = restorePath;
+        this.restoreTarget = restoreTarget;
+        this.queryPath = queryPath;
+        this.queryTime = queryTime;
+        this.jobFile = jobFile;
+        this.maxRunningJobs = maxRunningJobs;
+        this.deltaThreshold = deltaThreshold;
+        this.packThreshold = packThreshold;
     }
 
     public File getSource() {
@@ -50,4 +100,168 @@ public class ApplicationArguments {
     public boolean ignoreHidden() {
         return ignoreHidden;
     }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public int getTraversalThreads() {
+        return traversalThreads;
+    }
+
+    public int getCopyThreads() {
+        return copyThreads;
+    }
+
+    public boolean isFanOut() {
+        return fanOut;
+    }
+
+    public boolean writeManifests() {
+        return writeManifests;
+    }
+
+    public FileCopier.Backend getCopyBackend() {
+        return copyBackend;
+    }
+
+    public boolean isArchive() {
+        return archive;
+    }
+
+    /**
+     *
+     * @return The local port to serve metrics on, or -1 to not serve them.
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     *
+     * @return Bytes per second allowed to be read from the source, or IoThrottle.UNLIMITED.
+     */
+    public long getSourceBytesPerSecond() {
+        return sourceBytesPerSecond;
+    }
+
+    /**
+     *
+     * @return Operations per second allowed against the source, or IoThrottle.UNLIMITED.
+     */
+    public long getSourceOpsPerSecond() {
+        return sourceOpsPerSecond;
+    }
+
+    public boolean isAdaptiveThrottle() {
+        return adaptiveThrottle;
+    }
+
+    /**
+     *
+     * @return Bytes per second allowed to be written to each destination, in the same order as getDestinations().
+     */
+    public long[] getDestinationBytesPerSecond() {
+        return destinationBytesPerSecond;
+    }
+
+    /**
+     *
+     * @return Operations per second allowed against each destination, in the same order as getDestinations().
+     */
+    public long[] getDestinationOpsPerSecond() {
+        return destinationOpsPerSecond;
+    }
+
+    /**
+     *
+     * @return Whether every snapshot is verified once its copy is complete.
+     */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     *
+     * @return An existing snapshot to verify instead of copying anything, or null.
+     */
+    public File getVerifySnapshot() {
+        return verifySnapshot;
+    }
+
+    /**
+     *
+     * @return Whether each destination keeps a SnapshotIndex of its snapshots.
+     */
+    public boolean isBuildIndex() {
+        return buildIndex;
+    }
+
+    /**
+     *
+     * @return A snapshot directory or archive to restore instead of copying anything, or null.
+     */
+    public File getRestoreSnapshot() {
+        return restoreSnapshot;
+    }
+
+    /**
+     *
+     * @return The file or directory inside the restore snapshot to restore, or null for all of it.
+     */
+    public String getRestorePath() {
+        return restorePath;
+    }
+
+    public File getRestoreTarget() {
+        return restoreTarget;
+    }
+
+    /**
+     *
+     * @return A path to list every version of from the first destination's index, or null.
+     */
+    public String getQueryPath() {
+        return queryPath;
+    }
+
+    /**
+     *
+     * @return A time to list the first destination's tree at from its index, or -1.
+     */
+    public long getQueryTime() {
+        return queryTime;
+    }
+
+    /**
+     *
+     * @return A file listing the jobs to run, each with arguments like these, or null to run these arguments alone.
+     */
+    public File getJobFile() {
+        return jobFile;
+    }
+
+    /**
+     *
+     * @return How many jobs may copy at the same time.
+     */
+    public int getMaxRunningJobs() {
+        return maxRunningJobs;
+    }
+
+    /**
+     *
+     * @return The size from which changed files are delta copied, or CopyEngine.DELTA_DISABLED.
+     */
+    public long getDeltaThreshold() {
+        return deltaThreshold;
+    }
+
+    /**
+     *
+     * @return The size below which files are packed, or CopyEngine.PACK_DISABLED.
+     */
+    public long getPackThreshold() {
+        return packThreshold;
+    }
 }
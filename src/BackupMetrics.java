@@ -0,0 +1,299 @@
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/*
+    Running totals of every copy since the application started, overall and for each destination, so throughput can
+    be watched and alerted on from outside. They are published as JMX MBeans under the "SimpleJavaDirectoryBackup"
+    domain and, when a metrics port is set, in Prometheus text format by MetricsHttpServer.
+ */
+public class BackupMetrics {
+
+    private static final String JMX_DOMAIN = "SimpleJavaDirectoryBackup";
+
+    private final Logger logger;
+    private final Destination total = new Destination("all destinations");
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+    // fsync is only timed inside FileCopier, which does not know which destination it is writing to
+    private final LatencyHistogram fsyncLatency = new LatencyHistogram();
+
+    public BackupMetrics(Logger logger) {
+        this.logger = logger;
+        register("type=Summary", total);
+    }
+
+    public LatencyHistogram getFsyncLatency() {
+        return fsyncLatency;
+    }
+
+    /**
+     * Add a finished copy to the totals of its destination.
+     */
+    public void recordCopy(SnapshotTarget target) {
+        Destination destination = destination(target.getDestination().getAbsolutePath());
+        destination.record(target);
+        total.record(target);
+    }
+
+    /**
+     * Record how long deleting an expired snapshot of destination took.
+     */
+    public void recordPrune(String destinationPath, long nanos) {
+        destination(destinationPath).pruneLatency.record(nanos);
+        total.pruneLatency.record(nanos);
+    }
+
+    /**
+     *
+     * @return One line summing up the copies of a single run to all of targets.
+     */
+    public String summarizeRun(List<SnapshotTarget> targets, long runNanos) {
+        long filesCopied = 0, filesSkipped = 0, filesFailed = 0, bytesCopied = 0, bytesSkipped = 0;
+        int failedTargets = 0;
+        LatencyHistogram scanLatency = new LatencyHistogram();
+        LatencyHistogram copyLatency = new LatencyHistogram();
+        for (SnapshotTarget target : targets) {
+            CopyStatistics statistics = target.getStatistics();
+            filesCopied += statistics.getFilesCopied();
+            filesSkipped += statistics.getFilesLinked();
+            filesFailed += statistics.getFilesFailed();
+            bytesCopied += statistics.getBytesCopied();
+            bytesSkipped += statistics.getBytesLinked();
+            scanLatency.add(statistics.getScanLatency());
+            copyLatency.add(statistics.getCopyLatency());
+            if (target.isFailed())
+                failedTargets++;
+        }
+        double seconds = runNanos / 1e9;
+        return String.format("Run summary: %d of %d destinations succeeded, copied %d files (%.1f MB), skipped %d unchanged files (%.1f MB), %d failures in %.1f seconds, %.1f files/s, %.1f MB/s. Scan p99 %.1f ms, copy p99 %.1f ms, fsync mean %.1f ms, prune mean %.1f ms.",
+                targets.size() - failedTargets, targets.size(), filesCopied, bytesCopied / (1024.0 * 1024.0), filesSkipped, bytesSkipped / (1024.0 * 1024.0), filesFailed, seconds,
+                seconds > 0 ? (filesCopied + filesSkipped) / seconds : 0, seconds > 0 ? bytesCopied / (1024.0 * 1024.0) / seconds : 0,
+                scanLatency.getQuantileMillis(0.99), copyLatency.getQuantileMillis(0.99), fsyncLatency.getMeanMillis(), total.pruneLatency.getMeanMillis());
+    }
+
+    /**
+     *
+     * @return Every metric in Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        StringBuilder output = new StringBuilder();
+        Destination[] all = destinations.values().toArray(new Destination[0]);
+
+        appendHeader(output, "sjdb_runs_total", "counter", "Copies attempted.");
+        for (Destination destination : all)
+            appendSample(output, "sjdb_runs_total", destination, destination.runs.get());
+        appendHeader(output, "sjdb_failed_runs_total", "counter", "Copies that failed.");
+        for (Destination destination : all)
+            appendSample(output, "sjdb_failed_runs_total", destination, destination.failedRuns.get());
+        appendHeader(output, "sjdb_files_copied_total", "counter", "Files copied.");
+        for (Destination destination : all)
+            appendSample(output, "sjdb_files_copied_total", destination, destination.filesCopied.get());
+        appendHeader(output, "sjdb_files_skipped_total", "counter", "Unchanged files linked instead of copied.");
+        for (Destination destination : all)
+            appendSample(output, "sjdb_files_skipped_total", destination, destination.filesSkipped.get());
+        appendHeader(output, "sjdb_files_failed_total", "counter", "Files that could not be copied.");
+        for (Destination destination : all)
+            appendSample(output, "sjdb_files_failed_total", destination, destination.filesFailed.get());
+        appendHeader(output, "sjdb_bytes_copied_total", "counter", "Bytes copied.");
+        for (Destination destination : all)
+            appendSample(output, "sjdb_bytes_copied_total", destination, destination.bytesCopied.get());
+        appendHeader(output, "sjdb_bytes_skipped_total", "counter", "Bytes of unchanged files linked instead of copied.");
+        for (Destination destination : all)
+            appendSample(output, "sjdb_bytes_skipped_total", destination, destination.bytesSkipped.get());
+        appendHeader(output, "sjdb_last_run_seconds", "gauge", "Wall time of the last copy.");
+        for (Destination destination : all)
+            appendSample(output, "sjdb_last_run_seconds", destination, destination.lastRunSeconds);
+        appendHeader(output, "sjdb_last_run_files_per_second", "gauge", "Files copied or linked per second by the last copy.");
+        for (Destination destination : all)
+            appendSample(output, "sjdb_last_run_files_per_second", destination, destination.lastRunFilesPerSecond);
+        appendHeader(output, "sjdb_last_run_bytes_per_second", "gauge", "Bytes copied per second by the last copy.");
+        for (Destination destination : all)
+            appendSample(output, "sjdb_last_run_bytes_per_second", destination, destination.lastRunMegabytesPerSecond * 1024 * 1024);
+        appendHeader(output, "sjdb_last_success_timestamp_seconds", "gauge", "When the last successful copy finished.");
+        for (Destination destination : all)
+            appendSample(output, "sjdb_last_success_timestamp_seconds", destination, destination.lastSuccessMillis / 1000.0);
+
+        appendHeader(output, "sjdb_scan_seconds", "histogram", "Time to list a directory of the source.");
+        for (Destination destination : all)
+            destination.scanLatency.appendPrometheus(output, "sjdb_scan_seconds", destination.label());
+        appendHeader(output, "sjdb_copy_seconds", "histogram", "Time to copy a single file.");
+        for (Destination destination : all)
+            destination.copyLatency.appendPrometheus(output, "sjdb_copy_seconds", destination.label());
+        appendHeader(output, "sjdb_prune_seconds", "histogram", "Time to delete an expired snapshot.");
+        for (Destination destination : all)
+            destination.pruneLatency.appendPrometheus(output, "sjdb_prune_seconds", destination.label());
+        appendHeader(output, "sjdb_fsync_seconds", "histogram", "Time to force a chunk of a large file to disk.");
+        fsyncLatency.appendPrometheus(output, "sjdb_fsync_seconds", "");
+        return output.toString();
+    }
+
+    private static void appendHeader(StringBuilder output, String name, String type, String help) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendSample(StringBuilder output, String name, Destination destination, double value) {
+        output.append(name).append('{').append(destination.label()).append("} ");
+        if (value == Math.rint(value) && !Double.isInfinite(value))
+            output.append((long) value);
+        else
+            output.append(value);
+        output.append('\n');
+    }
+
+    private Destination destination(String path) {
+        Destination destination = destinations.get(path);
+        if (destination != null)
+            return destination;
+        synchronized (destinations) {
+            destination = destinations.get(path);
+            if (destination == null) {
+                destination = new Destination(path);
+                destinations.put(path, destination);
+                register("type=Destination,name=" + ObjectName.quote(path), destination);
+            }
+            return destination;
+        }
+    }
+
+    private void register(String properties, Destination destination) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            mBeanServer.registerMBean(new StandardMBean(destination, DestinationMBean.class), new ObjectName(JMX_DOMAIN + ":" + properties));
+        } catch (Exception exc) {
+            // The metrics are still logged and served over HTTP
+            logger.log("Failed to register metrics with JMX: " + exc.getMessage());
+        }
+    }
+
+    /*
+        What each destination's MBean exposes, and the summary MBean the same for all of them together.
+     */
+    public interface DestinationMBean {
+        String getDestination();
+        long getRuns();
+        long getFailedRuns();
+        long getFilesCopied();
+        long getFilesSkipped();
+        long getFilesFailed();
+        long getBytesCopied();
+        long getBytesSkipped();
+        double getLastRunSeconds();
+        double getLastRunFilesPerSecond();
+        double getLastRunMegabytesPerSecond();
+        long getLastSuccessMillis();
+        double getScanP99Millis();
+        double getCopyP99Millis();
+        double getPruneMeanMillis();
+    }
+
+    private static class Destination implements DestinationMBean {
+        private final String path;
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong failedRuns = new AtomicLong();
+        private final AtomicLong filesCopied = new AtomicLong();
+        private final AtomicLong filesSkipped = new AtomicLong();
+        private final AtomicLong filesFailed = new AtomicLong();
+        private final AtomicLong bytesCopied = new AtomicLong();
+        private final AtomicLong bytesSkipped = new AtomicLong();
+        private final LatencyHistogram scanLatency = new LatencyHistogram();
+        private final LatencyHistogram copyLatency = new LatencyHistogram();
+        private final LatencyHistogram pruneLatency = new LatencyHistogram();
+        private volatile double lastRunSeconds;
+        private volatile double lastRunFilesPerSecond;
+        private volatile double lastRunMegabytesPerSecond;
+        private volatile long lastSuccessMillis;
+
+        private Destination(String path) {
+            this.path = path;
+        }
+
+        private void record(SnapshotTarget target) {
+            CopyStatistics statistics = target.getStatistics();
+            runs.incrementAndGet();
+            filesCopied.addAndGet(statistics.getFilesCopied());
+            filesSkipped.addAndGet(statistics.getFilesLinked());
+            filesFailed.addAndGet(statistics.getFilesFailed());
+            bytesCopied.addAndGet(statistics.getBytesCopied());
+            bytesSkipped.addAndGet(statistics.getBytesLinked());
+            scanLatency.add(statistics.getScanLatency());
+            copyLatency.add(statistics.getCopyLatency());
+            lastRunSeconds = statistics.getWallNanos() / 1e9;
+            lastRunFilesPerSecond = statistics.getFilesPerSecond();
+            lastRunMegabytesPerSecond = statistics.getMegabytesPerSecond();
+            if (target.isFailed())
+                failedRuns.incrementAndGet();
+            else
+                lastSuccessMillis = System.currentTimeMillis();
+        }
+
+        private String label() {
+            return "destination=\"" + path.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+        }
+
+        public String getDestination() {
+            return path;
+        }
+
+        public long getRuns() {
+            return runs.get();
+        }
+
+        public long getFailedRuns() {
+            return failedRuns.get();
+        }
+
+        public long getFilesCopied() {
+            return filesCopied.get();
+        }
+
+        public long getFilesSkipped() {
+            return filesSkipped.get();
+        }
+
+        public long getFilesFailed() {
+            return filesFailed.get();
+        }
+
+        public long getBytesCopied() {
+            return bytesCopied.get();
+        }
+
+        public long getBytesSkipped() {
+            return bytesSkipped.get();
+        }
+
+        public double getLastRunSeconds() {
+            return lastRunSeconds;
+        }
+
+        public double getLastRunFilesPerSecond() {
+            return lastRunFilesPerSecond;
+        }
+
+        public double getLastRunMegabytesPerSecond() {
+            return lastRunMegabytesPerSecond;
+        }
+
+        public long getLastSuccessMillis() {
+            return lastSuccessMillis;
+        }
+
+        public double getScanP99Millis() {
+            return scanLatency.getQuantileMillis(0.99);
+        }
+
+        public double getCopyP99Millis() {
+            return copyLatency.getQuantileMillis(0.99);
+        }
+
+        public double getPruneMeanMillis() {
+            return pruneLatency.getMeanMillis();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Watches every directory under the source and keeps a deduplicated list of the directories whose contents changed,
+    so continuous mode only has to look at those on the next iteration instead of rescanning the whole tree. Anything
+    the watcher may have missed, such as an event overflow or too many changes to track, turns the next iteration
+    into a full scan instead.
+ */
+public class ChangeJournal implements Runnable {
+
+    // Past this many changed directories a full scan is cheaper than tracking them
+    private static final int MAX_TRACKED_DIRECTORIES = 100000;
+
+    private final Path root;
+    private final Logger logger;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<WatchKey, Path>();
+
+    // Guarded by this
+    private Set<String> changedDirectories = new HashSet<String>();
+    private Set<String> changedTrees = new HashSet<String>();
+    private boolean fullScanNeeded = false;
+
+    private ChangeJournal(Path root, Logger logger) throws IOException {
+        this.root = root;
+        this.logger = logger;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Start watching source.
+     *
+     * @return The journal, or null if source cannot be watched, in which case every iteration should be a full scan.
+     */
+    public static ChangeJournal start(File source, Logger logger) {
+        try {
+            ChangeJournal changeJournal = new ChangeJournal(source.toPath().toAbsolutePath(), logger);
+            changeJournal.registerAll(changeJournal.root);
+            Thread thread = new Thread(changeJournal, "ChangeJournal");
+            thread.setDaemon(true);
+            thread.start();
+            logger.log("Watching " + changeJournal.watchedDirectories.size() + " directories for changes");
+            return changeJournal;
+        } catch (IOException exc) {
+            logger.log("Unable to watch " + source.getAbsolutePath() + " for changes, every copy will be a full scan: " + exc.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException exc) {
+                return;
+            }
+            Path directory = watchedDirectories.get(key);
+            if (directory == null) {
+                key.cancel();
+                continue;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    logger.log("Change journal overflowed, the next copy will be a full scan");
+                    markFullScan();
+                    continue;
+                }
+                markChanged(directory);
+                Path child = directory.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    // Whatever was created inside before we got to watch it has no event of its own
+                    markTreeChanged(child);
+                    try {
+                        registerAll(child);
+                    } catch (IOException exc) {
+                        logger.log("Unable to watch " + child + ", the next copy will be a full scan: " + exc.getMessage());
+                        markFullScan();
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                // The directory is gone, its parent has an event for that
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Take everything recorded since the last call.
+     */
+    public synchronized Changes drain() {
+        Changes changes = new Changes(fullScanNeeded, changedDirectories, changedTrees);
+        changedDirectories = new HashSet<String>();
+        changedTrees = new HashSet<String>();
+        fullScanNeeded = false;
+        return changes;
+    }
+
+    /**
+     * Put back changes taken by drain() that were not fully processed, e.g. because a copy failed.
+     */
+    public synchronized void restore(Changes changes) {
+        fullScanNeeded |= changes.fullScan;
+        changedDirectories.addAll(changes.changedDirectories);
+        changedTrees.addAll(changes.changedTrees);
+        checkTrackedCount();
+    }
+
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirectories.put(key, directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                // Unreadable entries are skipped by the copy as well
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private synchronized void markChanged(Path directory) {
+        changedDirectories.add(relativize(directory));
+        checkTrackedCount();
+    }
+
+    private synchronized void markTreeChanged(Path directory) {
+        changedTrees.add(relativize(directory));
+        checkTrackedCount();
+    }
+
+    private synchronized void markFullScan() {
+        fullScanNeeded = true;
+    }
+
+    private void checkTrackedCount() {
+        if (changedDirectories.size() + changedTrees.size() > MAX_TRACKED_DIRECTORIES) {
+            fullScanNeeded = true;
+            changedDirectories.clear();
+            changedTrees.clear();
+        }
+    }
+
+    private String relativize(Path directory) {
+        return root.relativize(directory).toString().replace(File.separatorChar, '/');
+    }
+
+    /*
+        The changes recorded between two calls to drain(). Paths are relative to the source using '/' separators, with
+        the empty string for the source itself.
+     */
+    public static class Changes {
+        private final boolean fullScan;
+        private final Set<String> changedDirectories;
+        private final Set<String> changedTrees;
+        // Every changed directory and changed tree along with all of their ancestors
+        private final Set<String> pathsToVisit = new HashSet<String>();
+
+        private Changes(boolean fullScan, Set<String> changedDirectories, Set<String> changedTrees) {
+            this.fullScan = fullScan;
+            this.changedDirectories = changedDirectories;
+            this.changedTrees = changedTrees;
+            addWithAncestors(changedDirectories);
+            addWithAncestors(changedTrees);
+        }
+
+        private void addWithAncestors(Set<String> paths) {
+            for (String path : paths) {
+                while (pathsToVisit.add(path) && !path.isEmpty()) {
+                    int slash = path.lastIndexOf('/');
+                    path = slash < 0 ? "" : path.substring(0, slash);
+                }
+            }
+        }
+
+        public boolean isFullScan() {
+            return fullScan;
+        }
+
+        public boolean isEmpty() {
+            return !fullScan && pathsToVisit.isEmpty();
+        }
+
+        public int getChangedDirectoryCount() {
+            return changedDirectories.size() + changedTrees.size();
+        }
+
+        /**
+         *
+         * @return Whether the directory at path or anything below it changed.
+         */
+        public boolean needsVisit(String path) {
+            return pathsToVisit.contains(path);
+        }
+
+        /**
+         *
+         * @return Whether the entries directly in the directory at path may have changed.
+         */
+        public boolean isListingChanged(String path) {
+            return changedDirectories.contains(path) || isTreeChanged(path);
+        }
+
+        /**
+         *
+         * @return Whether everything below the directory at path has to be looked at.
+         */
+        public boolean isTreeChanged(String path) {
+            while (true) {
+                if (changedTrees.contains(path))
+                    return true;
+                if (path.isEmpty())
+                    return false;
+                int slash = path.lastIndexOf('/');
+                path = slash < 0 ? "" : path.substring(0, slash);
+            }
+        }
+    }
+}
@@ -0,0 +1,1170 @@
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Copies a source tree into one or more snapshot directories. The data of each file is copied by a FileCopier. Directories are walked on a fork/join pool while file
+    copies run on a separate bounded pool, so the number of threads for each can be tuned on its own. With one thread
+    of each the engine behaves like the old recursive single-threaded copy.
+
+    When manifests are enabled every snapshot also gets a SnapshotManifest. If the previous snapshot has one, each
+    directory listing is merged against it to decide which files are unchanged, changed, new or deleted without
+    looking at the previous snapshot's files at all.
+
+    Given the changes recorded by a ChangeJournal since every target's previous snapshot was taken, only the
+    directories that changed are listed and compared. Everything else is linked from the previous snapshot without
+    touching the source at all.
+
+    When given several targets the source is walked and read only once. Every chunk read from a source file is handed
+    to a writer thread per target, each with its own bounded queue, so a slow destination lags behind on its own and
+    is dropped if it stops accepting data altogether.
+
+    Every file completed for a checkpointed target is recorded in its SnapshotCheckpoint. When a target resumes an
+    unfinished snapshot, files the checkpoint lists whose source has not changed since are kept as they are, and
+    anything else already in the working directory is replaced or removed.
+
+    With a pack threshold set, files smaller than it are appended to the snapshot's SnapshotPack instead of being
+    written out one by one, and a directory is only created in the snapshot once a file that is not packed goes into it.
+ */
+public class CopyEngine {
+
+    // Size of each chunk read from a source file when fanning out to several targets
+    private static final int FAN_OUT_CHUNK_SIZE = 1024 * 1024;
+    // How many chunks a single target may fall behind the reader
+    private static final int FAN_OUT_MAX_QUEUED_CHUNKS = 64;
+    // How long the reader waits on a target whose queue is full before dropping it. Kept short, since the reader
+    // feeds every other target too and they all wait with it.
+    private static final long FAN_OUT_STALL_TIMEOUT_MILLIS = 1000;
+
+    public static final long DELTA_DISABLED = -1;
+    public static final long PACK_DISABLED = -1;
+
+    private final Logger logger;
+    private final boolean ignoreHidden;
+    private final int traversalThreads;
+    private final int copyThreads;
+    private final boolean writeManifests;
+    private final FileCopier fileCopier;
+    private final IoThrottle sourceThrottle;
+    // Changed files at least this large are delta copied against the previous snapshot, or DELTA_DISABLED
+    private final long deltaThreshold;
+    // Files smaller than this are packed, or PACK_DISABLED
+    private final long packThreshold;
+    // The size and modification time of every .sjdbignore as of the last copy to each destination, by the path of
+    // its directory. Journal changes are only used against the snapshot this process wrote last, so this is all a
+    // copy needs to tell whether the rules changed, even when the files themselves are hidden and never copied.
+    private final Map<File, Map<String, String>> ignoreFingerprints = new ConcurrentHashMap<File, Map<String, String>>();
+
+    public CopyEngine(Logger logger, boolean ignoreHidden, int traversalThreads, int copyThreads, boolean writeManifests, FileCopier fileCopier, IoThrottle sourceThrottle) {
+        this(logger, ignoreHidden, traversalThreads, copyThreads, writeManifests, fileCopier, sourceThrottle, DELTA_DISABLED, PACK_DISABLED);
+    }
+
+    public CopyEngine(Logger logger, boolean ignoreHidden, int traversalThreads, int copyThreads, boolean writeManifests, FileCopier fileCopier, IoThrottle sourceThrottle, long deltaThreshold, long packThreshold) {
+        this.logger = logger;
+        this.deltaThreshold = deltaThreshold;
+        this.packThreshold = packThreshold;
+        this.fileCopier = fileCopier;
+        this.sourceThrottle = sourceThrottle;
+        this.ignoreHidden = ignoreHidden;
+        this.traversalThreads = traversalThreads;
+        this.copyThreads = copyThreads;
+        this.writeManifests = writeManifests;
+    }
+
+    /**
+     * Copy source into target's snapshot directory. See {@link #copy(File, List, ChangeJournal.Changes)}.
+     *
+     * @return Statistics about the copy.
+     */
+    public CopyStatistics copy(File source, SnapshotTarget target, ChangeJournal.Changes changes) throws Exception {
+        copy(source, Collections.singletonList(target), changes);
+        if (target.isFailed())
+            throw target.getFailure();
+        return target.getStatistics();
+    }
+
+    /**
+     * Copy source into the snapshot directory of every target, creating them if needed. Exceptions on any single file
+     * (e.g. permission issues, etc) are logged and ignored, unless they indicate a destination has gone away, in which
+     * case that target is marked failed and dropped from the rest of the copy. Directories containing a file named
+     * ".sjdbignore" are not copied at all. Files whose size and modification time are unchanged from a target's
+     * previous snapshot are hard linked from there instead of being copied again, and changed files of at least the
+     * delta threshold only have their changed blocks written on top of a clone of the previous copy. Files below the
+     * pack threshold are appended to each target's packs, whose index is written once its copy succeeds. If
+     * manifests are enabled, each target's manifest is written once its copy succeeds.
+     *
+     * @param changes What changed in source since the previous snapshot of every target, or null to scan everything.
+     *                Every target must have a previous snapshot when this is not null.
+     */
+    public void copy(File source, List<SnapshotTarget> targets, ChangeJournal.Changes changes) throws Exception {
+        copy(source, targets, changes, false, false);
+    }
+
+    /**
+     * Copy a snapshot, or a directory inside one, back into target, leaving out the snapshot's own files such as its
+     * manifest. Hard linked files are copied like any other.
+     *
+     * @param snapshotRoot Whether snapshotDirectory is the root of the snapshot, the only place its own files are.
+     * @return Statistics about the restore.
+     */
+    public CopyStatistics restore(File snapshotDirectory, File target, boolean snapshotRoot) throws Exception {
+        SnapshotTarget restoreTarget = new SnapshotTarget(target, target, null);
+        copy(snapshotDirectory, Collections.singletonList(restoreTarget), null, true, snapshotRoot);
+        if (restoreTarget.isFailed())
+            throw restoreTarget.getFailure();
+        return restoreTarget.getStatistics();
+    }
+
+    private void copy(File source, List<SnapshotTarget> targets, ChangeJournal.Changes changes, boolean fromSnapshot, boolean snapshotRoot) throws Exception {
+        CopyJob job = new CopyJob(source, targets, changes, fromSnapshot, snapshotRoot);
+        ForkJoinPool traversalPool = new ForkJoinPool(traversalThreads);
+        // Bounded so the walk cannot run arbitrarily far ahead of the copies. When the queue is full the traversal
+        // thread copies the file itself, which also throttles the walk.
+        ThreadPoolExecutor copyPool = new ThreadPoolExecutor(copyThreads, copyThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(copyThreads * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        File[] snapshots = new File[targets.size()];
+        File[] previous = new File[targets.size()];
+        for (int i = 0; i < targets.size(); i++) {
+            snapshots[i] = targets.get(i).getWorkingDirectory();
+            previous[i] = targets.get(i).getPrevious();
+        }
+
+        long startTime = System.nanoTime();
+        try {
+            traversalPool.invoke(new DirectoryTask(job, copyPool, source, "", snapshots, previous, changes == null, null));
+        } finally {
+            job.scanner.close();
+            copyPool.shutdown();
+            traversalPool.shutdown();
+            copyPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            for (DestinationWriter writer : job.writers) {
+                writer.finish();
+            }
+            // Nothing may still be reading the previous manifests when they are unmapped
+            traversalPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            for (SnapshotManifest previousManifest : job.previousManifests) {
+                if (previousManifest != null)
+                    previousManifest.close();
+            }
+        }
+        long wallNanos = System.nanoTime() - startTime;
+        for (SnapshotTarget target : targets) {
+            target.getStatistics().setWallNanos(wallNanos);
+        }
+
+        if (job.packWriters != null) {
+            for (int i = 0; i < targets.size(); i++) {
+                if (targets.get(i).isFailed()) {
+                    job.packWriters[i].abandon();
+                    continue;
+                }
+                try {
+                    job.packWriters[i].finish();
+                } catch (IOException exc) {
+                    // Unlike a manifest, the snapshot is no good without it
+                    logger.log("Failed to write pack index for " + targets.get(i).getSnapshot().getAbsolutePath() + ": " + exc.getMessage());
+                    targets.get(i).fail(exc);
+                }
+            }
+        }
+        if (job.manifestWriters != null) {
+            for (int i = 0; i < targets.size(); i++) {
+                if (targets.get(i).isFailed()) {
+                    job.manifestWriters[i].abandon();
+                    continue;
+                }
+                try {
+                    job.manifestWriters[i].finish();
+                } catch (IOException exc) {
+                    logger.log("Failed to write manifest for " + targets.get(i).getSnapshot().getAbsolutePath() + ": " + exc.getMessage());
+                }
+            }
+        }
+    }
+
+    public int getTraversalThreads() {
+        return traversalThreads;
+    }
+
+    public int getCopyThreads() {
+        return copyThreads;
+    }
+
+    /*
+        State shared by every task working on a single copy.
+     */
+    private class CopyJob {
+        private final File source;
+        private final List<SnapshotTarget> targets;
+        private final ChangeJournal.Changes changes;
+        private final List<DestinationWriter> writers = new ArrayList<DestinationWriter>();
+        // Indexed like targets. The manifest writers are null when manifests are disabled, and a previous manifest
+        // is null when that target has no previous snapshot or it has no manifest.
+        private final ManifestWriter[] manifestWriters;
+        private final SnapshotManifest[] previousManifests;
+        private final boolean usesManifests;
+        // Indexed like targets, or null when nothing is packed
+        private final SnapshotPack.Writer[] packWriters;
+        // Whether the source is a snapshot or a directory inside one. Its .sjdbignore files were already applied when
+        // it was taken, so they are copied like any other file.
+        private final boolean fromSnapshot;
+        // Whether the source is the root of a snapshot, whose own files there are to be left out
+        private final boolean snapshotRoot;
+        private final DirectoryScanner scanner;
+
+        private CopyJob(File source, List<SnapshotTarget> targets, ChangeJournal.Changes changes, boolean fromSnapshot, boolean snapshotRoot) {
+            this.source = source;
+            this.targets = targets;
+            this.changes = changes;
+            this.fromSnapshot = fromSnapshot;
+            this.snapshotRoot = snapshotRoot;
+            this.manifestWriters = writeManifests ? new ManifestWriter[targets.size()] : null;
+            this.previousManifests = new SnapshotManifest[targets.size()];
+            this.packWriters = packThreshold != PACK_DISABLED && !fromSnapshot ? new SnapshotPack.Writer[targets.size()] : null;
+            boolean anyPreviousManifest = false;
+            for (int i = 0; i < targets.size(); i++) {
+                SnapshotTarget target = targets.get(i);
+                if (manifestWriters != null)
+                    manifestWriters[i] = new ManifestWriter(target.getWorkingDirectory());
+                if (packWriters != null)
+                    packWriters[i] = new SnapshotPack.Writer(target.getWorkingDirectory(), target.getThrottle());
+                if (target.isResumed())
+                    deleteManifestLeftovers(target.getWorkingDirectory());
+                if (target.getPrevious() != null) {
+                    previousManifests[i] = SnapshotManifest.open(target.getPrevious());
+                    if (previousManifests[i] != null) {
+                        logger.log("Comparing against manifest " + previousManifests[i].getFile().getAbsolutePath() + " with " + previousManifests[i].getEntryCount() + " entries");
+                        anyPreviousManifest = true;
+                    }
+                }
+            }
+            this.usesManifests = writeManifests || anyPreviousManifest;
+            this.scanner = new DirectoryScanner(usesManifests, Math.max(2, traversalThreads));
+            // A single target is written directly by the copy threads and never needs a writer
+            if (targets.size() > 1) {
+                for (int i = 0; i < targets.size(); i++) {
+                    writers.add(new DestinationWriter(targets.get(i), manifestWriters == null ? null : manifestWriters[i]));
+                }
+            }
+        }
+
+        private boolean isAborted() {
+            for (SnapshotTarget target : targets) {
+                if (!target.isFailed())
+                    return false;
+            }
+            return true;
+        }
+
+        /*
+          Record a file that is now complete for target i in its manifest and
+          its checkpoint.
+        */
+        private void fileCompleted(int i, String path, long size, long lastModified, long inode, byte[] hash) {
+            checkpoint(targets.get(i), path, size, lastModified, hash);
+            addToManifest(i, path, size, lastModified, inode, hash);
+        }
+
+        private void addToManifest(int i, String path, long size, long lastModified, long inode, byte[] hash) {
+            if (manifestWriters == null)
+                return;
+            try {
+                manifestWriters[i].add(path, size, lastModified, inode, hash);
+            } catch (IOException exc) {
+                logger.log("Failed to record " + path + " in manifest: " + exc.getMessage());
+            }
+        }
+
+        private void checkDisconnected(SnapshotTarget target, Exception exc) {
+            if (!target.isFailed() && isDisconnected(target.getWorkingDirectory(), exc)) {
+                logger.log("Destination " + target.getDestination().getAbsolutePath() + " seems to be disconnected, aborting copy to it!");
+                target.fail(new Exception("Failed disconnected check!", exc));
+            }
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CopyJob job;
+        private final ThreadPoolExecutor copyPool;
+        private final File source;
+        // The path of source relative to the root of the copy using '/' separators, empty for the root itself
+        private final String relativePath;
+        // Indexed like job.targets, null where a target is not taking part in this subtree
+        private final File[] destinations;
+        private final File[] previous;
+        // Whether everything in this subtree has to be looked at, as opposed to only what the journal says changed
+        private final boolean rescanAll;
+        // The rules of every .sjdbignore above this directory, or null
+        private final IgnoreRules ignoreRules;
+
+        private DirectoryTask(CopyJob job, ThreadPoolExecutor copyPool, File source, String relativePath, File[] destinations, File[] previous, boolean rescanAll, IgnoreRules ignoreRules) {
+            this.job = job;
+            this.copyPool = copyPool;
+            this.source = source;
+            this.relativePath = relativePath;
+            this.destinations = destinations;
+            this.previous = previous;
+            this.rescanAll = rescanAll;
+            this.ignoreRules = ignoreRules;
+        }
+
+        @Override
+        protected void compute() {
+            if (job.isAborted())
+                return;
+            // When nothing was added, removed or modified directly in here, every file is the one in the previous
+            // snapshot and only the subdirectories need a closer look
+            final boolean listingChanged = rescanAll || job.changes.isListingChanged(relativePath);
+
+            sourceThrottle.acquire(0);
+            long scanStart = System.nanoTime();
+            DirectoryScanner.Listing listing;
+            try {
+                listing = job.scanner.list(source);
+            } catch (IOException exc) {
+                logger.log("Failed to list directory " + source.getAbsolutePath());
+                return;
+            }
+            IgnoreRules rules = ignoreRules;
+            boolean rulesChanged = false;
+            if (!job.fromSnapshot) {
+                // What the journal says is unchanged below here may have been left out by different rules last time
+                rulesChanged = recordIgnoreFile(listing.getIgnoreFile()) && !rescanAll;
+                rules = IgnoreRules.forDirectory(source, listing.getIgnoreFile() == null ? null : listing.getIgnoreFile().getFile(), relativePath, ignoreRules, logger);
+                // We are done! Do not copy this directory at all!
+                if (rules != null && rules.excludesDirectory())
+                    return;
+            }
+
+            // Everything in here that is to be copied
+            List<DirectoryScanner.Entry> entries = new ArrayList<DirectoryScanner.Entry>();
+            for (DirectoryScanner.Entry entry : listing.getEntries()) {
+                if (job.snapshotRoot && relativePath.isEmpty() && SnapshotManifest.isSnapshotFile(entry.getName()))
+                    continue;
+                // Is the file hidden? If so, skip!
+                if (entry.isHidden() && ignoreHidden) {
+                    logger.log("Ignoring " + entry.getFile().getAbsolutePath() + " since it is hidden!");
+                    continue;
+                }
+                if (rules != null && rules.isIgnored(relativePath.isEmpty() ? entry.getName() : relativePath + "/" + entry.getName(), entry.isDirectory())) {
+                    if (entry.isDirectory())
+                        logger.log("Ignoring directory " + entry.getFile().getAbsolutePath() + " because of sjdbignore rules!");
+                    continue;
+                }
+                entries.add(entry);
+            }
+            // Stopped before any work is handed out, since the copy pool runs copies on this thread when it is full
+            long scanNanos = System.nanoTime() - scanStart;
+            for (SnapshotTarget target : job.targets) {
+                target.getStatistics().directoryScanned(scanNanos);
+            }
+
+            // An unfinished attempt may have left behind files that are gone from the source by now
+            for (int i = 0; i < destinations.length; i++) {
+                if (destinations[i] != null && job.targets.get(i).isResumed())
+                    removeStale(destinations[i], entries);
+            }
+
+            // Work out what each previous manifest knows about the entries of this directory
+            SnapshotManifest.Entry[][] previousEntries = new SnapshotManifest.Entry[destinations.length][];
+            byte[][] names = null;
+            for (int i = 0; i < destinations.length; i++) {
+                if (job.previousManifests[i] == null || destinations[i] == null)
+                    continue;
+                if (names == null) {
+                    names = sortByName(entries);
+                }
+                previousEntries[i] = mergeWithManifest(job.previousManifests[i], names, job.targets.get(i));
+            }
+
+            if (job.packWriters != null && !relativePath.isEmpty() && holdsUnpackedFile(entries))
+                createDestinations();
+
+            List<RecursiveAction> subdirectories = new ArrayList<RecursiveAction>();
+            List<Future<?>> copies = new ArrayList<Future<?>>();
+            for (int j = 0; j < entries.size(); j++) {
+                final DirectoryScanner.Entry entry = entries.get(j);
+                final File f = entry.getFile();
+                if (job.isAborted())
+                    break;
+
+                final String childPath = relativePath.isEmpty() ? f.getName() : relativePath + "/" + f.getName();
+                final File[] equivalents = new File[destinations.length];
+                final File[] previousEquivalents = new File[destinations.length];
+                final SnapshotManifest.Entry[] fileEntries = new SnapshotManifest.Entry[destinations.length];
+                for (int i = 0; i < destinations.length; i++) {
+                    if (destinations[i] != null && !job.targets.get(i).isFailed()) {
+                        equivalents[i] = new File(destinations[i], f.getName());
+                        if (previous[i] != null)
+                            previousEquivalents[i] = new File(previous[i], f.getName());
+                        if (previousEntries[i] != null)
+                            fileEntries[i] = previousEntries[i][j];
+                    }
+                }
+
+                if (entry.isDirectory()) {
+                    for (int i = 0; i < equivalents.length; i++) {
+                        if (equivalents[i] == null)
+                            continue;
+                        if (job.packWriters != null) {
+                            // Created later by its own task, if it turns out to need it
+                            addPackedDirectory(i, childPath, entry.getLastModified());
+                            continue;
+                        }
+                        // A resumed snapshot may already have it, or have a file in its place
+                        if (equivalents[i].isFile() && job.targets.get(i).isResumed())
+                            equivalents[i].delete();
+                        if (!equivalents[i].mkdirs() && !equivalents[i].isDirectory()) {
+                            logger.log("Failed to create directory at " + equivalents[i].getAbsolutePath());
+                            job.checkDisconnected(job.targets.get(i), new IOException("Failed to create directory at " + equivalents[i].getAbsolutePath()));
+                            equivalents[i] = null;
+                        }
+                        // With a manifest there is no need to check the previous snapshot, a failed link falls back to a copy
+                        if (previousEquivalents[i] != null && job.previousManifests[i] == null && !previousEquivalents[i].isDirectory())
+                            previousEquivalents[i] = null;
+                    }
+                    boolean childRescanAll = rescanAll || rulesChanged || job.changes.isTreeChanged(childPath);
+                    if (childRescanAll || job.changes.needsVisit(childPath)) {
+                        job.scanner.prefetch(f);
+                        subdirectories.add(new DirectoryTask(job, copyPool, f, childPath, equivalents, previousEquivalents, childRescanAll, rules));
+                    } else {
+                        subdirectories.add(new LinkTreeTask(job, copyPool, childPath, equivalents, previousEquivalents));
+                    }
+                } else if (entry.isFile()) {
+                    copies.add(copyPool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            copyFile(entry, childPath, equivalents, previousEquivalents, fileEntries, !listingChanged);
+                        }
+                    }));
+                } else {
+                    logger.log("Ignoring unrecognized entity at " + f.getAbsolutePath());
+                }
+            }
+            invokeAll(subdirectories);
+            for (Future<?> copy : copies) {
+                try {
+                    copy.get();
+                } catch (InterruptedException | ExecutionException exc) {
+                    for (SnapshotTarget target : job.targets) {
+                        target.fail(exc);
+                    }
+                }
+            }
+        }
+
+        /*
+          Whether any of entries is a file too large to be packed.
+        */
+        private boolean holdsUnpackedFile(List<DirectoryScanner.Entry> entries) {
+            for (DirectoryScanner.Entry entry : entries) {
+                if (entry.isFile() && entry.getSize() >= packThreshold)
+                    return true;
+            }
+            return false;
+        }
+
+        /*
+          Create this directory in every target, which packing put off until a
+          file that is not packed needs it.
+        */
+        private void createDestinations() {
+            for (int i = 0; i < destinations.length; i++) {
+                if (destinations[i] == null || job.targets.get(i).isFailed())
+                    continue;
+                if (!destinations[i].mkdirs() && !destinations[i].isDirectory()) {
+                    logger.log("Failed to create directory at " + destinations[i].getAbsolutePath());
+                    job.checkDisconnected(job.targets.get(i), new IOException("Failed to create directory at " + destinations[i].getAbsolutePath()));
+                }
+            }
+        }
+
+        private void addPackedDirectory(int i, String path, long lastModified) {
+            SnapshotTarget target = job.targets.get(i);
+            try {
+                job.packWriters[i].addDirectory(path, lastModified);
+            } catch (IOException exc) {
+                logger.log("Failed to record directory " + path + " in pack index: " + exc.getMessage());
+                job.checkDisconnected(target, exc);
+            }
+        }
+
+        /*
+          Remove everything in destination that is not among the entries to copy,
+          apart from the snapshot's own files at its root.
+        */
+        private void removeStale(File destination, List<DirectoryScanner.Entry> entries) {
+            String[] existing = destination.list();
+            if (existing == null)
+                return;
+            Set<String> names = new HashSet<String>();
+            for (DirectoryScanner.Entry entry : entries) {
+                names.add(entry.getName());
+            }
+            for (String name : existing) {
+                if (names.contains(name) || (relativePath.isEmpty() && SnapshotManifest.isSnapshotFile(name)))
+                    continue;
+                File stale = new File(destination, name);
+                try {
+                    if (stale.isDirectory())
+                        FileUtils.deleteDirectory(stale);
+                    else
+                        Files.delete(stale.toPath());
+                } catch (IOException exc) {
+                    logger.log("Failed to remove " + stale.getAbsolutePath() + " left by an unfinished copy: " + exc.getMessage());
+                }
+            }
+        }
+
+        /*
+          Sort entries by name in manifest order, returning the UTF-8 names in the same order.
+        */
+        private byte[][] sortByName(List<DirectoryScanner.Entry> entries) {
+            final Map<DirectoryScanner.Entry, byte[]> encoded = new HashMap<DirectoryScanner.Entry, byte[]>();
+            for (DirectoryScanner.Entry entry : entries) {
+                encoded.put(entry, entry.getName().getBytes(StandardCharsets.UTF_8));
+            }
+            Collections.sort(entries, new Comparator<DirectoryScanner.Entry>() {
+                @Override
+                public int compare(DirectoryScanner.Entry a, DirectoryScanner.Entry b) {
+                    return SnapshotManifest.comparePaths(encoded.get(a), encoded.get(b));
+                }
+            });
+            byte[][] names = new byte[entries.size()][];
+            for (int i = 0; i < entries.size(); i++) {
+                names[i] = encoded.get(entries.get(i));
+            }
+            return names;
+        }
+
+        /*
+          Record this directory's .sjdbignore, given as its listing entry or null
+          if it has none, for every target taking part. Returns whether it differs
+          from the one seen by the last copy to any of their destinations.
+        */
+        private boolean recordIgnoreFile(DirectoryScanner.Entry ignoreFile) {
+            String fingerprint = ignoreFile == null ? null : ignoreFile.getSize() + ":" + ignoreFile.getLastModified();
+            boolean changed = false;
+            for (int i = 0; i < destinations.length; i++) {
+                if (destinations[i] == null)
+                    continue;
+                File destination = job.targets.get(i).getDestination();
+                Map<String, String> fingerprints = ignoreFingerprints.get(destination);
+                if (fingerprints == null) {
+                    ignoreFingerprints.putIfAbsent(destination, new ConcurrentHashMap<String, String>());
+                    fingerprints = ignoreFingerprints.get(destination);
+                }
+                String previousFingerprint = fingerprint == null ? fingerprints.remove(relativePath) : fingerprints.put(relativePath, fingerprint);
+                if (fingerprint == null ? previousFingerprint != null : !fingerprint.equals(previousFingerprint))
+                    changed = true;
+            }
+            return changed;
+        }
+
+        /*
+          Walk the entries the manifest has for this directory alongside the sorted
+          names of its live entries. Returns the manifest entry for each live file
+          the manifest knows about, and counts everything the manifest has that is
+          no longer there as deleted. Subdirectories are skipped over as a whole,
+          they are merged by their own task.
+        */
+        private SnapshotManifest.Entry[] mergeWithManifest(SnapshotManifest manifest, byte[][] names, SnapshotTarget target) {
+            SnapshotManifest.Entry[] entries = new SnapshotManifest.Entry[names.length];
+            byte[] prefix = relativePath.isEmpty() ? new byte[0] : (relativePath + "/").getBytes(StandardCharsets.UTF_8);
+            long position = manifest.lowerBound(prefix);
+            long end = prefix.length == 0 ? manifest.getEntryCount() : manifest.endOfDirectory(prefix);
+            long deleted = 0;
+            int live = 0;
+            while (position < end) {
+                byte[] path = manifest.getPath(position);
+                int slash = prefix.length;
+                while (slash < path.length && path[slash] != '/') {
+                    slash++;
+                }
+                byte[] name = Arrays.copyOfRange(path, prefix.length, slash);
+                while (live < names.length && SnapshotManifest.comparePaths(names[live], name) < 0) {
+                    live++;
+                }
+                boolean stillThere = live < names.length && Arrays.equals(names[live], name);
+                if (slash == path.length) {
+                    if (stillThere)
+                        entries[live] = manifest.get(position);
+                    else
+                        deleted++;
+                    position++;
+                } else {
+                    long subdirectoryEnd = manifest.endOfDirectory(Arrays.copyOf(path, slash + 1));
+                    if (!stillThere)
+                        deleted += subdirectoryEnd - position;
+                    position = subdirectoryEnd;
+                }
+            }
+            target.getStatistics().filesDeleted(deleted);
+            return entries;
+        }
+
+        private void copyFile(DirectoryScanner.Entry entry, String path, File[] equivalents, File[] previousEquivalents, SnapshotManifest.Entry[] previousEntries, boolean assumeUnchanged) {
+            File f = entry.getFile();
+            long size = entry.getSize();
+            long lastModified = entry.getLastModified();
+            long inode = entry.getInode();
+
+            // Link whatever is unchanged, and collect the targets that actually need the data
+            List<Integer> needData = new ArrayList<Integer>();
+            for (int i = 0; i < equivalents.length; i++) {
+                SnapshotTarget target = job.targets.get(i);
+                if (equivalents[i] == null || target.isFailed())
+                    continue;
+                if (target.isResumed() && !resume(i, path, size, lastModified, inode, equivalents[i]))
+                    continue;
+                long linkStart = System.nanoTime();
+                boolean unchanged;
+                byte[] hash = null;
+                if (job.previousManifests[i] != null) {
+                    unchanged = previousEntries[i] != null && (assumeUnchanged || previousEntries[i].matches(size, lastModified, inode));
+                    if (unchanged)
+                        hash = previousEntries[i].getHash();
+                } else if (assumeUnchanged) {
+                    unchanged = previousEquivalents[i] != null;
+                } else {
+                    unchanged = previousEquivalents[i] != null && isUnchanged(size, lastModified, previousEquivalents[i]);
+                }
+                if (unchanged && previousEquivalents[i] != null && tryLink(previousEquivalents[i], equivalents[i], target.getThrottle())) {
+                    target.getStatistics().fileLinked(size, System.nanoTime() - linkStart);
+                    fileCompleted(i, path, size, lastModified, inode, hash);
+                } else {
+                    needData.add(i);
+                }
+            }
+
+            if (job.packWriters != null && size < packThreshold && !needData.isEmpty()) {
+                packFile(f, path, size, lastModified, inode, needData);
+            } else if (needData.size() == 1) {
+                int i = needData.get(0);
+                SnapshotTarget target = job.targets.get(i);
+                File equivalent = equivalents[i];
+                long copyStart = System.nanoTime();
+                try {
+                    FileCopier.Delta delta = null;
+                    if (deltaThreshold != DELTA_DISABLED && size >= deltaThreshold && previousEquivalents[i] != null && previousEquivalents[i].isFile())
+                        delta = fileCopier.copyDelta(f, equivalent, previousEquivalents[i], job.manifestWriters != null, sourceThrottle, target.getThrottle());
+                    byte[] hash;
+                    if (delta != null) {
+                        target.getStatistics().fileDeltaCopied(equivalent.length(), delta.getBytesWritten(), System.nanoTime() - copyStart);
+                        hash = delta.getHash();
+                    } else {
+                        hash = fileCopier.copy(f, equivalent, job.manifestWriters != null, sourceThrottle, target.getThrottle());
+                        target.getStatistics().fileCopied(equivalent.length(), System.nanoTime() - copyStart);
+                    }
+                    fileCompleted(i, path, size, lastModified, inode, hash);
+                } catch (Exception exc) {
+                    logger.log("Failed to copy entity at " + f.getAbsolutePath() + ": " + exc.getMessage());
+                    target.getStatistics().fileFailed();
+                    job.checkDisconnected(target, exc);
+                }
+            } else if (needData.size() > 1) {
+                fanOut(f, path, size, lastModified, inode, equivalents, needData);
+            }
+        }
+
+        private void fileCompleted(int i, String path, long size, long lastModified, long inode, byte[] hash) {
+            job.fileCompleted(i, path, size, lastModified, inode, hash);
+        }
+
+        /*
+          Deal with whatever an unfinished attempt left at equivalent. Returns
+          true if the file still has to be linked or copied, or false if the
+          earlier attempt's copy is kept or the file cannot be replaced.
+        */
+        private boolean resume(int i, String path, long size, long lastModified, long inode, File equivalent) {
+            SnapshotTarget target = job.targets.get(i);
+            SnapshotCheckpoint.Entry completed = target.getCheckpoint().getCompleted(path);
+            if (completed != null && completed.matches(size, lastModified) && equivalent.isFile() && equivalent.length() == size
+                    && (job.manifestWriters == null || completed.getHash() != null)) {
+                target.getStatistics().fileResumed(size);
+                // Already in the checkpoint, so only the manifest needs it
+                job.addToManifest(i, path, size, lastModified, inode, completed.getHash());
+                return false;
+            }
+            // Never write into it, it may be a link to a file in the previous snapshot
+            try {
+                Files.deleteIfExists(equivalent.toPath());
+                return true;
+            } catch (IOException exc) {
+                logger.log("Failed to replace " + equivalent.getAbsolutePath() + " left by an unfinished copy: " + exc.getMessage());
+                target.getStatistics().fileFailed();
+                job.checkDisconnected(target, exc);
+                return false;
+            }
+        }
+
+        /*
+          Read the small file f whole and append it to the pack of every target
+          in indices.
+        */
+        private void packFile(File f, String path, long size, long lastModified, long inode, List<Integer> indices) {
+            long readStart = System.nanoTime();
+            byte[] data;
+            try {
+                sourceThrottle.acquire(size);
+                data = Files.readAllBytes(f.toPath());
+                sourceThrottle.recordLatency(System.nanoTime() - readStart);
+            } catch (IOException exc) {
+                logger.log("Failed to read entity at " + f.getAbsolutePath() + ": " + exc.getMessage());
+                for (int i : indices) {
+                    job.targets.get(i).getStatistics().fileFailed();
+                }
+                return;
+            }
+            byte[] hash = FileCopier.newDigest().digest(data);
+            for (int i : indices) {
+                SnapshotTarget target = job.targets.get(i);
+                try {
+                    job.packWriters[i].add(path, data, lastModified, hash);
+                    target.getStatistics().filePacked(data.length, System.nanoTime() - readStart);
+                    fileCompleted(i, path, data.length, lastModified, inode, hash);
+                } catch (IOException exc) {
+                    logger.log("Failed to pack entity at " + f.getAbsolutePath() + ": " + exc.getMessage());
+                    target.getStatistics().fileFailed();
+                    job.checkDisconnected(target, exc);
+                }
+            }
+        }
+
+        /*
+          Read f once and hand each chunk to the writer of every target in indices.
+        */
+        private void fanOut(File f, String path, long size, long lastModified, long inode, File[] equivalents, List<Integer> indices) {
+            List<PendingFile> pendingFiles = new ArrayList<PendingFile>();
+            for (int i : indices) {
+                PendingFile pendingFile = new PendingFile(job.writers.get(i), equivalents[i], path, size, lastModified, inode);
+                pendingFile.open();
+                pendingFiles.add(pendingFile);
+            }
+
+            boolean readFailed = false;
+            MessageDigest digest = job.manifestWriters == null ? null : FileCopier.newDigest();
+            try (InputStream inputStream = new FileInputStream(f)) {
+                // Only as much as the listing saw is read, so every read is charged for what it actually moves and
+                // there is no extra read just to find the end
+                long remaining = size;
+                while (remaining > 0) {
+                    // Each chunk is a fresh array since the writers hold on to it until they get around to it
+                    byte[] chunk = new byte[(int) Math.min(FAN_OUT_CHUNK_SIZE, remaining)];
+                    sourceThrottle.acquire(chunk.length);
+                    long readStart = System.nanoTime();
+                    int read = inputStream.read(chunk);
+                    sourceThrottle.recordLatency(System.nanoTime() - readStart);
+                    if (read < 0)
+                        break;
+                    remaining -= read;
+                    if (digest != null)
+                        digest.update(chunk, 0, read);
+                    for (PendingFile pendingFile : pendingFiles) {
+                        pendingFile.write(chunk, read);
+                    }
+                }
+            } catch (IOException exc) {
+                logger.log("Failed to read entity at " + f.getAbsolutePath() + ": " + exc.getMessage());
+                readFailed = true;
+            }
+
+            byte[] hash = digest == null ? null : digest.digest();
+            for (PendingFile pendingFile : pendingFiles) {
+                pendingFile.close(readFailed, hash);
+            }
+        }
+    }
+
+    /*
+        Recreates a subtree the journal says did not change by hard linking everything in it from each target's
+        previous snapshot. With a previous manifest the files to link come straight from it, otherwise the previous
+        snapshot is walked. Either way the source is not looked at unless a link fails and the file has to be copied.
+     */
+    private class LinkTreeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // How many links are handed to the copy pool at a time
+        private static final int BATCH_SIZE = 256;
+
+        private final CopyJob job;
+        private final ThreadPoolExecutor copyPool;
+        private final String relativePath;
+        private final File[] destinations;
+        private final File[] previous;
+
+        private LinkTreeTask(CopyJob job, ThreadPoolExecutor copyPool, String relativePath, File[] destinations, File[] previous) {
+            this.job = job;
+            this.copyPool = copyPool;
+            this.relativePath = relativePath;
+            this.destinations = destinations;
+            this.previous = previous;
+        }
+
+        @Override
+        protected void compute() {
+            List<Future<?>> batches = new ArrayList<Future<?>>();
+            for (int i = 0; i < destinations.length; i++) {
+                if (destinations[i] == null || previous[i] == null || job.targets.get(i).isFailed())
+                    continue;
+                if (job.previousManifests[i] != null)
+                    linkFromManifest(i, batches);
+                else
+                    linkFromDirectory(i, previous[i], destinations[i], relativePath, batches);
+            }
+            for (Future<?> batch : batches) {
+                try {
+                    batch.get();
+                } catch (InterruptedException | ExecutionException exc) {
+                    for (SnapshotTarget target : job.targets) {
+                        target.fail(exc);
+                    }
+                }
+            }
+        }
+
+        private void linkFromManifest(final int i, List<Future<?>> batches) {
+            // The manifest only lists files, so directories come from the previous snapshot, or empty ones would be lost
+            final boolean directoriesCreated = createDirectories(previous[i], destinations[i]);
+            final SnapshotManifest manifest = job.previousManifests[i];
+            byte[] prefix = (relativePath + "/").getBytes(StandardCharsets.UTF_8);
+            long end = manifest.endOfDirectory(prefix);
+            for (long position = manifest.lowerBound(prefix); position < end; position += BATCH_SIZE) {
+                final long batchStart = position;
+                final long batchEnd = Math.min(end, position + BATCH_SIZE);
+                batches.add(copyPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        SnapshotTarget target = job.targets.get(i);
+                        for (long p = batchStart; p < batchEnd && !target.isFailed(); p++) {
+                            SnapshotManifest.Entry entry = manifest.get(p);
+                            String path = entry.getPath();
+                            File destination = new File(target.getWorkingDirectory(), path);
+                            if (!directoriesCreated)
+                                destination.getParentFile().mkdirs();
+                            link(i, new File(target.getPrevious(), path), destination, path, entry.getSize(), entry.getLastModified(), entry.getInode(), entry.getHash());
+                        }
+                    }
+                }));
+            }
+        }
+
+        /*
+          Recreate every directory below previousDirectory in destinationDirectory.
+          Returns false if any of them could not be listed or created.
+        */
+        private boolean createDirectories(File previousDirectory, File destinationDirectory) {
+            File[] previousFiles = previousDirectory.listFiles();
+            if (previousFiles == null) {
+                logger.log("Failed to list directory " + previousDirectory.getAbsolutePath());
+                return false;
+            }
+            boolean created = true;
+            for (File previousFile : previousFiles) {
+                if (!previousFile.isDirectory())
+                    continue;
+                File equivalent = new File(destinationDirectory, previousFile.getName());
+                if (equivalent.mkdirs() || equivalent.isDirectory()) {
+                    created &= createDirectories(previousFile, equivalent);
+                } else {
+                    logger.log("Failed to create directory at " + equivalent.getAbsolutePath());
+                    created = false;
+                }
+            }
+            return created;
+        }
+
+        private void linkFromDirectory(final int i, File previousDirectory, File destinationDirectory, String path, List<Future<?>> batches) {
+            File[] previousFiles = previousDirectory.listFiles();
+            if (previousFiles == null) {
+                logger.log("Failed to list directory " + previousDirectory.getAbsolutePath());
+                return;
+            }
+            for (final File previousFile : previousFiles) {
+                final String childPath = path + "/" + previousFile.getName();
+                final File equivalent = new File(destinationDirectory, previousFile.getName());
+                if (previousFile.isDirectory()) {
+                    if (equivalent.mkdirs())
+                        linkFromDirectory(i, previousFile, equivalent, childPath, batches);
+                    else
+                        logger.log("Failed to create directory at " + equivalent.getAbsolutePath());
+                } else if (previousFile.isFile()) {
+                    batches.add(copyPool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            link(i, previousFile, equivalent, childPath, previousFile.length(), previousFile.lastModified(), 0, null);
+                        }
+                    }));
+                }
+            }
+        }
+
+        private void link(int i, File previousFile, File destination, String path, long size, long lastModified, long inode, byte[] hash) {
+            SnapshotTarget target = job.targets.get(i);
+            long start = System.nanoTime();
+            if (tryLink(previousFile, destination, target.getThrottle())) {
+                target.getStatistics().fileLinked(size, System.nanoTime() - start);
+                job.fileCompleted(i, path, size, lastModified, inode, hash);
+                return;
+            }
+            // The previous snapshot is missing the file after all, so go back to the source
+            File sourceFile = new File(job.source, path);
+            try {
+                byte[] copiedHash = fileCopier.copy(sourceFile, destination, job.manifestWriters != null, sourceThrottle, target.getThrottle());
+                target.getStatistics().fileCopied(destination.length(), System.nanoTime() - start);
+                job.fileCompleted(i, path, sourceFile.length(), sourceFile.lastModified(), SnapshotManifest.inodeOf(sourceFile), copiedHash);
+            } catch (Exception exc) {
+                logger.log("Failed to copy entity at " + sourceFile.getAbsolutePath() + ": " + exc.getMessage());
+                target.getStatistics().fileFailed();
+                job.checkDisconnected(target, exc);
+            }
+        }
+    }
+
+    /*
+        Writes data for a single target on its own thread. The reader may only get FAN_OUT_MAX_QUEUED_CHUNKS ahead of
+        it, and drops the target altogether if it does not make room within FAN_OUT_STALL_TIMEOUT_MILLIS, so a target
+        that cannot keep up holds back the others for at most that long once.
+     */
+    private class DestinationWriter {
+        private final SnapshotTarget target;
+        private final ManifestWriter manifestWriter;
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+        private final Semaphore queuedChunks = new Semaphore(FAN_OUT_MAX_QUEUED_CHUNKS);
+
+        private DestinationWriter(SnapshotTarget target, ManifestWriter manifestWriter) {
+            this.target = target;
+            this.manifestWriter = manifestWriter;
+        }
+
+        private void submit(final Runnable operation) {
+            if (target.isFailed())
+                return;
+            try {
+                if (!queuedChunks.tryAcquire(FAN_OUT_STALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    logger.log("Destination " + target.getDestination().getAbsolutePath() + " is not keeping up, dropping it from this copy!");
+                    target.fail(new Exception("Destination fell more than " + FAN_OUT_MAX_QUEUED_CHUNKS + " chunks behind!"));
+                    return;
+                }
+            } catch (InterruptedException exc) {
+                target.fail(exc);
+                return;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!target.isFailed())
+                            operation.run();
+                    } finally {
+                        queuedChunks.release();
+                    }
+                }
+            });
+        }
+
+        /*
+          Wait for everything queued to be written. A failed target may be stuck in a write to a device that is gone,
+          so it is not waited on.
+        */
+        private void finish() throws InterruptedException {
+            if (target.isFailed()) {
+                executor.shutdownNow();
+                return;
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (target.isFailed()) {
+                    executor.shutdownNow();
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+        A file being written by a DestinationWriter. Only ever touched on the writer's thread once opened.
+     */
+    private class PendingFile {
+        private final DestinationWriter writer;
+        private final File file;
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final long inode;
+        private FileOutputStream outputStream;
+        private long bytesWritten;
+        private long writeNanos;
+        private boolean failed;
+
+        private PendingFile(DestinationWriter writer, File file, String path, long size, long lastModified, long inode) {
+            this.writer = writer;
+            this.file = file;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+        }
+
+        private void open() {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        outputStream = new FileOutputStream(file);
+                    } catch (IOException exc) {
+                        fail(exc);
+                    }
+                    writeNanos += System.nanoTime() - start;
+                }
+            });
+        }
+
+        private void write(final byte[] chunk, final int length) {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (failed)
+                        return;
+                    writer.target.getThrottle().acquire(length);
+                    long start = System.nanoTime();
+                    try {
+                        outputStream.write(chunk, 0, length);
+                        bytesWritten += length;
+                    } catch (IOException exc) {
+                        fail(exc);
+                    }
+                    writeNanos += System.nanoTime() - start;
+                }
+            });
+        }
+
+        private void close(final boolean readFailed, final byte[] hash) {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        if (outputStream != null)
+                            outputStream.close();
+                    } catch (IOException exc) {
+                        fail(exc);
+                    }
+                    if (readFailed && !failed) {
+                        failed = true;
+                        writer.target.getStatistics().fileFailed();
+                    }
+                    if (!failed) {
+                        // Match FileUtils.copyFile, which preserves the modification time
+                        file.setLastModified(lastModified);
+                        writer.target.getStatistics().fileCopied(bytesWritten, writeNanos + System.nanoTime() - start);
+                        checkpoint(writer.target, path, size, lastModified, hash);
+                        if (writer.manifestWriter != null) {
+                            try {
+                                writer.manifestWriter.add(path, size, lastModified, inode, hash);
+                            } catch (IOException exc) {
+                                logger.log("Failed to record " + path + " in manifest: " + exc.getMessage());
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        private void fail(IOException exc) {
+            if (failed)
+                return;
+            failed = true;
+            logger.log("Failed to write " + file.getAbsolutePath() + ": " + exc.getMessage());
+            writer.target.getStatistics().fileFailed();
+            if (isDisconnected(writer.target.getWorkingDirectory(), exc)) {
+                logger.log("Destination " + writer.target.getDestination().getAbsolutePath() + " seems to be disconnected, aborting copy to it!");
+                writer.target.fail(new Exception("Failed disconnected check!", exc));
+            }
+        }
+    }
+
+    private void checkpoint(SnapshotTarget target, String path, long size, long lastModified, byte[] hash) {
+        if (target.getCheckpoint() == null)
+            return;
+        try {
+            target.getCheckpoint().record(path, size, lastModified, hash);
+        } catch (IOException exc) {
+            // Only means the file is copied again should this attempt not finish
+            logger.log("Failed to record " + path + " in checkpoint: " + exc.getMessage());
+        }
+    }
+
+    /*
+      Remove the sorted runs and half-merged manifest an interrupted attempt
+      may have left in directory, so they do not end up in the snapshot.
+    */
+    private static void deleteManifestLeftovers(File directory) {
+        File[] leftovers = directory.listFiles();
+        if (leftovers == null)
+            return;
+        for (File leftover : leftovers) {
+            if (leftover.getName().startsWith(SnapshotManifest.FILE_NAME))
+                leftover.delete();
+        }
+    }
+
+    /*
+      FileUtils.copyFile preserves the modification time, so a file in the previous
+      snapshot with the same size and modification time as the source is taken to
+      be the same file.
+    */
+    private static boolean isUnchanged(long size, long lastModified, File previous) {
+        return previous.isFile() && previous.length() == size && previous.lastModified() == lastModified;
+    }
+
+    /*
+      Hard link target to existing, returning false if the destination does not
+      support hard links so the caller can fall back to a plain copy.
+    */
+    private boolean tryLink(File existing, File target, IoThrottle throttle) {
+        throttle.acquire(0);
+        try {
+            Files.createLink(target.toPath(), existing.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException exc) {
+            logger.log("Failed to link " + target.getAbsolutePath() + ", copying instead: " + exc.getMessage());
+            return false;
+        }
+    }
+
+    static boolean isDisconnected(File file, Exception exc) {
+        return !file.exists() || (exc.getMessage() != null && exc.getMessage().toLowerCase().contains("read-only")) || (exc.getMessage() != null && exc.getMessage().toLowerCase().contains("input/output"));
+    }
+}
@@ -1,58 +1,109 @@
-import org.apache.commons.io.FileUtils;
-
 import java.io.File;
-import java.nio.file.Paths;
-import java.util.concurrent.ScheduledExecutorService;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
-public class CopyIterationRunnable implements Runnable {
+public class CopyIterationRunnable implements JobScheduler.Job {
 
     private final ApplicationArguments applicationArguments;
     private final Logger logger;
-    private final ScheduledExecutorService scheduledExecutorService;
+    private final String name;
+    private final JobScheduler scheduler;
+    private final CopyEngine copyEngine;
+    private final SnapshotPruner snapshotPruner;
+    private final BackupMetrics metrics;
+    private final IoThrottle sourceThrottle;
+    // Parallel to the destinations in applicationArguments
+    private final IoThrottle[] destinationThrottles;
+    // Only watching in continuous mode, and null if the source cannot be watched
+    private final ChangeJournal changeJournal;
+    // The snapshots written by the last iteration, which are what the journal's changes are relative to
+    private Set<File> lastSnapshots = new HashSet<File>();
 
-    public CopyIterationRunnable(ApplicationArguments applicationArguments, ScheduledExecutorService scheduledExecutorService, Logger logger) {
+    public CopyIterationRunnable(String name, ApplicationArguments applicationArguments, JobScheduler scheduler, SnapshotPruner snapshotPruner, Logger logger, BackupMetrics metrics) {
+        this.name = name;
         this.applicationArguments = applicationArguments;
-        this.scheduledExecutorService = scheduledExecutorService;
+        this.scheduler = scheduler;
+        this.snapshotPruner = snapshotPruner;
         this.logger = logger;
+        this.metrics = metrics;
+        this.sourceThrottle = new IoThrottle("Source", applicationArguments.getSourceBytesPerSecond(), applicationArguments.getSourceOpsPerSecond(), applicationArguments.isAdaptiveThrottle(), logger);
+        this.destinationThrottles = new IoThrottle[applicationArguments.getDestinations().length];
+        for (int i = 0; i < destinationThrottles.length; i++) {
+            destinationThrottles[i] = new IoThrottle("Destination " + applicationArguments.getDestinations()[i].getAbsolutePath(), applicationArguments.getDestinationBytesPerSecond()[i], applicationArguments.getDestinationOpsPerSecond()[i], false, logger);
+        }
+        this.copyEngine = new CopyEngine(logger, applicationArguments.ignoreHidden(), applicationArguments.getTraversalThreads(), applicationArguments.getCopyThreads(), applicationArguments.writeManifests(), new FileCopier(applicationArguments.getCopyBackend(), logger, metrics.getFsyncLatency()), sourceThrottle, applicationArguments.getDeltaThreshold(), applicationArguments.getPackThreshold());
+        this.changeJournal = applicationArguments.isContinuousMode() ? ChangeJournal.start(applicationArguments.getSource(), logger) : null;
     }
 
     @Override
     public void run() {
         // Perform copy operation
+        long runStart = System.nanoTime();
         boolean successfulCopyOperation = false;
-        for (File destination : applicationArguments.getDestinations()) {
+        ChangeJournal.Changes changes = changeJournal == null ? null : changeJournal.drain();
+        if (changes != null) {
+            if (changes.isFullScan())
+                logger.log("Change journal asks for a full scan");
+            else
+                logger.log("Change journal recorded changes in " + changes.getChangedDirectoryCount() + " directories");
+        }
+        Set<File> currentSnapshots = new HashSet<File>();
+        List<SnapshotTarget> targets = new ArrayList<SnapshotTarget>();
+        for (int d = 0; d < applicationArguments.getDestinations().length; d++) {
+            File destination = applicationArguments.getDestinations()[d];
             logger.log("Processing destination " + destination.getAbsolutePath());
             if (destination.exists() && destination.isDirectory()) {
                 try {
-                    // First, delete oldest if necessary!
-                    File[] existingFiles = destination.listFiles();
-                    if (existingFiles.length >= applicationArguments.getKeepCount()) {
-                        logger.log("Too many entries in destination, removing oldest!");
-                        File oldest = existingFiles[0];
-                        for (File file : existingFiles) {
-                            if (!file.isDirectory())
-                                throw new Exception("Invalid file located in destination directory: " + file.getName());
-                            if (Long.parseLong(file.getName()) < Long.parseLong(oldest.getName())) {
-                                oldest = file;
-                            }
-                        }
-                        logger.log("Removing " + oldest.getAbsolutePath().toString());
-                        FileUtils.deleteDirectory(oldest);
-                        logger.log("Removed!");
-                    }
+                    // Find the newest snapshot before pruning so incremental mode has something to link against
+                    File newest = snapshotPruner.findNewest(destination);
+                    File previous = applicationArguments.isIncremental() ? newest : null;
+                    // An archive cannot be resumed, and neither can packs whose index was never written, so only a
+                    // plain directory snapshot is carried on with
+                    File unfinished = applicationArguments.isArchive() || applicationArguments.getPackThreshold() != CopyEngine.PACK_DISABLED ? null : snapshotPruner.findUnfinished(destination);
+                    snapshotPruner.discardUnfinished(destination, unfinished);
 
-                    // Now, put new copy!
-                    File timeDest = new File(destination.getAbsolutePath().toString() + "/" + System.currentTimeMillis());
-                    logger.log("Copying to " + timeDest.getAbsolutePath().toString());
-                    long startTime = System.currentTimeMillis();
+                    // Nothing to do if the journal says nothing changed since this destination's last snapshot
+                    if (unfinished == null && changes != null && changes.isEmpty() && newest != null && lastSnapshots.contains(newest)) {
+                        logger.log("No changes since " + newest.getAbsolutePath() + ", skipping!");
+                        currentSnapshots.add(newest);
+                        successfulCopyOperation = true;
+                        continue;
+                    }
 
-                    // Manually copy files to ignore exceptions on any single file...
-                    copyDirectory(applicationArguments.getSource(), timeDest, timeDest, applicationArguments.ignoreHidden());
+                    // First, delete oldest if necessary! In incremental mode this waits until after the copy so that
+                    // a keep count of one does not delete the snapshot we are about to link against.
+                    if (!applicationArguments.isIncremental()) {
+                        snapshotPruner.prune(destination, applicationArguments.getKeepCount() - 1);
+                    }
 
-                    long endTime = System.currentTimeMillis();
-                    logger.log("Copy complete! Took " + ((endTime - startTime) / 60000) + " minutes.");
-                    successfulCopyOperation = true;
+                    // Now, put new copy!
+                    if (applicationArguments.isArchive()) {
+                        targets.add(new SnapshotTarget(destination, new File(destination.getAbsolutePath(), System.currentTimeMillis() + SnapshotArchive.EXTENSION), null, destinationThrottles[d]));
+                        continue;
+                    }
+                    File timeDest;
+                    File workingDirectory;
+                    if (unfinished != null) {
+                        logger.log("Resuming unfinished snapshot " + unfinished.getAbsolutePath());
+                        workingDirectory = unfinished;
+                        timeDest = new File(destination.getAbsolutePath(), Long.toString(SnapshotPruner.unfinishedMillis(unfinished)));
+                    } else {
+                        timeDest = new File(destination.getAbsolutePath().toString() + "/" + System.currentTimeMillis());
+                        workingDirectory = new File(timeDest.getPath() + SnapshotPruner.PARTIAL_SUFFIX);
+                        if (!workingDirectory.mkdirs())
+                            throw new Exception("Failed to create snapshot directory " + workingDirectory.getAbsolutePath());
+                    }
+                    SnapshotCheckpoint checkpoint = SnapshotCheckpoint.open(workingDirectory);
+                    if (checkpoint.isResumed())
+                        logger.log("Checkpoint lists " + checkpoint.getCompletedCount() + " files as already done");
+                    targets.add(new SnapshotTarget(destination, timeDest, workingDirectory, previous, destinationThrottles[d], checkpoint));
                 } catch (Exception exc) {
                     exc.printStackTrace();
                     logger.log("Copy failed! " + exc.getMessage());
@@ -62,92 +113,201 @@ public class CopyIterationRunnable implements Runnable {
             }
         }
 
+        if (applicationArguments.isArchive()) {
+            for (SnapshotTarget target : targets) {
+                logCopyStart(target);
+                long startTime = System.currentTimeMillis();
+                try {
+                    SnapshotArchive.write(applicationArguments.getSource(), target.getSnapshot(), Runtime.getRuntime().availableProcessors(), applicationArguments.ignoreHidden(), logger, target.getStatistics(), sourceThrottle, target.getThrottle());
+                } catch (Exception exc) {
+                    exc.printStackTrace();
+                    target.fail(exc);
+                }
+                long endTime = System.currentTimeMillis();
+                successfulCopyOperation |= finishCopy(target, startTime, endTime);
+            }
+        } else if (applicationArguments.isFanOut() && targets.size() > 1) {
+            // Read the source once and write every destination at the same time
+            boolean useChanges = true;
+            for (SnapshotTarget target : targets) {
+                logCopyStart(target);
+                useChanges &= canUseChanges(target, changes);
+            }
+            long startTime = System.currentTimeMillis();
+            try {
+                copyEngine.copy(applicationArguments.getSource(), targets, useChanges ? changes : null);
+            } catch (Exception exc) {
+                exc.printStackTrace();
+                for (SnapshotTarget target : targets) {
+                    target.fail(exc);
+                }
+            }
+            long endTime = System.currentTimeMillis();
+            for (SnapshotTarget target : targets) {
+                successfulCopyOperation |= finishCopy(target, startTime, endTime);
+            }
+        } else {
+            for (SnapshotTarget target : targets) {
+                logCopyStart(target);
+                long startTime = System.currentTimeMillis();
+                try {
+                    // Manually copy files to ignore exceptions on any single file...
+                    copyEngine.copy(applicationArguments.getSource(), target, canUseChanges(target, changes) ? changes : null);
+                } catch (Exception exc) {
+                    exc.printStackTrace();
+                    target.fail(exc);
+                }
+                long endTime = System.currentTimeMillis();
+                successfulCopyOperation |= finishCopy(target, startTime, endTime);
+            }
+        }
+
+        // The next iteration's changes are relative to what got written now
+        boolean allSucceeded = true;
+        for (SnapshotTarget target : targets) {
+            if (target.isFailed())
+                allSucceeded = false;
+            else
+                currentSnapshots.add(target.getSnapshot());
+        }
+        lastSnapshots = currentSnapshots;
+        if (!targets.isEmpty())
+            logger.log(metrics.summarizeRun(targets, System.nanoTime() - runStart));
+        if (changes != null && !allSucceeded) {
+            // Whatever failed will need these again, and the others will just look at a little more than needed
+            changeJournal.restore(changes);
+        }
+
         // If we're in continuousMode...
         if (applicationArguments.isContinuousMode()) {
             // AND our copy just succeeded...
             if (successfulCopyOperation) {
                 logger.log("Successful continuous mode copy, scheduling next operation to happen in " + applicationArguments.getRepeatDelayInSeconds() + " seconds...");
-                scheduledExecutorService.schedule(this, applicationArguments.getRepeatDelayInSeconds(), TimeUnit.SECONDS);
+                scheduler.schedule(this, applicationArguments.getRepeatDelayInSeconds(), TimeUnit.SECONDS);
             } else {
                 // Unsuccessful so we'll wait only for a destination to become available
                 logger.log("Waiting for a destination to become available...");
-                couter:
-                while (true) {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    for (File destination : applicationArguments.getDestinations()) {
-                        if (destination.exists() && destination.isDirectory()) {
-                            logger.log("Destination available: " + destination.toString());
-                            try {
-                                Thread.sleep(1000);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                            break couter;
-                        }
-                    }
-                }
-                scheduledExecutorService.schedule(this, 0, TimeUnit.SECONDS);
+                scheduler.check(new DestinationCheck(), 1, TimeUnit.SECONDS);
             }
         } else if (applicationArguments.getTime() == null) {
             logger.log("Scheduled next copy to occur in " + applicationArguments.getRepeatDelayInSeconds() + " seconds...");
-            scheduledExecutorService.schedule(this, applicationArguments.getRepeatDelayInSeconds(), TimeUnit.SECONDS);
+            scheduler.schedule(this, applicationArguments.getRepeatDelayInSeconds(), TimeUnit.SECONDS);
         } else {
             // We want to wait until the next time!
             Time curTime = new Time(System.currentTimeMillis());
             long waitTimeMs = curTime.getWaitPeriod(applicationArguments.getTime());
             logger.log("Scheduling copy for next occurrance of " + applicationArguments.getTime());
-            scheduledExecutorService.schedule(this, waitTimeMs, TimeUnit.MILLISECONDS);
+            scheduler.schedule(this, waitTimeMs, TimeUnit.MILLISECONDS);
         }
     }
 
-    /*
-      Copy source to destination, creating destination if needed. Ignore any
-      exceptions that occur on any single file (e.g. permission issues, etc).
-      Also, ignore any directories containing a file named ".sjdbignore".
-    */
-    private void copyDirectory(File source, File destination, File originalDestination, boolean ignoreHidden) throws Exception {
-        File[] dirFiles = source.listFiles();
-        // Does this path contain an .sjdbignore file?
-        for (File f : dirFiles) {
-            if (f.getName().equals(".sjdbignore")) {
-                // We are done! Do not copy this directory at all!
-                logger.log("Ignoring directory " + source.getAbsolutePath() + " because it contains an sjdbignore file!");
-                return;
-            }
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Set<FileStore> getFileStores() {
+        Set<FileStore> fileStores = new HashSet<FileStore>();
+        addFileStore(fileStores, applicationArguments.getSource());
+        for (File destination : applicationArguments.getDestinations()) {
+            addFileStore(fileStores, destination);
         }
-        for (File f : dirFiles) {
-            // Is the file hidden? If so, skip!
-            if (f.isHidden() && ignoreHidden) {
-                logger.log("Ignoring " + f.getAbsolutePath() + " since it is hidden!");
-                continue;
-            }
+        return fileStores;
+    }
 
-            try {
-                File equivalent = Paths.get(destination.toPath().toString(), f.getName()).toFile();
-                if (f.isDirectory()) {
-                    if (equivalent.mkdirs()) {
-                        copyDirectory(f, equivalent, originalDestination, ignoreHidden);
-                    } else {
-                        logger.log("Failed to create directory at " + equivalent.getAbsolutePath());
-                    }
-                } else if (f.isFile()) {
-                    FileUtils.copyFile(f, equivalent);
-                } else {
-                    logger.log("Ignoring unrecognized entity at " + f.getAbsolutePath());
+    private void addFileStore(Set<FileStore> fileStores, File file) {
+        try {
+            fileStores.add(Files.getFileStore(file.toPath()));
+        } catch (IOException exc) {
+            // Not there right now, so the next run will not touch it
+        }
+    }
+
+    /*
+        Looks for a destination once a second without holding a thread in between, and queues the next copy once one
+        shows up.
+     */
+    private class DestinationCheck implements Runnable {
+        @Override
+        public void run() {
+            for (File destination : applicationArguments.getDestinations()) {
+                if (destination.exists() && destination.isDirectory()) {
+                    logger.log("Destination available: " + destination.toString());
+                    // Give a newly mounted destination a moment to settle
+                    scheduler.schedule(CopyIterationRunnable.this, 1, TimeUnit.SECONDS);
+                    return;
                 }
-            } catch (Exception exc) {
-                logger.log("Failed to copy entity at " + f.getAbsolutePath() + ": " + exc.getMessage());
-                throwIfDisconnected(originalDestination, exc);
             }
+            scheduler.check(this, 1, TimeUnit.SECONDS);
         }
     }
 
-    private static void throwIfDisconnected(File file, Exception exc) throws Exception {
-        if (!file.exists() || (exc.getMessage() != null && exc.getMessage().toLowerCase().contains("read-only")) || (exc.getMessage() != null && exc.getMessage().toLowerCase().contains("input/output")))
-            throw new Exception("Failed disconnected check!");
+    /*
+      The journal's changes can only stand in for a full scan if they are relative
+      to the snapshot target links against.
+    */
+    private boolean canUseChanges(SnapshotTarget target, ChangeJournal.Changes changes) {
+        // A resumed snapshot has to be checked against the whole source
+        return changes != null && !changes.isFullScan() && !target.isResumed() && target.getPrevious() != null && lastSnapshots.contains(target.getPrevious());
+    }
+
+    private void logCopyStart(SnapshotTarget target) {
+        logger.log("Copying to " + target.getSnapshot().getAbsolutePath());
+        if (target.getPrevious() != null)
+            logger.log("Linking unchanged files against " + target.getPrevious().getAbsolutePath());
+    }
+
+    /*
+      Report how the copy to target went, give a complete snapshot its final
+      name and do any pruning that has to wait until after the copy. Returns
+      whether the copy succeeded.
+    */
+    private boolean finishCopy(SnapshotTarget target, long startTime, long endTime) {
+        commit(target);
+        if (!target.isFailed() && target.getSnapshot().exists())
+            snapshotPruner.add(target.getDestination(), target.getSnapshot());
+        metrics.recordCopy(target);
+        if (target.isFailed()) {
+            logger.log("Copy to " + target.getSnapshot().getAbsolutePath() + " failed! " + target.getFailure().getMessage());
+            return false;
+        }
+        logger.log("Copy to " + target.getSnapshot().getAbsolutePath() + " complete! Took " + String.format("%.1f", (endTime - startTime) / 1000.0) + " seconds.");
+        logger.log(target.getStatistics().toString());
+        if (applicationArguments.isVerify()) {
+            new SnapshotVerifier(logger, Runtime.getRuntime().availableProcessors()).verify(target.getSnapshot(), applicationArguments.getSource());
+        }
+        if (applicationArguments.isIncremental()) {
+            snapshotPruner.prune(target.getDestination(), applicationArguments.getKeepCount());
+        }
+        if (applicationArguments.isBuildIndex()) {
+            // After pruning, so versions only pruned snapshots held are dropped along with them
+            SnapshotIndex.update(target.getDestination(), snapshotPruner.list(target.getDestination()), logger);
+        }
+        return true;
+    }
+
+    /*
+      Rename a complete checkpointed snapshot from its working directory to its
+      final name. A failed one keeps its checkpoint and is resumed next time.
+    */
+    private void commit(SnapshotTarget target) {
+        SnapshotCheckpoint checkpoint = target.getCheckpoint();
+        if (checkpoint == null)
+            return;
+        try {
+            if (target.isFailed()) {
+                checkpoint.close();
+                logger.log("Kept unfinished snapshot " + target.getWorkingDirectory().getAbsolutePath() + " to resume from");
+                return;
+            }
+            checkpoint.close();
+            Files.move(target.getWorkingDirectory().toPath(), target.getSnapshot().toPath(), StandardCopyOption.ATOMIC_MOVE);
+            // Only removed once the rename went through, so a failed rename still resumes from the checkpoint
+            Files.deleteIfExists(new File(target.getSnapshot(), SnapshotCheckpoint.FILE_NAME).toPath());
+        } catch (IOException exc) {
+            logger.log("Failed to complete snapshot " + target.getSnapshot().getAbsolutePath() + ": " + exc.getMessage());
+            target.fail(exc);
+        }
     }
 }
@@ -0,0 +1,229 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Counters describing a single copy of the source into a snapshot. These are updated concurrently by the copy
+    engine's worker threads.
+ */
+public class CopyStatistics {
+    private final AtomicLong filesCopied = new AtomicLong();
+    private final AtomicLong filesLinked = new AtomicLong();
+    private final AtomicLong filesFailed = new AtomicLong();
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong bytesCopied = new AtomicLong();
+    private final AtomicLong bytesLinked = new AtomicLong();
+    private final AtomicLong filesResumed = new AtomicLong();
+    private final AtomicLong bytesResumed = new AtomicLong();
+    private final AtomicLong filesDeltaCopied = new AtomicLong();
+    private final AtomicLong bytesDeltaCopied = new AtomicLong();
+    private final AtomicLong bytesDeltaWritten = new AtomicLong();
+    private final AtomicLong filesPacked = new AtomicLong();
+    private final AtomicLong bytesPacked = new AtomicLong();
+    private final AtomicLong directoriesScanned = new AtomicLong();
+    private final AtomicLong scanNanos = new AtomicLong();
+    private final AtomicLong copyNanos = new AtomicLong();
+    private final LatencyHistogram scanLatency = new LatencyHistogram();
+    private final LatencyHistogram copyLatency = new LatencyHistogram();
+    private volatile long wallNanos;
+
+    public void fileCopied(long bytes, long nanos) {
+        filesCopied.incrementAndGet();
+        bytesCopied.addAndGet(bytes);
+        copyNanos.addAndGet(nanos);
+        copyLatency.record(nanos);
+    }
+
+    /**
+     * Count a file copied by writing only the blocks that differ from an earlier copy.
+     *
+     * @param bytes The size of the file.
+     * @param bytesWritten How much of it was actually written.
+     */
+    public void fileDeltaCopied(long bytes, long bytesWritten, long nanos) {
+        fileCopied(bytes, nanos);
+        filesDeltaCopied.incrementAndGet();
+        bytesDeltaCopied.addAndGet(bytes);
+        bytesDeltaWritten.addAndGet(bytesWritten);
+    }
+
+    /**
+     * Count a file copied by appending it to a pack rather than writing it out on its own.
+     */
+    public void filePacked(long bytes, long nanos) {
+        fileCopied(bytes, nanos);
+        filesPacked.incrementAndGet();
+        bytesPacked.addAndGet(bytes);
+    }
+
+    public void fileLinked(long bytes, long nanos) {
+        filesLinked.incrementAndGet();
+        bytesLinked.addAndGet(bytes);
+        copyNanos.addAndGet(nanos);
+    }
+
+    public void fileResumed(long bytes) {
+        filesResumed.incrementAndGet();
+        bytesResumed.addAndGet(bytes);
+    }
+
+    public void fileFailed() {
+        filesFailed.incrementAndGet();
+    }
+
+    public void filesDeleted(long count) {
+        filesDeleted.addAndGet(count);
+    }
+
+    public void directoryScanned(long nanos) {
+        directoriesScanned.incrementAndGet();
+        scanNanos.addAndGet(nanos);
+        scanLatency.record(nanos);
+    }
+
+    public void setWallNanos(long wallNanos) {
+        this.wallNanos = wallNanos;
+    }
+
+    public long getFilesCopied() {
+        return filesCopied.get();
+    }
+
+    public long getFilesLinked() {
+        return filesLinked.get();
+    }
+
+    public long getFilesFailed() {
+        return filesFailed.get();
+    }
+
+    /**
+     *
+     * @return How many files recorded in the previous snapshot's manifest are no longer in the source.
+     */
+    public long getFilesDeleted() {
+        return filesDeleted.get();
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    /**
+     *
+     * @return The size of the unchanged files that were linked rather than copied.
+     */
+    public long getBytesLinked() {
+        return bytesLinked.get();
+    }
+
+    /**
+     *
+     * @return How many files an earlier, unfinished attempt at the same snapshot had already completed.
+     */
+    public long getFilesResumed() {
+        return filesResumed.get();
+    }
+
+    public long getBytesResumed() {
+        return bytesResumed.get();
+    }
+
+    /**
+     *
+     * @return How many of the files copied were delta copied.
+     */
+    public long getFilesDeltaCopied() {
+        return filesDeltaCopied.get();
+    }
+
+    public long getBytesDeltaCopied() {
+        return bytesDeltaCopied.get();
+    }
+
+    /**
+     *
+     * @return How much of the delta copied files differed from their earlier copies and was written.
+     */
+    public long getBytesDeltaWritten() {
+        return bytesDeltaWritten.get();
+    }
+
+    public long getFilesPacked() {
+        return filesPacked.get();
+    }
+
+    public long getBytesPacked() {
+        return bytesPacked.get();
+    }
+
+    public long getDirectoriesScanned() {
+        return directoriesScanned.get();
+    }
+
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     *
+     * @return How long each directory took to list.
+     */
+    public LatencyHistogram getScanLatency() {
+        return scanLatency;
+    }
+
+    /**
+     *
+     * @return How long each file took to copy.
+     */
+    public LatencyHistogram getCopyLatency() {
+        return copyLatency;
+    }
+
+    /**
+     *
+     * @return Files copied or linked per second of wall time.
+     */
+    public double getFilesPerSecond() {
+        if (wallNanos <= 0)
+            return 0;
+        return (getFilesCopied() + getFilesLinked()) / (wallNanos / 1e9);
+    }
+
+    /**
+     *
+     * @return Megabytes copied per second of wall time.
+     */
+    public double getMegabytesPerSecond() {
+        if (wallNanos <= 0)
+            return 0;
+        return getBytesCopied() / (1024.0 * 1024.0) / (wallNanos / 1e9);
+    }
+
+    /**
+     *
+     * @return The time the serial path would have needed for the same work, i.e. the sum of the time every worker
+     * spent listing directories and copying files.
+     */
+    public long getSerialEstimateNanos() {
+        return scanNanos.get() + copyNanos.get();
+    }
+
+    /**
+     *
+     * @return How many times faster this copy was than the serial path doing the same work one entry at a time.
+     */
+    public double getSpeedup() {
+        if (wallNanos <= 0)
+            return 1.0;
+        return (double) getSerialEstimateNanos() / wallNanos;
+    }
+
+    public String toString() {
+        String resumed = getFilesResumed() == 0 ? "" : String.format(", kept %d files (%.1f MB) from an unfinished attempt", getFilesResumed(), getBytesResumed() / (1024.0 * 1024.0));
+        String delta = getFilesDeltaCopied() == 0 ? "" : String.format(" of which %d were delta copied writing %.1f of %.1f MB", getFilesDeltaCopied(), getBytesDeltaWritten() / (1024.0 * 1024.0), getBytesDeltaCopied() / (1024.0 * 1024.0));
+        String packed = getFilesPacked() == 0 ? "" : String.format("%s %d were packed (%.1f MB)", delta.isEmpty() ? " of which" : " and", getFilesPacked(), getBytesPacked() / (1024.0 * 1024.0));
+        return String.format("Copied %d files (%.1f MB)%s, linked %d unchanged files (%.1f MB)%s, %d deleted since the previous snapshot, %d failures in %.1f seconds. Serial estimate %.1f seconds, speedup %.2fx.",
+                getFilesCopied(), getBytesCopied() / (1024.0 * 1024.0), delta + packed, getFilesLinked(), getBytesLinked() / (1024.0 * 1024.0), resumed, getFilesDeleted(), getFilesFailed(),
+                wallNanos / 1e9, getSerialEstimateNanos() / 1e9, getSpeedup());
+    }
+}
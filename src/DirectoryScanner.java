@@ -0,0 +1,226 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Lists source directories, reading the attributes of every entry with a single call instead of asking separately
+    whether it is hidden, a directory or a file and then for its size and modification time. On a network file system
+    every one of those questions is a round trip.
+
+    Listings of directories the walk is about to visit can be requested ahead of time. They are then read on a few
+    threads of their own while the walk is busy elsewhere, so the walk does not wait on one round trip after another.
+    Only a bounded number of listings is ever held ahead of the walk.
+ */
+public class DirectoryScanner {
+
+    // How many listings may be read ahead of the walk at once
+    private static final int MAX_PREFETCHED = 256;
+    // On Windows being hidden is an attribute rather than a leading dot
+    private static final boolean DOS_ATTRIBUTES = FileSystems.getDefault().supportedFileAttributeViews().contains("dos")
+            && !FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    private static final String UNIX_ATTRIBUTES = "unix:size,lastModifiedTime,isDirectory,isRegularFile,ino";
+
+    private final boolean readInodes;
+    private final ExecutorService prefetchExecutor;
+    private final Map<File, Future<Listing>> prefetched = new ConcurrentHashMap<File, Future<Listing>>();
+    private final AtomicInteger prefetchedCount = new AtomicInteger();
+
+    /**
+     * @param readInodes Whether the inode of every file is needed, which costs nothing extra where it is available.
+     * @param prefetchThreads How many threads read listings ahead of the walk, or 0 to read them only when asked for.
+     */
+    public DirectoryScanner(boolean readInodes, int prefetchThreads) {
+        this.readInodes = readInodes && FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+        this.prefetchExecutor = prefetchThreads > 0 ? Executors.newFixedThreadPool(prefetchThreads) : null;
+    }
+
+    /**
+     * Start reading the listing of directory, which is about to be asked for. Does nothing if too many listings are
+     * already waiting to be picked up.
+     */
+    public void prefetch(final File directory) {
+        if (prefetchExecutor == null || prefetchedCount.incrementAndGet() > MAX_PREFETCHED) {
+            if (prefetchExecutor != null)
+                prefetchedCount.decrementAndGet();
+            return;
+        }
+        prefetched.put(directory, prefetchExecutor.submit(new Callable<Listing>() {
+            @Override
+            public Listing call() throws IOException {
+                return read(directory);
+            }
+        }));
+    }
+
+    /**
+     * List directory, taking the listing read ahead of time if there is one.
+     *
+     * @return Every entry of directory, in no particular order.
+     */
+    public Listing list(File directory) throws IOException {
+        Future<Listing> future = prefetched.remove(directory);
+        if (future == null)
+            return read(directory);
+        prefetchedCount.decrementAndGet();
+        try {
+            return future.get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing " + directory.getAbsolutePath(), exc);
+        } catch (ExecutionException exc) {
+            if (exc.getCause() instanceof IOException)
+                throw (IOException) exc.getCause();
+            throw new IOException("Failed to list " + directory.getAbsolutePath(), exc.getCause());
+        }
+    }
+
+    /**
+     * Stop reading ahead and drop whatever was read but not asked for.
+     */
+    public void close() {
+        if (prefetchExecutor != null)
+            prefetchExecutor.shutdownNow();
+        prefetched.clear();
+    }
+
+    private Listing read(File directory) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        Entry ignoreFile = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+            for (Path path : stream) {
+                Entry entry = readEntry(directory, path);
+                entries.add(entry);
+                if (entry.isFile() && entry.getName().equals(IgnoreRules.FILE_NAME))
+                    ignoreFile = entry;
+            }
+        }
+        return new Listing(entries, ignoreFile);
+    }
+
+    private Entry readEntry(File directory, Path path) {
+        String name = path.getFileName().toString();
+        File file = new File(directory, name);
+        try {
+            // Links are followed, like File.isDirectory() and File.isFile() would
+            if (readInodes) {
+                Map<String, Object> attributes = Files.readAttributes(path, UNIX_ATTRIBUTES);
+                Object inode = attributes.get("ino");
+                return new Entry(file, name, (Boolean) attributes.get("isDirectory"), (Boolean) attributes.get("isRegularFile"), name.startsWith("."),
+                        (Long) attributes.get("size"), ((FileTime) attributes.get("lastModifiedTime")).toMillis(), inode instanceof Number ? ((Number) inode).longValue() : 0);
+            }
+            if (DOS_ATTRIBUTES) {
+                DosFileAttributes attributes = Files.readAttributes(path, DosFileAttributes.class);
+                return new Entry(file, name, attributes.isDirectory(), attributes.isRegularFile(), attributes.isHidden(),
+                        attributes.size(), attributes.lastModifiedTime().toMillis(), 0);
+            }
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Entry(file, name, attributes.isDirectory(), attributes.isRegularFile(), name.startsWith("."),
+                    attributes.size(), attributes.lastModifiedTime().toMillis(), 0);
+        } catch (IOException | UnsupportedOperationException exc) {
+            // A dangling link or something that vanished since the listing, neither a file nor a directory
+            return new Entry(file, name, false, false, name.startsWith("."), 0, 0, 0);
+        }
+    }
+
+    /*
+        The entries of one directory.
+     */
+    public static class Listing {
+        private final List<Entry> entries;
+        private final Entry ignoreFile;
+
+        private Listing(List<Entry> entries, Entry ignoreFile) {
+            this.entries = entries;
+            this.ignoreFile = ignoreFile;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         *
+         * @return The directory's .sjdbignore, or null if it has none.
+         */
+        public Entry getIgnoreFile() {
+            return ignoreFile;
+        }
+    }
+
+    /*
+        A directory entry along with the attributes read for it.
+     */
+    public static class Entry {
+        private final File file;
+        private final String name;
+        private final boolean directory;
+        private final boolean regularFile;
+        private final boolean hidden;
+        private final long size;
+        private final long lastModified;
+        private final long inode;
+
+        private Entry(File file, String name, boolean directory, boolean regularFile, boolean hidden, long size, long lastModified, long inode) {
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+            this.regularFile = regularFile;
+            this.hidden = hidden;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public boolean isFile() {
+            return regularFile;
+        }
+
+        public boolean isHidden() {
+            return hidden;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         *
+         * @return The inode of the file, or 0 if it was not asked for or is not available.
+         */
+        public long getInode() {
+            return inode;
+        }
+    }
+}
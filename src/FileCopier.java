@@ -0,0 +1,407 @@
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Copies the data of a single file using one of several backends, so they can be compared on real hardware:
+
+    COMMONS_IO  FileUtils.copyFile, copying through buffers in the JVM. This is what the project always used.
+    TRANSFER    FileChannel.transferTo, which lets the kernel move the data itself (copy_file_range or sendfile on
+                Linux). Large files are copied in chunks with the written data forced to disk between chunks, so a
+                multi-GB file does not pile up as dirty pages.
+    REFLINK     Clone the file with "cp --reflink=always" on file systems that can share extents (btrfs, XFS), which
+                copies no data at all. Falls back to TRANSFER for small files, where starting a process costs more than
+                the copy, and for any destination where cloning turns out not to work.
+
+    A large file that changed since an earlier copy of it can instead be delta copied. The earlier copy is cloned, which
+    shares its data rather than copying it, and only the blocks of the source that differ from it are written into the
+    clone. This needs a destination that can clone files, elsewhere the file is copied in full as usual.
+
+    Every backend preserves the modification time like FileUtils.copyFile. While the source or destination is
+    throttled, data is copied in THROTTLED_CHUNK_SIZE pieces through the JVM whatever the backend, so the throttles
+    can pace every piece and see how long each read took. Cloning still happens since it moves no data.
+ */
+public class FileCopier {
+
+    public enum Backend {
+        COMMONS_IO, TRANSFER, REFLINK;
+
+        /**
+         *
+         * @return The backend named on the command line, e.g. "transfer".
+         */
+        public static Backend parse(String name) {
+            return valueOf(name.toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // Size of each chunk for the TRANSFER backend, the written data is forced to disk after each one
+    static final long CHUNK_SIZE = 64L * 1024 * 1024;
+    // Files smaller than this are not worth starting a process to clone, or memory-mapping to hash
+    private static final long SMALL_FILE_SIZE = 1024 * 1024;
+    // Size of each piece read and written while throttled
+    static final int THROTTLED_CHUNK_SIZE = 1024 * 1024;
+    // Size of the blocks compared between a source file and an earlier copy of it when delta copying
+    static final int DELTA_BLOCK_SIZE = 1024 * 1024;
+
+    private final Backend backend;
+    private final Logger logger;
+    private final LatencyHistogram fsyncLatency;
+    // File stores that cannot clone at all, so it is not attempted again
+    private final Map<FileStore, Boolean> reflinkUnsupported = new ConcurrentHashMap<FileStore, Boolean>();
+    // Pairs of source and target file stores that cannot be cloned between, such as a source on another disk
+    private final Map<List<FileStore>, Boolean> reflinkCrossDevice = new ConcurrentHashMap<List<FileStore>, Boolean>();
+    private volatile boolean reflinkUnavailable = false;
+
+    public FileCopier(Backend backend, Logger logger, LatencyHistogram fsyncLatency) {
+        this.backend = backend;
+        this.logger = logger;
+        this.fsyncLatency = fsyncLatency;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Copy source to target, creating or replacing target. The parent of target must already exist.
+     *
+     * @param hash Whether to compute the MD5 of the data copied.
+     * @param readThrottle Throttle for reading source.
+     * @param writeThrottle Throttle for writing target.
+     * @return The MD5 of the data copied, or null if hash was false.
+     */
+    public byte[] copy(File source, File target, boolean hash, IoThrottle readThrottle, IoThrottle writeThrottle) throws IOException {
+        if (readThrottle.isActive() || writeThrottle.isActive()) {
+            if (backend == Backend.REFLINK && source.length() >= SMALL_FILE_SIZE) {
+                readThrottle.acquire(0);
+                writeThrottle.acquire(0);
+                if (tryReflink(source, target))
+                    return hash ? hashFile(source) : null;
+            }
+            return throttledCopy(source, target, hash, readThrottle, writeThrottle);
+        }
+        switch (backend) {
+            case REFLINK:
+                if (source.length() >= SMALL_FILE_SIZE && tryReflink(source, target))
+                    return hash ? hashFile(source) : null;
+                if (hash && source.length() < SMALL_FILE_SIZE)
+                    return copyAndHash(source, target);
+                return transfer(source, target, hash);
+            case TRANSFER:
+                // Mapping a small file costs more than reading it
+                if (hash && source.length() < SMALL_FILE_SIZE)
+                    return copyAndHash(source, target);
+                return transfer(source, target, hash);
+            default:
+                if (hash)
+                    return copyAndHash(source, target);
+                FileUtils.copyFile(source, target);
+                return null;
+        }
+    }
+
+    /**
+     * Copy source to target by cloning base, an earlier copy of the same file on the same file system as target, and
+     * writing only the blocks of source that differ from it. Blocks are compared at the same offsets, which suits
+     * files that are changed in place like disk images and databases. base itself is never written to, and neither is
+     * any file with more than one link.
+     *
+     * @param hash Whether to compute the MD5 of source.
+     * @return What was written, or null if base could not be cloned and nothing was done.
+     */
+    public Delta copyDelta(File source, File target, File base, boolean hash, IoThrottle readThrottle, IoThrottle writeThrottle) throws IOException {
+        // Whatever is there may be a link to another snapshot's copy, so it is replaced rather than written into
+        Files.deleteIfExists(target.toPath());
+        writeThrottle.acquire(0);
+        if (!tryReflink(base, target))
+            return null;
+        if (linkCount(target) != 1) {
+            // Cloning has to give a file of its own, anything else is not safe to write into
+            Files.deleteIfExists(target.toPath());
+            return null;
+        }
+
+        MessageDigest digest = hash ? newDigest() : null;
+        long bytesWritten = 0;
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long baseSize = out.size();
+            ByteBuffer sourceBlock = ByteBuffer.allocateDirect(DELTA_BLOCK_SIZE);
+            ByteBuffer baseBlock = ByteBuffer.allocateDirect(DELTA_BLOCK_SIZE);
+            for (long position = 0; position < size; position += DELTA_BLOCK_SIZE) {
+                int length = (int) Math.min(DELTA_BLOCK_SIZE, size - position);
+                readThrottle.acquire(length);
+                long readStart = System.nanoTime();
+                readBlock(in, sourceBlock, position, length, source);
+                readThrottle.recordLatency(System.nanoTime() - readStart);
+                if (digest != null) {
+                    digest.update(sourceBlock);
+                    sourceBlock.flip();
+                }
+                if (position + length <= baseSize) {
+                    writeThrottle.acquire(0);
+                    readBlock(out, baseBlock, position, length, target);
+                    if (sourceBlock.equals(baseBlock))
+                        continue;
+                }
+                writeThrottle.acquire(length);
+                while (sourceBlock.hasRemaining()) {
+                    out.write(sourceBlock, position + sourceBlock.position());
+                }
+                bytesWritten += length;
+            }
+            if (baseSize > size)
+                out.truncate(size);
+            long syncStart = System.nanoTime();
+            out.force(false);
+            fsyncLatency.record(System.nanoTime() - syncStart);
+        } catch (IOException exc) {
+            target.delete();
+            throw exc;
+        }
+        target.setLastModified(source.lastModified());
+        return new Delta(digest == null ? null : digest.digest(), bytesWritten);
+    }
+
+    /*
+      Read length bytes at position into buffer, leaving it flipped for reading.
+    */
+    private static void readBlock(FileChannel channel, ByteBuffer buffer, long position, int length, File file) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException(file.getAbsolutePath() + " shrank while copying");
+        }
+        buffer.flip();
+    }
+
+    private static int linkCount(File file) {
+        try {
+            Object count = Files.getAttribute(file.toPath(), "unix:nlink");
+            return count instanceof Number ? ((Number) count).intValue() : 1;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException exc) {
+            // Without links there is nothing to worry about
+            return 1;
+        }
+    }
+
+    /*
+      Copy with FileChannel.transferTo in chunks. When the data also has to be
+      hashed, each chunk of the source is memory-mapped instead so it can be
+      hashed and written without passing through a buffer of our own.
+    */
+    private byte[] transfer(File source, File target, boolean hash) throws IOException {
+        MessageDigest digest = hash ? newDigest() : null;
+        try (FileInputStream inputStream = new FileInputStream(source); FileOutputStream outputStream = new FileOutputStream(target)) {
+            FileChannel in = inputStream.getChannel();
+            FileChannel out = outputStream.getChannel();
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long chunk = Math.min(CHUNK_SIZE, size - position);
+                long chunkEnd = position + chunk;
+                if (digest != null) {
+                    MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, position, chunk);
+                    digest.update(mapped.duplicate());
+                    while (mapped.hasRemaining()) {
+                        out.write(mapped);
+                    }
+                    position = chunkEnd;
+                } else {
+                    while (position < chunkEnd) {
+                        long transferred = in.transferTo(position, chunkEnd - position, out);
+                        if (transferred <= 0)
+                            throw new IOException("Source " + source.getAbsolutePath() + " shrank while copying");
+                        position += transferred;
+                    }
+                }
+                // Sync point between chunks of large files
+                if (position < size) {
+                    long syncStart = System.nanoTime();
+                    out.force(false);
+                    fsyncLatency.record(System.nanoTime() - syncStart);
+                }
+            }
+        }
+        target.setLastModified(source.lastModified());
+        return digest == null ? null : digest.digest();
+    }
+
+    private boolean tryReflink(File source, File target) {
+        if (reflinkUnavailable)
+            return false;
+        FileStore fileStore;
+        try {
+            fileStore = Files.getFileStore(target.getParentFile().toPath());
+        } catch (IOException exc) {
+            return false;
+        }
+        if (reflinkUnsupported.containsKey(fileStore))
+            return false;
+        List<FileStore> fileStores;
+        try {
+            fileStores = Arrays.asList(Files.getFileStore(source.toPath()), fileStore);
+        } catch (IOException exc) {
+            return false;
+        }
+        if (reflinkCrossDevice.containsKey(fileStores))
+            return false;
+
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder("cp", "--reflink=always", "--preserve=timestamps", source.getAbsolutePath(), target.getAbsolutePath())
+                    .redirectErrorStream(true);
+            // The reason for a failure is told apart by cp's message, so it has to be in English
+            processBuilder.environment().put("LC_ALL", "C");
+            Process process = processBuilder.start();
+            // Nothing is printed on success, and the output has to be drained for cp to finish
+            InputStream output = process.getInputStream();
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = output.read(buffer)) >= 0) {
+                message.write(buffer, 0, read);
+            }
+            if (process.waitFor() == 0)
+                return true;
+            String error = new String(message.toByteArray(), Charset.defaultCharset()).trim();
+            if (error.contains("Invalid cross-device link")) {
+                logger.log("Cloning from " + fileStores.get(0) + " to " + fileStore + " is not possible, copying instead");
+                reflinkCrossDevice.put(fileStores, Boolean.TRUE);
+            } else if (error.contains("not supported") || error.contains("Inappropriate ioctl")) {
+                logger.log("Cloning is not supported on " + fileStore + ", copying instead");
+                reflinkUnsupported.put(fileStore, Boolean.TRUE);
+            } else {
+                // Something about this file, such as it having gone away or the disk being full, so try again next time
+                logger.log("Failed to clone " + source.getAbsolutePath() + ", copying instead: " + error);
+            }
+        } catch (IOException exc) {
+            logger.log("Unable to run cp to clone files, copying instead: " + exc.getMessage());
+            reflinkUnavailable = true;
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        target.delete();
+        return false;
+    }
+
+    /*
+      Copy source to target in pieces, waiting on the throttles before each
+      read and write and telling the read throttle how long each read took.
+    */
+    private static byte[] throttledCopy(File source, File target, boolean hash, IoThrottle readThrottle, IoThrottle writeThrottle) throws IOException {
+        MessageDigest digest = hash ? newDigest() : null;
+        try (InputStream inputStream = new FileInputStream(source); OutputStream outputStream = new FileOutputStream(target)) {
+            long remaining = source.length();
+            byte[] buffer = new byte[(int) Math.min(THROTTLED_CHUNK_SIZE, Math.max(remaining, 1))];
+            while (true) {
+                readThrottle.acquire(Math.max(0, Math.min(buffer.length, remaining)));
+                long readStart = System.nanoTime();
+                int read = inputStream.read(buffer);
+                readThrottle.recordLatency(System.nanoTime() - readStart);
+                if (read < 0)
+                    break;
+                if (digest != null)
+                    digest.update(buffer, 0, read);
+                remaining -= read;
+                writeThrottle.acquire(read);
+                outputStream.write(buffer, 0, read);
+            }
+        }
+        target.setLastModified(source.lastModified());
+        return digest == null ? null : digest.digest();
+    }
+
+    /*
+      Copy source to target like FileUtils.copyFile, returning the MD5 of the
+      data copied.
+    */
+    static byte[] copyAndHash(File source, File target) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream inputStream = new FileInputStream(source); OutputStream outputStream = new FileOutputStream(target)) {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+                outputStream.write(buffer, 0, read);
+            }
+        }
+        target.setLastModified(source.lastModified());
+        return digest.digest();
+    }
+
+    /**
+     *
+     * @return The MD5 of the content of file, read through memory-mapped chunks.
+     */
+    static byte[] hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; position += CHUNK_SIZE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position)));
+            }
+        }
+        return digest.digest();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException exc) {
+            // Every JVM is required to provide MD5
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    /*
+        The outcome of a delta copy.
+     */
+    public static class Delta {
+        private final byte[] hash;
+        private final long bytesWritten;
+
+        private Delta(byte[] hash, long bytesWritten) {
+            this.hash = hash;
+            this.bytesWritten = bytesWritten;
+        }
+
+        /**
+         *
+         * @return The MD5 of the source, or null if it was not asked for.
+         */
+        public byte[] getHash() {
+            return hash;
+        }
+
+        /**
+         *
+         * @return How much of the source differed from the earlier copy and was written.
+         */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/*
+    The rules of a .sjdbignore file. By itself a .sjdbignore leaves out the whole directory it is in, whatever it says,
+    as it always has. Only one whose first line is PATTERN_MARKER holds patterns, and then works like a .gitignore.
+    Every line after the marker is a glob pattern relative to the
+    directory holding the file: '*' and '?' match within a name, "**" matches across directories, "[...]" matches one
+    of a set of characters, a pattern ending in '/' only matches directories, and a pattern starting with '!' brings
+    back something an earlier pattern left out. A pattern with a '/' before its end is anchored to the directory
+    holding the file, anything else matches a name at any depth below it. Blank lines and lines starting with '#'
+    are skipped. The last pattern that matches wins, and the rules of deeper directories come before those of their
+    ancestors.
+
+    Patterns are compiled once when the file is read. Names without any wildcards are compared as strings, everything
+    else is turned into a regular expression. A directory that is left out is never listed, so nothing below it is
+    ever matched against anything, and like with git nothing below it can be brought back.
+
+    A .sjdbignore with the marker but without any patterns still leaves out its whole directory, and so does one that
+    cannot be read, so a directory that was meant to stay out never ends up in a backup by mistake.
+ */
+public class IgnoreRules {
+
+    public static final String FILE_NAME = ".sjdbignore";
+    // The first line of a .sjdbignore that holds patterns rather than just marking its directory
+    public static final String PATTERN_MARKER = "#!sjdbignore";
+
+    // Rules of the directories above, or null
+    private final IgnoreRules parent;
+    // The path of the directory holding the rules relative to the root of the copy followed by '/', or empty
+    private final String basePath;
+    private final List<Rule> rules;
+
+    private IgnoreRules(IgnoreRules parent, String basePath, List<Rule> rules) {
+        this.parent = parent;
+        this.basePath = basePath;
+        this.rules = rules;
+    }
+
+    /**
+     * Work out the rules inside a directory from its .sjdbignore, logging if the whole directory is left out.
+     *
+     * @param directory The directory being copied.
+     * @param ignoreFile The .sjdbignore in directory, or null if it has none.
+     * @param relativePath The path of directory relative to the root of the copy, using '/' separators, empty for the
+     *                     root itself.
+     * @param parent The rules in effect for directory so far, or null.
+     * @return The rules in effect inside directory, which may be parent itself or null, or rules for which
+     *         excludesDirectory() is true if nothing in it is to be copied.
+     */
+    public static IgnoreRules forDirectory(File directory, File ignoreFile, String relativePath, IgnoreRules parent, Logger logger) {
+        if (ignoreFile == null)
+            return parent;
+        IgnoreRules rules;
+        try {
+            rules = load(ignoreFile, relativePath, parent);
+        } catch (IOException exc) {
+            logger.log("Failed to read " + ignoreFile.getAbsolutePath() + ", ignoring the whole directory: " + exc.getMessage());
+            return new IgnoreRules(parent, "", new ArrayList<Rule>());
+        }
+        if (rules.excludesDirectory())
+            logger.log("Ignoring directory " + directory.getAbsolutePath() + " because it contains an sjdbignore file!");
+        return rules;
+    }
+
+    /**
+     * Read and compile the rules in ignoreFile. Without PATTERN_MARKER on its first line nothing in it is read as a
+     * pattern.
+     *
+     * @param relativePath The path of the directory holding ignoreFile relative to the root of the copy, using '/'
+     *                     separators, empty for the root itself.
+     * @param parent The rules in effect for that directory so far, or null.
+     * @throws IOException If ignoreFile cannot be read or is not UTF-8.
+     */
+    static IgnoreRules load(File ignoreFile, String relativePath, IgnoreRules parent) throws IOException {
+        return parse(Files.readAllLines(ignoreFile.toPath(), StandardCharsets.UTF_8), relativePath, parent);
+    }
+
+    /*
+        Compile the lines of a .sjdbignore.
+     */
+    static IgnoreRules parse(List<String> lines, String relativePath, IgnoreRules parent) {
+        List<Rule> rules = new ArrayList<Rule>();
+        if (!lines.isEmpty() && lines.get(0).trim().equals(PATTERN_MARKER)) {
+            for (String line : lines.subList(1, lines.size())) {
+                Rule rule = Rule.parse(line);
+                if (rule != null)
+                    rules.add(rule);
+            }
+        }
+        return new IgnoreRules(parent, relativePath.isEmpty() ? "" : relativePath + "/", rules);
+    }
+
+    /**
+     *
+     * @return Whether the file had no patterns at all, meaning its whole directory is left out.
+     */
+    public boolean excludesDirectory() {
+        return rules.isEmpty();
+    }
+
+    /**
+     *
+     * @param path The path of a file or directory relative to the root of the copy, using '/' separators.
+     * @return Whether path is to be left out.
+     */
+    public boolean isIgnored(String path, boolean directory) {
+        for (IgnoreRules current = this; current != null; current = current.parent) {
+            if (!path.startsWith(current.basePath))
+                continue;
+            String relative = path.substring(current.basePath.length());
+            String name = relative.substring(relative.lastIndexOf('/') + 1);
+            for (int i = current.rules.size() - 1; i >= 0; i--) {
+                Rule rule = current.rules.get(i);
+                if (rule.matches(relative, name, directory))
+                    return !rule.negated;
+            }
+        }
+        return false;
+    }
+
+    /*
+        A single compiled pattern.
+     */
+    private static class Rule {
+        private final boolean negated;
+        private final boolean directoryOnly;
+        // Set for a pattern without wildcards or slashes, which is compared against the name as it is
+        private final String literalName;
+        // Matched against the whole path relative to the directory holding the rules otherwise
+        private final Pattern pattern;
+
+        private Rule(boolean negated, boolean directoryOnly, String literalName, Pattern pattern) {
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.literalName = literalName;
+            this.pattern = pattern;
+        }
+
+        /*
+          Compile a line of a .sjdbignore, or return null if it has no pattern.
+        */
+        private static Rule parse(String line) {
+            String glob = trimTrailingSpaces(line);
+            if (glob.isEmpty() || glob.startsWith("#"))
+                return null;
+            boolean negated = false;
+            if (glob.startsWith("!")) {
+                negated = true;
+                glob = glob.substring(1);
+            } else if (glob.startsWith("\\#") || glob.startsWith("\\!")) {
+                glob = glob.substring(1);
+            }
+            boolean directoryOnly = false;
+            while (glob.endsWith("/")) {
+                directoryOnly = true;
+                glob = glob.substring(0, glob.length() - 1);
+            }
+            if (glob.isEmpty())
+                return null;
+            boolean anchored = glob.indexOf('/') >= 0;
+            while (glob.startsWith("/")) {
+                glob = glob.substring(1);
+            }
+            if (!anchored && !hasWildcards(glob))
+                return new Rule(negated, directoryOnly, glob.replace("\\", ""), null);
+            String regex = (anchored ? "" : "(?:.*/)?") + globToRegex(glob);
+            return new Rule(negated, directoryOnly, null, Pattern.compile(regex));
+        }
+
+        private boolean matches(String relativePath, String name, boolean directory) {
+            if (directoryOnly && !directory)
+                return false;
+            if (literalName != null)
+                return literalName.equals(name);
+            return pattern.matcher(relativePath).matches();
+        }
+
+        private static String trimTrailingSpaces(String line) {
+            int end = line.length();
+            while (end > 0 && line.charAt(end - 1) == ' ' && !(end > 1 && line.charAt(end - 2) == '\\')) {
+                end--;
+            }
+            return line.substring(0, end);
+        }
+
+        private static boolean hasWildcards(String glob) {
+            return glob.indexOf('*') >= 0 || glob.indexOf('?') >= 0 || glob.indexOf('[') >= 0;
+        }
+
+        private static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    boolean leadingSlash = i == 0 || glob.charAt(i - 1) == '/';
+                    boolean trailingSlash = i + 2 < glob.length() && glob.charAt(i + 2) == '/';
+                    if (leadingSlash && trailingSlash) {
+                        // "**/" matches any number of whole directories, including none
+                        regex.append("(?:.*/)?");
+                        i += 2;
+                    } else {
+                        regex.append(".*");
+                        i++;
+                    }
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '[') {
+                    int close = glob.indexOf(']', i + 2);
+                    if (close < 0) {
+                        regex.append(Pattern.quote("["));
+                        continue;
+                    }
+                    String set = glob.substring(i + 1, close);
+                    if (set.startsWith("!"))
+                        set = "^" + set.substring(1);
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = close;
+                } else if (c == '\\' && i + 1 < glob.length()) {
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+    Limits the I/O done against one source or destination with a pair of token buckets, one for bytes per second and
+    one for operations (file opens, reads and writes of a chunk, directory listings, links) per second. Callers take
+    what they are about to use with acquire(), which sleeps for as long as the buckets are in debt. Up to a second's
+    worth of unused allowance can be saved up, so short bursts go through at full speed.
+
+    When adaptive, the byte rate also follows the read latency reported through recordLatency(). The lowest latency
+    seen is taken as what the device does when idle. Once latency climbs well above that, the rate is cut back, and it
+    is raised step by step again while latency stays near the baseline, up to the configured limit or to no limit at
+    all. This lets a backup run next to services sharing the disk without hurting their latency.
+ */
+public class IoThrottle {
+
+    public static final long UNLIMITED = -1;
+
+    // Latency this many times the baseline means the device is busy with someone else's work
+    private static final double BACKOFF_LATENCY_RATIO = 2.0;
+    // Latency within this many times the baseline means the device has room to spare
+    private static final double IDLE_LATENCY_RATIO = 1.25;
+    private static final double BACKOFF_FACTOR = 0.7;
+    private static final double SPEEDUP_FACTOR = 1.2;
+    // Never back off below this, so the backup still makes progress on a busy machine
+    private static final double MIN_ADAPTIVE_BYTES_PER_SECOND = 1024 * 1024;
+    private static final long ADJUST_INTERVAL_NANOS = 1000000000L;
+    // Weight of each new sample in the moving average of latency
+    private static final double LATENCY_SMOOTHING = 0.1;
+    // The baseline creeps up this much per adjustment, so a device that has become slower for good is not throttled
+    // forever
+    private static final double BASELINE_DRIFT = 1.001;
+    // Reads served from the page cache would otherwise set a baseline no real read can come close to
+    private static final double MIN_BASELINE_LATENCY_NANOS = 2000000;
+
+    private final String name;
+    private final Logger logger;
+    private final long maxBytesPerSecond;
+    private final long maxOpsPerSecond;
+    private final boolean adaptive;
+    // Lets acquire() skip the lock entirely when there is nothing to limit
+    private volatile boolean limited;
+
+    // Guarded by this
+    private double bytesPerSecond;
+    private double byteTokens;
+    private double opTokens;
+    private long lastRefillNanos = System.nanoTime();
+    private double latencyAverage;
+    private double baselineLatency;
+    private long windowStartNanos = System.nanoTime();
+    private long windowBytes;
+    // What got through before adaptive throttling first kicked in
+    private double unthrottledThroughput;
+
+    /**
+     * @param maxBytesPerSecond Bytes per second allowed, or UNLIMITED.
+     * @param maxOpsPerSecond Operations per second allowed, or UNLIMITED.
+     * @param adaptive Whether to slow down when latency reported through recordLatency() rises.
+     */
+    public IoThrottle(String name, long maxBytesPerSecond, long maxOpsPerSecond, boolean adaptive, Logger logger) {
+        this.name = name;
+        this.logger = logger;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.maxOpsPerSecond = maxOpsPerSecond;
+        this.adaptive = adaptive;
+        this.bytesPerSecond = maxBytesPerSecond;
+        this.byteTokens = Math.max(maxBytesPerSecond, 0);
+        this.opTokens = Math.max(maxOpsPerSecond, 0);
+        this.limited = maxBytesPerSecond != UNLIMITED || maxOpsPerSecond != UNLIMITED;
+    }
+
+    /**
+     *
+     * @return A throttle that never waits.
+     */
+    public static IoThrottle unlimited() {
+        return new IoThrottle("unlimited", UNLIMITED, UNLIMITED, false, null);
+    }
+
+    /**
+     *
+     * @return Whether this throttle ever waits or needs to hear about latency, i.e. whether I/O has to be done in
+     * small enough pieces for it to act on.
+     */
+    public boolean isActive() {
+        return limited || adaptive;
+    }
+
+    /**
+     * Wait until one operation moving bytes bytes is allowed.
+     */
+    public void acquire(long bytes) {
+        if (!limited && !adaptive)
+            return;
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            windowBytes += bytes;
+            refill(now);
+            if (!limited)
+                return;
+            waitNanos = 0;
+            // Going into debt rather than waiting for the tokens up front keeps it fair between threads
+            if (bytesPerSecond > 0) {
+                byteTokens -= bytes;
+                if (byteTokens < 0)
+                    waitNanos = (long) (-byteTokens / bytesPerSecond * 1e9);
+            }
+            if (maxOpsPerSecond > 0) {
+                opTokens -= 1;
+                if (opTokens < 0)
+                    waitNanos = Math.max(waitNanos, (long) (-opTokens / maxOpsPerSecond * 1e9));
+            }
+        }
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Report how long a read against this throttle's device took. Only used when adaptive.
+     */
+    public void recordLatency(long nanos) {
+        if (!adaptive)
+            return;
+        synchronized (this) {
+            latencyAverage = latencyAverage == 0 ? nanos : latencyAverage + LATENCY_SMOOTHING * (nanos - latencyAverage);
+            adjust(System.nanoTime());
+        }
+    }
+
+    /**
+     *
+     * @return The byte rate currently enforced, or UNLIMITED.
+     */
+    public synchronized long getBytesPerSecond() {
+        return bytesPerSecond > 0 ? (long) bytesPerSecond : UNLIMITED;
+    }
+
+    public String toString() {
+        return (maxBytesPerSecond == UNLIMITED ? "unlimited" : maxBytesPerSecond + " bytes/s") + ", "
+                + (maxOpsPerSecond == UNLIMITED ? "unlimited" : maxOpsPerSecond + " ops/s")
+                + (adaptive ? ", adaptive" : "");
+    }
+
+    private void refill(long now) {
+        double seconds = (now - lastRefillNanos) / 1e9;
+        lastRefillNanos = now;
+        if (bytesPerSecond > 0)
+            byteTokens = Math.min(bytesPerSecond, byteTokens + seconds * bytesPerSecond);
+        if (maxOpsPerSecond > 0)
+            opTokens = Math.min(maxOpsPerSecond, opTokens + seconds * maxOpsPerSecond);
+    }
+
+    private void adjust(long now) {
+        long elapsed = now - windowStartNanos;
+        if (elapsed < ADJUST_INTERVAL_NANOS)
+            return;
+        double throughput = windowBytes / (elapsed / 1e9);
+        windowStartNanos = now;
+        windowBytes = 0;
+
+        if (baselineLatency == 0 || latencyAverage < baselineLatency)
+            baselineLatency = Math.max(latencyAverage, MIN_BASELINE_LATENCY_NANOS);
+        else
+            baselineLatency *= BASELINE_DRIFT;
+
+        if (latencyAverage > baselineLatency * BACKOFF_LATENCY_RATIO) {
+            // Start from what actually got through when there was no limit yet
+            if (bytesPerSecond <= 0)
+                unthrottledThroughput = throughput;
+            double current = bytesPerSecond > 0 ? bytesPerSecond : throughput;
+            double slower = Math.max(MIN_ADAPTIVE_BYTES_PER_SECOND, current * BACKOFF_FACTOR);
+            if (bytesPerSecond <= 0 || slower < bytesPerSecond) {
+                setBytesPerSecond(slower);
+                log(String.format("%s read latency is %.1f ms against a baseline of %.1f ms, slowing down to %.1f MB/s", name, latencyAverage / 1e6, baselineLatency / 1e6, slower / (1024 * 1024)));
+            }
+        } else if (latencyAverage < baselineLatency * IDLE_LATENCY_RATIO && bytesPerSecond > 0 && bytesPerSecond != maxBytesPerSecond) {
+            double faster = bytesPerSecond * SPEEDUP_FACTOR;
+            if (maxBytesPerSecond != UNLIMITED && faster >= maxBytesPerSecond) {
+                setBytesPerSecond(maxBytesPerSecond);
+                log(name + " is idle again, back to the configured limit");
+            } else if (maxBytesPerSecond == UNLIMITED && faster >= unthrottledThroughput) {
+                setBytesPerSecond(UNLIMITED);
+                log(name + " is idle again, no longer limiting");
+            } else {
+                setBytesPerSecond(faster);
+            }
+        }
+    }
+
+    private void setBytesPerSecond(double bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.byteTokens = Math.min(byteTokens, Math.max(bytesPerSecond, 0));
+        this.limited = bytesPerSecond > 0 || maxOpsPerSecond != UNLIMITED;
+    }
+
+    private void log(String message) {
+        if (logger != null)
+            logger.log(message);
+    }
+
+    /**
+     *
+     * @return The number of bytes in text, which is a plain number or one with a K, M or G suffix, e.g. "20M".
+     */
+    public static long parseBytes(String text) {
+        String trimmed = text.trim().toUpperCase();
+        long multiplier = 1;
+        if (trimmed.endsWith("K")) {
+            multiplier = 1024;
+        } else if (trimmed.endsWith("M")) {
+            multiplier = 1024 * 1024;
+        } else if (trimmed.endsWith("G")) {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if (multiplier != 1)
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        return Long.parseLong(trimmed) * multiplier;
+    }
+}
@@ -0,0 +1,136 @@
+import java.nio.file.FileStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Runs any number of backup jobs in one process. A job asks to run after a delay, and once the delay is up it waits
+    in line until it fits in the I/O budget. No more than a set number of jobs run at once, and no two jobs that read
+    or write the same file system run at once, so jobs sharing a disk take turns instead of seeking against each other.
+    A job that cannot start keeps the file systems it needs reserved against jobs that queued after it, so it is not
+    starved by a stream of later jobs that each need only part of them.
+
+    Waiting takes no thread. Timers and the queue are only bookkeeping, and a thread is only taken while a job runs.
+ */
+public class JobScheduler {
+
+    /*
+        Something the scheduler runs, usually again and again.
+     */
+    public interface Job extends Runnable {
+        String getName();
+
+        /**
+         * Worked out again every time the job is queued, since destinations come and go.
+         *
+         * @return The file systems the next run of the job reads or writes.
+         */
+        Set<FileStore> getFileStores();
+    }
+
+    private final Logger logger;
+    private final int maxRunningJobs;
+    private final ScheduledExecutorService executor;
+    // Jobs whose delay is up, in the order they became ready
+    private final List<QueuedJob> waiting = new ArrayList<QueuedJob>();
+    private final Set<FileStore> busyFileStores = new HashSet<FileStore>();
+    private int runningJobs;
+
+    public JobScheduler(int maxRunningJobs, Logger logger) {
+        this.logger = logger;
+        this.maxRunningJobs = maxRunningJobs;
+        // One thread more than can run jobs, so timers and checks still fire while every job is busy
+        this.executor = Executors.newScheduledThreadPool(maxRunningJobs + 1);
+    }
+
+    /**
+     * Queue job to run once delay is up and the I/O budget allows it.
+     */
+    public void schedule(final Job job, long delay, TimeUnit unit) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(job);
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * Run a quick check, such as whether a destination is back, once delay is up. Checks do not count against the
+     * I/O budget, so they must not do any real work themselves.
+     */
+    public void check(Runnable check, long delay, TimeUnit unit) {
+        executor.schedule(check, delay, unit);
+    }
+
+    private void enqueue(Job job) {
+        // Looking up file systems touches the disks, so it is done before taking the lock
+        Set<FileStore> fileStores = job.getFileStores();
+        synchronized (this) {
+            waiting.add(new QueuedJob(job, fileStores));
+            dispatch();
+            for (QueuedJob queuedJob : waiting) {
+                if (queuedJob.job == job)
+                    logger.log("Job " + job.getName() + " is waiting for other jobs to finish");
+            }
+        }
+    }
+
+    /*
+      Start every waiting job that fits, oldest first.
+    */
+    private synchronized void dispatch() {
+        Set<FileStore> reserved = new HashSet<FileStore>(busyFileStores);
+        Iterator<QueuedJob> iterator = waiting.iterator();
+        while (iterator.hasNext() && runningJobs < maxRunningJobs) {
+            final QueuedJob queuedJob = iterator.next();
+            if (!Collections.disjoint(queuedJob.fileStores, reserved)) {
+                // Keep what this job needs for it, ahead of anything that queued later
+                reserved.addAll(queuedJob.fileStores);
+                continue;
+            }
+            iterator.remove();
+            runningJobs++;
+            busyFileStores.addAll(queuedJob.fileStores);
+            reserved.addAll(queuedJob.fileStores);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        queuedJob.job.run();
+                    } catch (Throwable throwable) {
+                        throwable.printStackTrace();
+                        logger.log("Job " + queuedJob.job.getName() + " failed! " + throwable.getMessage());
+                    } finally {
+                        finish(queuedJob);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void finish(QueuedJob queuedJob) {
+        runningJobs--;
+        busyFileStores.removeAll(queuedJob.fileStores);
+        dispatch();
+    }
+
+    /*
+        A job whose delay is up, along with the file systems it was found to need at that point.
+     */
+    private static class QueuedJob {
+        private final Job job;
+        private final Set<FileStore> fileStores;
+
+        private QueuedJob(Job job, Set<FileStore> fileStores) {
+            this.job = job;
+            this.fileStores = fileStores;
+        }
+    }
+}
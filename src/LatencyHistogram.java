@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    Counts how long some operation took in fixed buckets, the way a Prometheus histogram does. Recording is a couple
+    of atomic increments, so it is cheap enough to call from every copy thread for every file.
+ */
+public class LatencyHistogram {
+
+    // Upper bound of each bucket in nanoseconds, from 100 microseconds to 5 minutes. Anything slower only counts
+    // towards the total.
+    private static final long[] BUCKET_BOUNDS = {
+            100000L, 500000L, 1000000L, 5000000L, 10000000L, 50000000L, 100000000L, 500000000L,
+            1000000000L, 5000000000L, 10000000000L, 60000000000L, 300000000000L
+    };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            if (nanos <= BUCKET_BOUNDS[i]) {
+                buckets.incrementAndGet(i);
+                break;
+            }
+        }
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Add everything recorded in other to this histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            buckets.addAndGet(i, other.buckets.get(i));
+        }
+        count.addAndGet(other.count.get());
+        sumNanos.addAndGet(other.sumNanos.get());
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.get();
+    }
+
+    /**
+     *
+     * @return The mean of everything recorded in milliseconds, or 0 if nothing was.
+     */
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : sumNanos.get() / 1e6 / n;
+    }
+
+    /**
+     *
+     * @return The upper bound of the bucket holding the given quantile in milliseconds, which is as close as the
+     * buckets allow. Infinity if it falls beyond the last bucket.
+     */
+    public double getQuantileMillis(double quantile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return BUCKET_BOUNDS[i] / 1e6;
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Append this histogram to a Prometheus text format exposition. The HELP and TYPE lines are the caller's
+     * business, since one metric can have several labelled histograms.
+     *
+     * @param labels Labels to put on every sample, e.g. destination="/mnt/usb", or an empty string.
+     */
+    public void appendPrometheus(StringBuilder output, String name, String labels) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            cumulative += buckets.get(i);
+            output.append(name).append("_bucket{").append(labels).append(separator).append("le=\"").append(BUCKET_BOUNDS[i] / 1e9).append("\"} ").append(cumulative).append('\n');
+        }
+        output.append(name).append("_bucket{").append(labels).append(separator).append("le=\"+Inf\"} ").append(count.get()).append('\n');
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        output.append(name).append("_sum").append(braces).append(' ').append(sumNanos.get() / 1e9).append('\n');
+        output.append(name).append("_count").append(braces).append(' ').append(count.get()).append('\n');
+    }
+}
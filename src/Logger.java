@@ -1,74 +1,248 @@
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/*
+    Logs to standard out and, when a file prefix is set, to numbered log files that roll over at maxFileSize bytes.
+
+    Callers only put the message on a bounded queue, so logging never blocks the copy threads on I/O. A single writer
+    thread keeps the current log file open, writes whatever has queued up in one batch, and keeps count of the bytes
+    written so it knows when to roll over without asking the file system. If the queue is ever full the message is
+    dropped rather than stalling the caller, and the number dropped is logged once there is room again. Everything
+    still queued is written out when the JVM shuts down.
+ */
 public class Logger {
 
+    // Messages waiting for the writer thread before new ones are dropped
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    // Most messages written per batch
+    private static final int BATCH_SIZE = 1024;
+
     private final String filePrefix;
     private final int maxFileSize;
     private final AtomicInteger currentFileNumber;
+    private final ArrayBlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(QUEUE_CAPACITY);
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong submittedMessages = new AtomicLong();
+    private final Thread writerThread;
+    private final Thread shutdownHook;
+    private volatile boolean closed = false;
+
+    // Only touched by the writer thread
+    private volatile long handledMessages = 0;
+    private Writer currentWriter;
+    private long currentFileBytes;
+    private long lastTimestampSecond = -1;
+    private String lastTimestamp;
 
     public Logger(String filePrefix, int maxFileSize) {
         this.filePrefix = filePrefix;
         this.maxFileSize = maxFileSize;
         this.currentFileNumber = new AtomicInteger(Math.max(1, getCurrentLogFileCount()));
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "Logger");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
 
     /**
      *
-     * @return The number of log fies with filePrefix as the prefix in the working directory.
+     * @return The number of log files with filePrefix as the prefix in the working directory, found by checking for
+     * each numbered file in turn rather than listing the whole directory.
      */
-    private synchronized int getCurrentLogFileCount() {
-        File[] filesList = new File("./").listFiles();
-        if (filesList == null)
-            throw new IllegalStateException("Unable to determine current file number.");
-        int matchedFiles = 0;
-        for (File file : filesList) {
-            if (file.getName().matches(filePrefix + "([0-9])*\\.log")) {
-                matchedFiles++;
+    private int getCurrentLogFileCount() {
+        if (filePrefix == null)
+            return 0;
+        int count = 0;
+        while (new File(filePrefix + (count + 1) + ".log").exists()) {
+            count++;
+        }
+        return count;
+    }
+
+    public void log(String message) {
+        submittedMessages.incrementAndGet();
+        if (!queue.offer(new Message(System.currentTimeMillis(), message))) {
+            droppedMessages.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait until every message logged before this call has been written.
+     */
+    public void flush() {
+        long target = submittedMessages.get();
+        while (handledMessages + droppedMessages.get() < target && writerThread.isAlive()) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                return;
             }
         }
-        return matchedFiles;
     }
 
     /**
-     *
-     * @return A File representing the current File to write to.
+     * Write out everything still queued, close the log file and stop the writer thread. Nothing logged afterwards is
+     * written anywhere.
      */
-    private synchronized File getCurrentFile(int messageLength) {
-        File currentFile = new File(filePrefix + currentFileNumber.get() + ".log");
-        if (currentFile.length() + messageLength > maxFileSize) {
-            return new File(filePrefix + currentFileNumber.incrementAndGet() + ".log");
+    public void close() {
+        closed = true;
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
         }
-        return currentFile;
+        // Otherwise the hook would keep this logger around until the JVM exits
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException exc) {
+            // Already shutting down, possibly in the hook itself
+        }
+    }
+
+    public String getFilePrefix() {
+        return filePrefix;
+    }
+
+    public int getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
     }
 
-    public synchronized void log(String message) {
-        StringBuffer stringBuffer = new StringBuffer();
-        stringBuffer.append(new Date().toString());
-        stringBuffer.append(": ");
-        stringBuffer.append(message);
+    private void writeLoop() {
+        List<Message> batch = new ArrayList<Message>(BATCH_SIZE);
+        long reportedDropped = 0;
+        while (true) {
+            Message first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException exc) {
+                first = null;
+            }
+            if (first == null) {
+                if (closed && queue.isEmpty())
+                    break;
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            int logged = batch.size();
+
+            long dropped = droppedMessages.get();
+            if (dropped > reportedDropped) {
+                batch.add(new Message(System.currentTimeMillis(), "Logger queue was full, dropped " + (dropped - reportedDropped) + " messages"));
+                reportedDropped = dropped;
+            }
+
+            StringBuilder console = new StringBuilder();
+            for (Message message : batch) {
+                String line = formatTimestamp(message.millis) + ": " + message.text;
+                console.append(line).append(System.lineSeparator());
+                writeToFile(line);
+            }
+            System.out.print(console);
+            System.out.flush();
+            flushFile();
+            handledMessages += logged;
+            batch.clear();
+        }
+        closeFile();
+    }
 
-        System.out.println(stringBuffer.toString());
+    private String formatTimestamp(long millis) {
+        // Date.toString is slow, and most batches land within the same second
+        long second = millis / 1000;
+        if (second != lastTimestampSecond) {
+            lastTimestampSecond = second;
+            lastTimestamp = new Date(millis).toString();
+        }
+        return lastTimestamp;
+    }
 
+    private void writeToFile(String line) {
         if (filePrefix == null)
             return;
+        byte[] bytes = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        try {
+            if (currentWriter != null && currentFileBytes + bytes.length > maxFileSize) {
+                closeFile();
+                currentFileNumber.incrementAndGet();
+            }
+            if (currentWriter == null) {
+                File currentFile = new File(filePrefix + currentFileNumber.get() + ".log");
+                // Only stat the file when opening it, from then on the bytes written are counted
+                currentFileBytes = currentFile.length();
+                if (currentFileBytes + bytes.length > maxFileSize && currentFileBytes > 0) {
+                    currentFile = new File(filePrefix + currentFileNumber.incrementAndGet() + ".log");
+                    currentFileBytes = currentFile.length();
+                }
+                currentWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(currentFile, true), StandardCharsets.UTF_8));
+            }
+            currentWriter.write(line);
+            currentWriter.write(System.lineSeparator());
+            currentFileBytes += bytes.length;
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeFile();
+        }
+    }
 
-        try (PrintWriter printWriter = new PrintWriter(new FileWriter(getCurrentFile(stringBuffer.toString().length()), true))) {
-            printWriter.println(stringBuffer.toString());
+    private void flushFile() {
+        if (currentWriter == null)
+            return;
+        try {
+            currentWriter.flush();
         } catch (IOException e) {
             e.printStackTrace();
+            closeFile();
         }
     }
 
-    public String getFilePrefix() {
-        return filePrefix;
+    private void closeFile() {
+        if (currentWriter == null)
+            return;
+        try {
+            currentWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        currentWriter = null;
     }
 
-    public int getMaxFileSize() {
-        return maxFileSize;
+    private static class Message {
+        private final long millis;
+        private final String text;
+
+        private Message(long millis, String text) {
+            this.millis = millis;
+            this.text = text;
+        }
     }
 }
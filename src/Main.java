@@ -1,49 +1,284 @@
 import java.util.ArrayList;
 import java.io.File;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 class Main {
-    private static Logger logger = new Logger(null, -1);
+    // Built once the arguments are parsed, since -l decides where it writes to
+    private static Logger logger;
 
     private static ApplicationArguments applicationArguments;
 
-    // Effectively an instance of the Timer class, see https://docs.oracle.com/javase/7/docs/api/java/util/Timer.html
-    private static final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+    // Arguments that apply to the whole process rather than to one job, so they cannot appear in a job file
+    private static final List<String> PROCESS_ARGUMENTS = Arrays.asList("-l", "-id", "-mp", "-j", "-jc", "-vs", "-rs", "-rp", "-rt", "-qv", "-qt");
 
     public static void main(String[] args) {
-        parseArgs(args);
+        applicationArguments = parseArgs(args, false);
+        if (applicationArguments.getVerifySnapshot() != null) {
+            // Only verify, then exit with whether the snapshot is intact
+            SnapshotVerifier.Result result = new SnapshotVerifier(logger, Runtime.getRuntime().availableProcessors()).verify(applicationArguments.getVerifySnapshot(), applicationArguments.getSource());
+            System.exit(result.getMismatches() == 0 ? 0 : 2);
+        }
+        if (applicationArguments.getRestoreSnapshot() != null) {
+            restore();
+            return;
+        }
+        if (applicationArguments.getQueryPath() != null || applicationArguments.getQueryTime() != -1) {
+            query();
+            return;
+        }
+        List<ApplicationArguments> jobs = new ArrayList<ApplicationArguments>();
+        if (applicationArguments.getJobFile() != null)
+            jobs.addAll(readJobFile(applicationArguments.getJobFile()));
+        else
+            jobs.add(applicationArguments);
         printArgs();
-        scheduledExecutorService.schedule(new CopyIterationRunnable(applicationArguments, scheduledExecutorService, logger), 0, TimeUnit.SECONDS);
+        for (ApplicationArguments job : jobs) {
+            printJobArgs(job);
+        }
+        BackupMetrics metrics = new BackupMetrics(logger);
+        if (applicationArguments.getMetricsPort() != -1) {
+            try {
+                MetricsHttpServer.start(applicationArguments.getMetricsPort(), metrics);
+                logger.log("Serving metrics at http://localhost:" + applicationArguments.getMetricsPort() + "/metrics");
+            } catch (IOException exc) {
+                logger.log("Failed to serve metrics on port " + applicationArguments.getMetricsPort() + ": " + exc.getMessage());
+            }
+        }
+        JobScheduler scheduler = new JobScheduler(applicationArguments.getMaxRunningJobs(), logger);
+        // Shared so that every job's expired snapshots are deleted on the same background thread
+        SnapshotPruner snapshotPruner = new SnapshotPruner(logger, metrics);
+        for (ApplicationArguments job : jobs) {
+            scheduler.schedule(new CopyIterationRunnable(job.getSource().getAbsolutePath(), job, scheduler, snapshotPruner, logger, metrics), 0, TimeUnit.SECONDS);
+        }
     }
 
     private static void printArgs() {
         logger.log("Simple Java Directory Backup");
         logger.log("Working Directory: " + System.getProperty("user.dir"));
+        if (applicationArguments.getJobFile() != null)
+            logger.log("Job File: " + applicationArguments.getJobFile().getAbsolutePath());
+        logger.log("Concurrent Jobs: " + applicationArguments.getMaxRunningJobs());
+        logger.log("Metrics Port: " + applicationArguments.getMetricsPort());
+        logger.log("Log File Prefix: " + logger.getFilePrefix());
+    }
+
+    private static void printJobArgs(ApplicationArguments applicationArguments) {
         logger.log("Source: " + applicationArguments.getSource().getAbsolutePath());
         logger.log("Destinations: ");
-        for (File dest : applicationArguments.getDestinations()) {
-            logger.log("    " + dest.getAbsolutePath());
+        for (int i = 0; i < applicationArguments.getDestinations().length; i++) {
+            logger.log("    " + applicationArguments.getDestinations()[i].getAbsolutePath() + " (throttle: " + describeLimits(applicationArguments.getDestinationBytesPerSecond()[i], applicationArguments.getDestinationOpsPerSecond()[i]) + ")");
         }
+        logger.log("Source Throttle: " + describeLimits(applicationArguments.getSourceBytesPerSecond(), applicationArguments.getSourceOpsPerSecond()));
+        logger.log("Adaptive Throttle: " + applicationArguments.isAdaptiveThrottle());
         logger.log("Continuous Mode: " + applicationArguments.isContinuousMode());
         logger.log("Ignore Hidden Files: " + applicationArguments.ignoreHidden());
+        logger.log("Incremental Mode: " + applicationArguments.isIncremental());
+        logger.log("Delta Threshold: " + (applicationArguments.getDeltaThreshold() == CopyEngine.DELTA_DISABLED ? "disabled" : applicationArguments.getDeltaThreshold() + " bytes"));
+        logger.log("Pack Threshold: " + (applicationArguments.getPackThreshold() == CopyEngine.PACK_DISABLED ? "disabled" : applicationArguments.getPackThreshold() + " bytes"));
+        logger.log("Traversal Threads: " + applicationArguments.getTraversalThreads());
+        logger.log("Copy Threads: " + applicationArguments.getCopyThreads());
+        logger.log("Fan Out: " + applicationArguments.isFanOut());
+        logger.log("Write Manifests: " + applicationArguments.writeManifests());
+        logger.log("Copy Backend: " + applicationArguments.getCopyBackend());
+        logger.log("Archive Mode: " + applicationArguments.isArchive());
+        logger.log("Verify: " + applicationArguments.isVerify());
+        logger.log("Snapshot Index: " + applicationArguments.isBuildIndex());
         logger.log("Repeat Delay (in seconds): " + applicationArguments.getRepeatDelayInSeconds());
         logger.log("Keep Count: " + applicationArguments.getKeepCount());
-        logger.log("Log File Prefix: " + logger.getFilePrefix());
         logger.log("Time: " + applicationArguments.getTime());
     }
 
-    private static void parseArgs(String[] args) {
+    /*
+      Restore a snapshot, or part of one, and exit.
+    */
+    private static void restore() {
+        FileCopier fileCopier = new FileCopier(applicationArguments.getCopyBackend(), logger, new LatencyHistogram());
+        SnapshotRestorer restorer = new SnapshotRestorer(logger, applicationArguments.getTraversalThreads(), applicationArguments.getCopyThreads(), fileCopier);
+        try {
+            CopyStatistics statistics = restorer.restore(applicationArguments.getRestoreSnapshot(), applicationArguments.getRestorePath(), applicationArguments.getRestoreTarget());
+            System.exit(statistics.getFilesFailed() == 0 ? 0 : 2);
+        } catch (Exception exc) {
+            exc.printStackTrace();
+            logger.log("Restore failed! " + exc.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /*
+      Answer a question about the first destination from its snapshot index,
+      bringing the index up to date first.
+    */
+    private static void query() {
+        File destination = applicationArguments.getDestinations()[0];
+        SnapshotPruner pruner = new SnapshotPruner(logger, new BackupMetrics(logger));
+        List<File> snapshots = pruner.list(destination);
+        SnapshotIndex.update(destination, snapshots, logger);
+        SnapshotIndex index = SnapshotIndex.open(destination);
+        if (index == null) {
+            logger.log("No snapshot index could be built for " + destination.getAbsolutePath());
+            System.exit(1);
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        try {
+            if (applicationArguments.getQueryPath() != null) {
+                List<SnapshotIndex.Version> versions = index.findVersions(applicationArguments.getQueryPath());
+                logger.log(versions.size() + " versions of " + applicationArguments.getQueryPath() + " in " + destination.getAbsolutePath());
+                for (SnapshotIndex.Version version : versions) {
+                    System.out.println(String.format("%d bytes, modified %s, in snapshots %d to %d",
+                            version.getSize(), format.format(new Date(version.getLastModified())), version.getFirstSnapshot(), version.getLastSnapshot()));
+                }
+            } else {
+                // The newest snapshot taken no later than the time asked about
+                File snapshot = null;
+                for (File candidate : snapshots) {
+                    if (SnapshotPruner.snapshotMillis(candidate) <= applicationArguments.getQueryTime())
+                        snapshot = candidate;
+                }
+                if (snapshot == null) {
+                    logger.log("No snapshot in " + destination.getAbsolutePath() + " is that old");
+                    System.exit(1);
+                }
+                logger.log("State at " + format.format(new Date(applicationArguments.getQueryTime())) + " is snapshot " + snapshot.getAbsolutePath());
+                index.visitSnapshot(SnapshotPruner.snapshotMillis(snapshot), new SnapshotIndex.Visitor() {
+                    @Override
+                    public void visit(SnapshotIndex.Version version) {
+                        System.out.println(version.getPath() + "\t" + version.getSize() + "\t" + version.getLastModified());
+                    }
+                });
+            }
+        } catch (IOException exc) {
+            logger.log("Failed to read snapshot index: " + exc.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static String describeLimits(long bytesPerSecond, long opsPerSecond) {
+        return (bytesPerSecond == IoThrottle.UNLIMITED ? "unlimited" : bytesPerSecond + " bytes/s") + ", " + (opsPerSecond == IoThrottle.UNLIMITED ? "unlimited" : opsPerSecond + " ops/s");
+    }
+
+    /*
+      Read the jobs in jobFile, one per line with the same arguments a single
+      job takes on the command line. Blank lines and lines starting with # are
+      skipped, and arguments containing spaces can be put in double quotes.
+    */
+    private static List<ApplicationArguments> readJobFile(File jobFile) {
+        List<String> lines = null;
+        try {
+            lines = Files.readAllLines(jobFile.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException exc) {
+            System.err.println("Failed to read job file " + jobFile.getAbsolutePath() + ": " + exc.getMessage());
+            System.exit(1);
+        }
+        List<ApplicationArguments> jobs = new ArrayList<ApplicationArguments>();
+        // Two jobs writing the same destination would prune each other's snapshots
+        Map<File, Integer> destinationLines = new HashMap<File, Integer>();
+        for (int l = 0; l < lines.size(); l++) {
+            String line = lines.get(l).trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            logger.log("Job on line " + (l + 1) + ": " + line);
+            ApplicationArguments job = parseArgs(splitJobLine(line, l + 1), true);
+            for (File destination : job.getDestinations()) {
+                Integer otherLine = destinationLines.put(destination.getAbsoluteFile(), l + 1);
+                if (otherLine != null) {
+                    System.err.println("Error in job file! Destination " + destination.getAbsolutePath() + " is used on lines " + otherLine + " and " + (l + 1) + "!");
+                    System.exit(1);
+                }
+            }
+            jobs.add(job);
+        }
+        if (jobs.isEmpty()) {
+            System.err.println("Job file " + jobFile.getAbsolutePath() + " has no jobs.");
+            System.exit(1);
+        }
+        return jobs;
+    }
+
+    private static String[] splitJobLine(String line, int lineNumber) {
+        List<String> arguments = new ArrayList<String>();
+        StringBuilder argument = null;
+        boolean quoted = false;
+        for (char c : line.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+                if (argument == null)
+                    argument = new StringBuilder();
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (argument != null) {
+                    arguments.add(argument.toString());
+                    argument = null;
+                }
+            } else {
+                if (argument == null)
+                    argument = new StringBuilder();
+                argument.append(c);
+            }
+        }
+        if (quoted) {
+            System.err.println("Error in job file! Unterminated quote on line " + lineNumber + "!");
+            System.exit(1);
+        }
+        if (argument != null)
+            arguments.add(argument.toString());
+        return arguments.toArray(new String[]{});
+    }
+
+    /*
+      Parse the arguments of the process, or of a single job from a job file.
+    */
+    private static ApplicationArguments parseArgs(String[] args, boolean job) {
         File sourceDir = null;
         ArrayList<File> destinationDirs = new ArrayList<File>();
+        // Limits for each destination, in the same order as destinationDirs
+        ArrayList<Long> destinationBytesPerSecond = new ArrayList<Long>();
+        ArrayList<Long> destinationOpsPerSecond = new ArrayList<Long>();
         int repeatDelayInSeconds = -1;
         int keepCount = -1;
         Time time = null;
         boolean continuousMode = false;
         boolean ignoreHidden = false;
+        boolean incremental = false;
+        int traversalThreads = -1;
+        int copyThreads = -1;
+        boolean fanOut = false;
+        boolean writeManifests = false;
+        FileCopier.Backend copyBackend = null;
+        boolean archive = false;
+        int metricsPort = -1;
+        long sourceBytesPerSecond = IoThrottle.UNLIMITED;
+        long sourceOpsPerSecond = IoThrottle.UNLIMITED;
+        boolean adaptiveThrottle = false;
+        boolean verify = false;
+        File verifySnapshot = null;
+        boolean buildIndex = false;
+        File restoreSnapshot = null;
+        String restorePath = null;
+        File restoreTarget = null;
+        String queryPath = null;
+        long queryTime = -1;
+        File jobFile = null;
+        String logFilePrefix = null;
+        long deltaThreshold = CopyEngine.DELTA_DISABLED;
+        long packThreshold = CopyEngine.PACK_DISABLED;
+        int maxRunningJobs = -1;
 
         for (int a = 0; a < args.length; a += 2) {
+            if (job && PROCESS_ARGUMENTS.contains(args[a])) {
+                System.err.println("Error parsing arguments! " + args[a] + " cannot be used in a job file!");
+                printUsage();
+                System.exit(1);
+            }
             if (args[a].equals("-s")) {
                 if (sourceDir == null) {
                     sourceDir = new File(args[a + 1]);
@@ -54,6 +289,8 @@ class Main {
                 }
             } else if (args[a].equals("-d")) {
                 destinationDirs.add(new File(args[a + 1]));
+                destinationBytesPerSecond.add(IoThrottle.UNLIMITED);
+                destinationOpsPerSecond.add(IoThrottle.UNLIMITED);
             } else if (args[a].equals("-t")) {
                 if (time == null) {
                     time = new Time(args[a + 1]);
@@ -86,9 +323,192 @@ class Main {
                 ignoreHidden = true;
                 // Since no second part to this argument and we're doing a+=2, subtract one.
                 a--;
+            } else if (args[a].equals("-i")) {
+                // Hard link unchanged files to the previous snapshot
+                incremental = true;
+                // Since no second part to this argument and we're doing a+=2, subtract one.
+                a--;
+            } else if (args[a].equals("-pt")) {
+                if (traversalThreads == -1) {
+                    traversalThreads = Integer.parseInt(args[a + 1]);
+                } else {
+                    System.err.println("Error parsing arguments! Traversal threads cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-pc")) {
+                if (copyThreads == -1) {
+                    copyThreads = Integer.parseInt(args[a + 1]);
+                } else {
+                    System.err.println("Error parsing arguments! Copy threads cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-f")) {
+                // Read the source once for all destinations
+                fanOut = true;
+                // Since no second part to this argument and we're doing a+=2, subtract one.
+                a--;
+            } else if (args[a].equals("-m")) {
+                // Write a manifest into every snapshot
+                writeManifests = true;
+                // Since no second part to this argument and we're doing a+=2, subtract one.
+                a--;
+            } else if (args[a].equals("-b")) {
+                if (copyBackend == null) {
+                    try {
+                        copyBackend = FileCopier.Backend.parse(args[a + 1]);
+                    } catch (IllegalArgumentException exc) {
+                        System.err.println("Error parsing arguments! Unknown copy backend \"" + args[a + 1] + "\"");
+                        printUsage();
+                        System.exit(1);
+                    }
+                } else {
+                    System.err.println("Error parsing arguments! Copy backend cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-a")) {
+                // Write every snapshot as a single compressed archive
+                archive = true;
+                // Since no second part to this argument and we're doing a+=2, subtract one.
+                a--;
+            } else if (args[a].equals("-mp")) {
+                if (metricsPort == -1) {
+                    metricsPort = Integer.parseInt(args[a + 1]);
+                } else {
+                    System.err.println("Error parsing arguments! Metrics port cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-ls")) {
+                if (sourceBytesPerSecond == IoThrottle.UNLIMITED) {
+                    sourceBytesPerSecond = parseLimit(args[a + 1], true);
+                } else {
+                    System.err.println("Error parsing arguments! Source byte limit cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-lo")) {
+                if (sourceOpsPerSecond == IoThrottle.UNLIMITED) {
+                    sourceOpsPerSecond = parseLimit(args[a + 1], false);
+                } else {
+                    System.err.println("Error parsing arguments! Source operation limit cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-la")) {
+                // Back off when source latency rises
+                adaptiveThrottle = true;
+                // Since no second part to this argument and we're doing a+=2, subtract one.
+                a--;
+            } else if (args[a].equals("-dl") || args[a].equals("-do")) {
+                // Applies to the destination given just before
+                boolean bytes = args[a].equals("-dl");
+                ArrayList<Long> limits = bytes ? destinationBytesPerSecond : destinationOpsPerSecond;
+                if (destinationDirs.isEmpty()) {
+                    System.err.println("Error parsing arguments! " + args[a] + " must follow the -d it applies to!");
+                    printUsage();
+                    System.exit(1);
+                } else if (limits.get(limits.size() - 1) == IoThrottle.UNLIMITED) {
+                    limits.set(limits.size() - 1, parseLimit(args[a + 1], bytes));
+                } else {
+                    System.err.println("Error parsing arguments! Destination " + (bytes ? "byte" : "operation") + " limit cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-v")) {
+                // Verify every snapshot after copying it
+                verify = true;
+                // Since no second part to this argument and we're doing a+=2, subtract one.
+                a--;
+            } else if (args[a].equals("-vs")) {
+                if (verifySnapshot == null) {
+                    verifySnapshot = new File(args[a + 1]);
+                } else {
+                    System.err.println("Error parsing arguments! Snapshot to verify cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-ix")) {
+                // Keep an index of every version of every file in each destination
+                buildIndex = true;
+                // Since no second part to this argument and we're doing a+=2, subtract one.
+                a--;
+            } else if (args[a].equals("-rs")) {
+                if (restoreSnapshot == null) {
+                    restoreSnapshot = new File(args[a + 1]);
+                } else {
+                    System.err.println("Error parsing arguments! Snapshot to restore cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-rp")) {
+                if (restorePath == null) {
+                    restorePath = normalizePath(args[a + 1]);
+                } else {
+                    System.err.println("Error parsing arguments! Path to restore cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-rt")) {
+                if (restoreTarget == null) {
+                    restoreTarget = new File(args[a + 1]);
+                } else {
+                    System.err.println("Error parsing arguments! Restore target cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-qv")) {
+                if (queryPath == null) {
+                    queryPath = normalizePath(args[a + 1]);
+                } else {
+                    System.err.println("Error parsing arguments! Path to query cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-qt")) {
+                if (queryTime == -1) {
+                    queryTime = parseQueryTime(args[a + 1]);
+                } else {
+                    System.err.println("Error parsing arguments! Time to query cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-dt")) {
+                if (deltaThreshold == CopyEngine.DELTA_DISABLED) {
+                    deltaThreshold = parseLimit(args[a + 1], true);
+                } else {
+                    System.err.println("Error parsing arguments! Delta threshold cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-pk")) {
+                if (packThreshold == CopyEngine.PACK_DISABLED) {
+                    packThreshold = parseLimit(args[a + 1], true);
+                } else {
+                    System.err.println("Error parsing arguments! Pack threshold cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-j")) {
+                if (jobFile == null) {
+                    jobFile = new File(args[a + 1]);
+                } else {
+                    System.err.println("Error parsing arguments! Job file cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (args[a].equals("-jc")) {
+                if (maxRunningJobs == -1) {
+                    maxRunningJobs = Integer.parseInt(args[a + 1]);
+                } else {
+                    System.err.println("Error parsing arguments! Concurrent job count cannot be set more than once!");
+                    printUsage();
+                    System.exit(1);
+                }
             } else if (args[a].equals("-l")) {
-                // Currently, just hardcode a 1MB max log file size.
-                logger = new Logger(args[a + 1], 1024 * 1024);
+                logFilePrefix = args[a + 1];
             } else if (args[a].equals("-id")) {
                 // Perform check on this id!
                 ApplicationInstanceManager.CheckForInstance(args[a+1]);
@@ -98,23 +518,84 @@ class Main {
                 System.exit(1);
             }
         }
+        if (!job) {
+            // Currently, just hardcode a 1MB max log file size.
+            logger = new Logger(logFilePrefix, 1024 * 1024);
+        }
 
-        if (sourceDir == null) {
+        if (verifySnapshot != null && !verifySnapshot.isDirectory()) {
+            System.err.println("Snapshot to verify is not a directory.");
+            printUsage();
+            System.exit(1);
+        }
+        if (restoreSnapshot != null && (restoreTarget == null || !restoreSnapshot.exists())) {
+            System.err.println("Restoring needs an existing snapshot and a target to restore to.");
+            printUsage();
+            System.exit(1);
+        }
+        if ((restorePath != null || restoreTarget != null) && restoreSnapshot == null) {
+            System.err.println("No snapshot to restore from set.");
+            printUsage();
+            System.exit(1);
+        }
+        if (queryPath != null && queryTime != -1) {
+            System.err.println("Only one query can be made at a time.");
+            printUsage();
+            System.exit(1);
+        }
+        if ((queryPath != null || queryTime != -1) && destinationDirs.size() != 1) {
+            System.err.println("Queries need exactly one destination.");
+            printUsage();
+            System.exit(1);
+        }
+        // Verifying, restoring and querying are done once and need nothing else
+        boolean oneShot = verifySnapshot != null || restoreSnapshot != null || queryPath != null || queryTime != -1;
+        if (jobFile != null && (oneShot || sourceDir != null || destinationDirs.size() > 0)) {
+            System.err.println("A job file cannot be combined with a source, destinations, verifying, restoring or queries.");
+            printUsage();
+            System.exit(1);
+        }
+        if (jobFile != null) {
+            for (String arg : args) {
+                if (arg.startsWith("-") && !PROCESS_ARGUMENTS.contains(arg)) {
+                    System.err.println("Error parsing arguments! " + arg + " belongs on a job's line in the job file!");
+                    printUsage();
+                    System.exit(1);
+                }
+            }
+        }
+        if (jobFile == null && maxRunningJobs != -1) {
+            System.err.println("Concurrent job count only applies to a job file.");
+            printUsage();
+            System.exit(1);
+        }
+        if (maxRunningJobs == 0 || maxRunningJobs < -1) {
+            System.err.println("Concurrent job count must be at least one.");
+            printUsage();
+            System.exit(1);
+        }
+        if (jobFile != null) {
+            // The jobs themselves come later, from the job file
+            return new ApplicationArguments(null, new File[]{}, repeatDelayInSeconds, keepCount, time, continuousMode, ignoreHidden, incremental, 1, 1, fanOut, writeManifests, FileCopier.Backend.COMMONS_IO, archive, metricsPort,
+                    sourceBytesPerSecond, sourceOpsPerSecond, adaptiveThrottle, new long[]{}, new long[]{}, verify, null,
+                    buildIndex, null, null, null, null, -1, jobFile, maxRunningJobs == -1 ? 2 : maxRunningJobs, deltaThreshold, packThreshold);
+        }
+        if (sourceDir == null && !oneShot) {
             System.err.println("Source not set.");
             printUsage();
             System.exit(1);
         }
-        if (destinationDirs.size() <= 0) {
+        if (destinationDirs.size() <= 0 && !oneShot) {
             System.err.println("No destinations set.");
             printUsage();
             System.exit(1);
         }
-        if (time == null && repeatDelayInSeconds <= -1) {
+        if (time == null && repeatDelayInSeconds <= -1 && !oneShot) {
             System.err.println("Time and repeat delay not set.");
             printUsage();
             System.exit(1);
         }
-        if (keepCount <= -1) {
+        if (keepCount <= -1 && !oneShot) {
             System.err.println("Keep count not set.");
             printUsage();
             System.exit(1);
@@ -124,8 +605,121 @@ class Main {
             printUsage();
             System.exit(1);
         }
+        if (traversalThreads == 0 || traversalThreads < -1 || copyThreads == 0 || copyThreads < -1) {
+            System.err.println("Thread counts must be at least one.");
+            printUsage();
+            System.exit(1);
+        }
+        if (archive && (incremental || fanOut || writeManifests)) {
+            System.err.println("Archive mode cannot be combined with incremental mode, fan-out or manifests.");
+            printUsage();
+            System.exit(1);
+        }
+        if (fanOut && (copyBackend != null || deltaThreshold != CopyEngine.DELTA_DISABLED)) {
+            System.err.println("Fan-out writes every destination from the same reads, so it cannot be combined with a copy backend or delta copies.");
+            printUsage();
+            System.exit(1);
+        }
+        if (deltaThreshold != CopyEngine.DELTA_DISABLED && !incremental) {
+            System.err.println("Delta copies need incremental mode, they are made against the previous snapshot.");
+            printUsage();
+            System.exit(1);
+        }
+        if (packThreshold != CopyEngine.PACK_DISABLED && (archive || incremental || writeManifests)) {
+            System.err.println("Packing cannot be combined with archive mode, incremental mode or manifests.");
+            printUsage();
+            System.exit(1);
+        }
+        if (packThreshold > SnapshotPack.MAX_THRESHOLD) {
+            System.err.println("Pack threshold cannot be more than " + SnapshotPack.MAX_THRESHOLD + " bytes, packed files are held in memory.");
+            printUsage();
+            System.exit(1);
+        }
+        if (archive && verify) {
+            System.err.println("Archive mode cannot be combined with verification.");
+            printUsage();
+            System.exit(1);
+        }
+        if (metricsPort < -1 || metricsPort > 65535) {
+            System.err.println("Metrics port must be between 0 and 65535.");
+            printUsage();
+            System.exit(1);
+        }
+        // Default to the old single-threaded behavior, except for restores which should be as quick as the machine allows
+        int defaultThreads = restoreSnapshot != null ? Runtime.getRuntime().availableProcessors() : 1;
+        if (traversalThreads == -1)
+            traversalThreads = defaultThreads;
+        if (copyThreads == -1)
+            copyThreads = defaultThreads;
+        if (copyBackend == null)
+            copyBackend = FileCopier.Backend.COMMONS_IO;
 
-        applicationArguments = new ApplicationArguments(sourceDir, destinationDirs.toArray(new File[]{}), repeatDelayInSeconds, keepCount, time, continuousMode, ignoreHidden);
+        return new ApplicationArguments(sourceDir, destinationDirs.toArray(new File[]{}), repeatDelayInSeconds, keepCount, time, continuousMode, ignoreHidden, incremental, traversalThreads, copyThreads, fanOut, writeManifests, copyBackend, archive, metricsPort,
+                sourceBytesPerSecond, sourceOpsPerSecond, adaptiveThrottle, toArray(destinationBytesPerSecond), toArray(destinationOpsPerSecond), verify, verifySnapshot,
+                buildIndex, restoreSnapshot, restorePath, restoreTarget, queryPath, queryTime, null, 1, deltaThreshold, packThreshold);
+    }
+
+    /*
+      Turn a path given on the command line into one relative to a snapshot,
+      using '/' separators.
+    */
+    private static String normalizePath(String path) {
+        String normalized = path.replace(File.separatorChar, '/');
+        while (normalized.startsWith("/"))
+            normalized = normalized.substring(1);
+        while (normalized.endsWith("/"))
+            normalized = normalized.substring(0, normalized.length() - 1);
+        return normalized.isEmpty() ? null : normalized;
+    }
+
+    /*
+      Parse a time to query as milliseconds since the epoch, or as a local date
+      with an optional time of day.
+    */
+    private static long parseQueryTime(String text) {
+        if (text.matches("[0-9]+"))
+            return Long.parseLong(text);
+        for (String pattern : new String[]{"yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd"}) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setLenient(false);
+            try {
+                Date date = format.parse(text);
+                // A bare date means the end of that day
+                return pattern.length() == 10 ? date.getTime() + 24 * 60 * 60 * 1000 - 1 : date.getTime();
+            } catch (ParseException exc) {
+                // Try the next pattern
+            }
+        }
+        System.err.println("Error parsing arguments! Invalid time \"" + text + "\"");
+        printUsage();
+        System.exit(1);
+        return -1;
+    }
+
+    /*
+      Parse a positive rate limit, with a K, M or G suffix allowed for bytes.
+    */
+    private static long parseLimit(String text, boolean bytes) {
+        long limit = -1;
+        try {
+            limit = bytes ? IoThrottle.parseBytes(text) : Long.parseLong(text);
+        } catch (NumberFormatException exc) {
+            // Reported below
+        }
+        if (limit <= 0) {
+            System.err.println("Error parsing arguments! Invalid limit \"" + text + "\"");
+            printUsage();
+            System.exit(1);
+        }
+        return limit;
+    }
+
+    private static long[] toArray(ArrayList<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
     }
 
     private static void printUsage() {
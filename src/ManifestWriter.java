@@ -0,0 +1,201 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+    Builds the manifest of a snapshot while it is being copied. Entries arrive in whatever order the copy threads
+    finish them, so they are sorted in bounded runs that are spilled to disk and merged when the copy is done. Memory
+    use is therefore bounded by the run size no matter how many files the snapshot holds.
+ */
+public class ManifestWriter {
+
+    // Entries held in memory before a sorted run is spilled to disk
+    private static final int RUN_SIZE = 100000;
+
+    private static final Comparator<SnapshotManifest.Entry> PATH_ORDER = new Comparator<SnapshotManifest.Entry>() {
+        @Override
+        public int compare(SnapshotManifest.Entry a, SnapshotManifest.Entry b) {
+            return SnapshotManifest.comparePaths(a.getPathBytes(), b.getPathBytes());
+        }
+    };
+
+    private final File snapshot;
+    private final List<SnapshotManifest.Entry> buffered = new ArrayList<SnapshotManifest.Entry>();
+    private final List<File> runs = new ArrayList<File>();
+
+    public ManifestWriter(File snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Record a file in the manifest.
+     *
+     * @param path The path of the file relative to the snapshot, using '/' separators.
+     * @param hash The MD5 of the file's content, or null if it is not known.
+     */
+    public synchronized void add(String path, long size, long lastModified, long inode, byte[] hash) throws IOException {
+        buffered.add(new SnapshotManifest.Entry(path.getBytes(StandardCharsets.UTF_8), size, lastModified, inode,
+                hash == null ? new byte[SnapshotManifest.HASH_SIZE] : hash));
+        if (buffered.size() >= RUN_SIZE)
+            spill();
+    }
+
+    /**
+     * Merge everything recorded so far into the snapshot's manifest file.
+     */
+    public synchronized void finish() throws IOException {
+        spill();
+        File temporary = new File(snapshot, SnapshotManifest.FILE_NAME + ".tmp");
+        File index = new File(snapshot, SnapshotManifest.FILE_NAME + ".index");
+        long count = 0;
+        long indexOffset;
+
+        List<RunReader> readers = new ArrayList<RunReader>();
+        try {
+            PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+                @Override
+                public int compare(RunReader a, RunReader b) {
+                    return PATH_ORDER.compare(a.current, b.current);
+                }
+            });
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.advance())
+                    queue.add(reader);
+            }
+
+            try (DataOutputStream records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+                 DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index), 1 << 16))) {
+                records.write(new byte[SnapshotManifest.HEADER_SIZE]);
+                long position = SnapshotManifest.HEADER_SIZE;
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    offsets.writeLong(position);
+                    position += writeEntry(records, reader.current);
+                    count++;
+                    if (reader.advance())
+                        queue.add(reader);
+                }
+                indexOffset = position;
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+            deleteRuns();
+        }
+
+        // Append the index and fill in the header
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(temporary, "rw")) {
+            randomAccessFile.seek(indexOffset);
+            try (FileInputStream indexStream = new FileInputStream(index)) {
+                byte[] buffer = new byte[1 << 16];
+                int read;
+                while ((read = indexStream.read(buffer)) > 0) {
+                    randomAccessFile.write(buffer, 0, read);
+                }
+            }
+            randomAccessFile.seek(0);
+            randomAccessFile.write(SnapshotManifest.MAGIC);
+            randomAccessFile.writeLong(count);
+            randomAccessFile.writeLong(indexOffset);
+        } finally {
+            index.delete();
+        }
+        Files.move(temporary.toPath(), new File(snapshot, SnapshotManifest.FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Throw away everything recorded so far, e.g. because the copy failed.
+     */
+    public synchronized void abandon() {
+        buffered.clear();
+        deleteRuns();
+    }
+
+    private void spill() throws IOException {
+        if (buffered.isEmpty())
+            return;
+        Collections.sort(buffered, PATH_ORDER);
+        File run = new File(snapshot, SnapshotManifest.FILE_NAME + ".run" + runs.size());
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            for (SnapshotManifest.Entry entry : buffered) {
+                writeEntry(outputStream, entry);
+            }
+        }
+        runs.add(run);
+        buffered.clear();
+    }
+
+    private void deleteRuns() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    private static int writeEntry(DataOutputStream outputStream, SnapshotManifest.Entry entry) throws IOException {
+        outputStream.writeInt(entry.getPathBytes().length);
+        outputStream.write(entry.getPathBytes());
+        outputStream.writeLong(entry.getSize());
+        outputStream.writeLong(entry.getLastModified());
+        outputStream.writeLong(entry.getInode());
+        outputStream.write(entry.getHash());
+        return 4 + entry.getPathBytes().length + 24 + SnapshotManifest.HASH_SIZE;
+    }
+
+    /*
+        Reads back one sorted run during the merge.
+     */
+    private static class RunReader {
+        private final DataInputStream inputStream;
+        private SnapshotManifest.Entry current;
+
+        private RunReader(File run) throws IOException {
+            this.inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+        }
+
+        private boolean advance() throws IOException {
+            int pathLength;
+            try {
+                pathLength = inputStream.readInt();
+            } catch (EOFException exc) {
+                current = null;
+                return false;
+            }
+            byte[] path = new byte[pathLength];
+            inputStream.readFully(path);
+            long size = inputStream.readLong();
+            long lastModified = inputStream.readLong();
+            long inode = inputStream.readLong();
+            byte[] hash = new byte[SnapshotManifest.HASH_SIZE];
+            inputStream.readFully(hash);
+            current = new SnapshotManifest.Entry(path, size, lastModified, inode, hash);
+            return true;
+        }
+
+        private void close() {
+            try {
+                inputStream.close();
+            } catch (IOException exc) {
+                exc.printStackTrace();
+            }
+        }
+    }
+}
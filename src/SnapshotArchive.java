@@ -0,0 +1,542 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    A snapshot stored as a single file, for destinations where creating millions of small files is slow.
+
+    The files of the snapshot are written one after the other into a logical stream, each preceded by a tar-like
+    header giving its path, size and modification time. Directories get a header of their own with a size of -1 and
+    no data, so empty directories survive. That stream is cut into blocks of BLOCK_SIZE bytes which are
+    compressed independently on several threads, pigz style, and written out in order as separate gzip members. After
+    the blocks comes one more gzip member holding the index, and finally a fixed size footer:
+
+        blocks     gzip members, each holding BLOCK_SIZE bytes of the logical stream (the last may hold fewer)
+        index      gzip member holding: int block count, then per block long file offset and int compressed length;
+                   int entry count, then per entry UTF path, long offset of its data in the logical stream, long
+                   size (-1 for a directory), long modification time
+        footer     8 bytes magic "SJDBARC1", long file offset of the index
+
+    Since every block is compressed on its own, a single file can be extracted by decompressing only the blocks its
+    data falls in.
+ */
+public class SnapshotArchive {
+
+    public static final String EXTENSION = ".sjdba";
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final byte[] MAGIC = "SJDBARC1".getBytes(StandardCharsets.US_ASCII);
+    private static final int FOOTER_SIZE = 16;
+
+    private final File file;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final List<Entry> entries;
+
+    private SnapshotArchive(File file, long[] blockOffsets, int[] blockLengths, List<Entry> entries) {
+        this.file = file;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.entries = entries;
+    }
+
+    /**
+     * Read the index of an archive.
+     */
+    public static SnapshotArchive open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            long length = randomAccessFile.length();
+            if (length < FOOTER_SIZE)
+                throw new IOException("Archive " + file.getAbsolutePath() + " is truncated");
+            randomAccessFile.seek(length - FOOTER_SIZE);
+            byte[] magic = new byte[MAGIC.length];
+            randomAccessFile.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException("Not an archive: " + file.getAbsolutePath());
+            long indexOffset = randomAccessFile.readLong();
+
+            byte[] compressedIndex = new byte[(int) (length - FOOTER_SIZE - indexOffset)];
+            randomAccessFile.seek(indexOffset);
+            randomAccessFile.readFully(compressedIndex);
+            try (DataInputStream index = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(compressedIndex)))) {
+                int blockCount = index.readInt();
+                long[] blockOffsets = new long[blockCount];
+                int[] blockLengths = new int[blockCount];
+                for (int i = 0; i < blockCount; i++) {
+                    blockOffsets[i] = index.readLong();
+                    blockLengths[i] = index.readInt();
+                }
+                int entryCount = index.readInt();
+                List<Entry> entries = new ArrayList<Entry>(entryCount);
+                for (int i = 0; i < entryCount; i++) {
+                    entries.add(new Entry(index.readUTF(), index.readLong(), index.readLong(), index.readLong()));
+                }
+                return new SnapshotArchive(file, blockOffsets, blockLengths, entries);
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     *
+     * @return Every file in the archive, in the order they were written.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     *
+     * @return The entry for path, or null if the archive does not contain it.
+     */
+    public Entry find(String path) {
+        // Only used to pick out single files, restoring everything goes through getEntries()
+        for (Entry entry : entries) {
+            if (entry.path.equals(path))
+                return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Write the content of entry to target, decompressing only the blocks it is stored in, and restore its
+     * modification time.
+     */
+    public void extract(Entry entry, File target) throws IOException {
+        extract(Collections.singletonList(entry), Collections.singletonList(target));
+    }
+
+    /**
+     * Write the content of every entry to the target at the same position in targets. Each decompressed block is
+     * reused for as long as the entries that follow are stored in it, so extracting many small files in archive
+     * order only decompresses every block once.
+     */
+    public void extract(List<Entry> entries, List<File> targets) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            int cachedBlock = -1;
+            byte[] block = null;
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                File target = targets.get(i);
+                if (entry.isDirectory()) {
+                    if (!target.isDirectory() && !target.mkdirs())
+                        throw new IOException("Failed to create directory " + target.getAbsolutePath());
+                    target.setLastModified(entry.lastModified);
+                    continue;
+                }
+                try (OutputStream outputStream = new FileOutputStream(target)) {
+                    long position = entry.offset;
+                    long end = entry.offset + entry.size;
+                    while (position < end) {
+                        int blockNumber = (int) (position / BLOCK_SIZE);
+                        if (blockNumber != cachedBlock) {
+                            block = readBlock(randomAccessFile, blockNumber);
+                            cachedBlock = blockNumber;
+                        }
+                        int offsetInBlock = (int) (position % BLOCK_SIZE);
+                        int length = (int) Math.min(block.length - offsetInBlock, end - position);
+                        outputStream.write(block, offsetInBlock, length);
+                        position += length;
+                    }
+                }
+                target.setLastModified(entry.lastModified);
+            }
+        }
+    }
+
+    private byte[] readBlock(RandomAccessFile randomAccessFile, int blockNumber) throws IOException {
+        byte[] compressed = new byte[blockLengths[blockNumber]];
+        randomAccessFile.seek(blockOffsets[blockNumber]);
+        randomAccessFile.readFully(compressed);
+        ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE);
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                block.write(buffer, 0, read);
+            }
+        }
+        return block.toByteArray();
+    }
+
+    /*
+        A single file stored in an archive.
+     */
+    public static class Entry {
+        private final String path;
+        private final long offset;
+        private final long size;
+        private final long lastModified;
+
+        private Entry(String path, long offset, long size, long lastModified) {
+            this.path = path;
+            this.offset = offset;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         *
+         * @return The path of the file relative to the snapshot, using '/' separators.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public boolean isDirectory() {
+            return size < 0;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /*
+        Writes an archive. Files are added from a single thread while their blocks are compressed on a pool of
+        compression threads, with at most a couple of blocks per thread waiting to be written.
+     */
+    public static class Writer {
+        private final File archive;
+        private final File temporary;
+        private final OutputStream outputStream;
+        private final ExecutorService compressionPool;
+        private final int maxPendingBlocks;
+        private final IoThrottle readThrottle;
+        private final IoThrottle writeThrottle;
+        // Reused for every file, only add() touches it
+        private final byte[] readBuffer = new byte[FileCopier.THROTTLED_CHUNK_SIZE];
+        private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<Future<byte[]>>();
+        private final List<Long> blockOffsets = new ArrayList<Long>();
+        private final List<Integer> blockLengths = new ArrayList<Integer>();
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int blockFill = 0;
+        private long logicalPosition = 0;
+        private long filePosition = 0;
+        private boolean broken = false;
+
+        /**
+         * Start writing archive. Nothing appears at that path until finish() succeeds.
+         *
+         * @param readThrottle Throttle for reading the files added.
+         * @param writeThrottle Throttle for writing the archive.
+         */
+        public Writer(File archive, int compressionThreads, IoThrottle readThrottle, IoThrottle writeThrottle) throws IOException {
+            this.archive = archive;
+            this.readThrottle = readThrottle;
+            this.writeThrottle = writeThrottle;
+            this.temporary = new File(archive.getPath() + SnapshotPruner.PARTIAL_SUFFIX);
+            this.outputStream = new FileOutputStream(temporary);
+            this.compressionPool = Executors.newFixedThreadPool(compressionThreads);
+            this.maxPendingBlocks = compressionThreads * 2;
+        }
+
+        /**
+         * Append the directory at path, so it exists on extraction even if it is empty.
+         */
+        public void addDirectory(String path, File source) throws IOException {
+            writeHeader(path, -1, source.lastModified());
+            entries.add(new Entry(path, logicalPosition, -1, source.lastModified()));
+        }
+
+        /**
+         * Append the content of source to the archive. If source cannot be read the archive is left consistent and
+         * the file is just not listed in the index, check isBroken() to tell this apart from failing to write.
+         *
+         * @param path The path of the file relative to the snapshot, using '/' separators.
+         * @return The number of bytes of content stored.
+         */
+        public long add(String path, File source) throws IOException {
+            IOException readFailure = null;
+            try (InputStream inputStream = new FileInputStream(source)) {
+                long size = source.length();
+                long lastModified = source.lastModified();
+                writeHeader(path, size, lastModified);
+                Entry entry = new Entry(path, logicalPosition, size, lastModified);
+
+                byte[] buffer = readBuffer;
+                long remaining = size;
+                while (remaining > 0) {
+                    int read;
+                    int length = (int) Math.min(buffer.length, remaining);
+                    readThrottle.acquire(length);
+                    try {
+                        long readStart = System.nanoTime();
+                        read = inputStream.read(buffer, 0, length);
+                        readThrottle.recordLatency(System.nanoTime() - readStart);
+                    } catch (IOException exc) {
+                        readFailure = exc;
+                        break;
+                    }
+                    if (read < 0) {
+                        readFailure = new IOException("Source " + source.getAbsolutePath() + " shrank while archiving");
+                        break;
+                    }
+                    append(buffer, 0, read);
+                    remaining -= read;
+                }
+                // The header promised size bytes, so pad out whatever could not be read
+                Arrays.fill(buffer, (byte) 0);
+                while (remaining > 0) {
+                    int length = (int) Math.min(buffer.length, remaining);
+                    append(buffer, 0, length);
+                    remaining -= length;
+                }
+                if (readFailure != null)
+                    throw readFailure;
+                entries.add(entry);
+                return size;
+            }
+        }
+
+        /**
+         * Write the index and move the archive into place.
+         */
+        public void finish() throws IOException {
+            try {
+                if (blockFill > 0)
+                    submitBlock();
+                while (!pendingBlocks.isEmpty()) {
+                    writeOldestBlock();
+                }
+
+                ByteArrayOutputStream index = new ByteArrayOutputStream();
+                try (DataOutputStream indexStream = new DataOutputStream(new GZIPOutputStream(index))) {
+                    indexStream.writeInt(blockOffsets.size());
+                    for (int i = 0; i < blockOffsets.size(); i++) {
+                        indexStream.writeLong(blockOffsets.get(i));
+                        indexStream.writeInt(blockLengths.get(i));
+                    }
+                    indexStream.writeInt(entries.size());
+                    for (Entry entry : entries) {
+                        indexStream.writeUTF(entry.path);
+                        indexStream.writeLong(entry.offset);
+                        indexStream.writeLong(entry.size);
+                        indexStream.writeLong(entry.lastModified);
+                    }
+                }
+                long indexOffset = filePosition;
+                outputStream.write(index.toByteArray());
+                DataOutputStream footer = new DataOutputStream(outputStream);
+                footer.write(MAGIC);
+                footer.writeLong(indexOffset);
+                footer.flush();
+            } finally {
+                outputStream.close();
+                compressionPool.shutdownNow();
+            }
+            Files.move(temporary.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         *
+         * @return Whether writing the archive itself failed, after which nothing more can be added.
+         */
+        public boolean isBroken() {
+            return broken;
+        }
+
+        /**
+         * Give up on the archive and remove what was written so far.
+         */
+        public void abandon() {
+            try {
+                outputStream.close();
+            } catch (IOException exc) {
+                // Already failing
+            }
+            compressionPool.shutdownNow();
+            temporary.delete();
+        }
+
+        public File getArchive() {
+            return archive;
+        }
+
+        /**
+         *
+         * @return The number of compressed bytes written so far.
+         */
+        public long getCompressedSize() {
+            return filePosition;
+        }
+
+        private void writeHeader(String path, long size, long lastModified) throws IOException {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerStream = new DataOutputStream(header);
+            headerStream.writeUTF(path);
+            headerStream.writeLong(size);
+            headerStream.writeLong(lastModified);
+            append(header.toByteArray(), 0, header.size());
+        }
+
+        private void append(byte[] data, int offset, int length) throws IOException {
+            if (broken)
+                throw new IOException("Archive " + archive.getAbsolutePath() + " can no longer be written");
+            while (length > 0) {
+                int copied = Math.min(length, BLOCK_SIZE - blockFill);
+                System.arraycopy(data, offset, block, blockFill, copied);
+                blockFill += copied;
+                offset += copied;
+                length -= copied;
+                logicalPosition += copied;
+                if (blockFill == BLOCK_SIZE)
+                    submitBlock();
+            }
+        }
+
+        private void submitBlock() throws IOException {
+            final byte[] data = block;
+            final int length = blockFill;
+            pendingBlocks.add(compressionPool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2);
+                    try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed)) {
+                        gzipOutputStream.write(data, 0, length);
+                    }
+                    return compressed.toByteArray();
+                }
+            }));
+            block = new byte[BLOCK_SIZE];
+            blockFill = 0;
+            while (pendingBlocks.size() > maxPendingBlocks) {
+                writeOldestBlock();
+            }
+        }
+
+        private void writeOldestBlock() throws IOException {
+            byte[] compressed;
+            try {
+                compressed = pendingBlocks.poll().get();
+                writeThrottle.acquire(compressed.length);
+                outputStream.write(compressed);
+            } catch (InterruptedException | ExecutionException | IOException exc) {
+                broken = true;
+                throw new IOException("Failed to write block to " + archive.getAbsolutePath() + ": " + exc.getMessage(), exc);
+            }
+            blockOffsets.add(filePosition);
+            blockLengths.add(compressed.length);
+            filePosition += compressed.length;
+        }
+    }
+
+    /**
+     * Archive everything under source into archive, skipping hidden files if asked to and whatever .sjdbignore files
+     * leave out, like a copy would. Files that cannot be read are logged and left out.
+     */
+    public static void write(File source, File archive, int compressionThreads, boolean ignoreHidden, Logger logger, CopyStatistics statistics, IoThrottle readThrottle, IoThrottle writeThrottle) throws IOException {
+        long start = System.nanoTime();
+        Writer writer = new Writer(archive, compressionThreads, readThrottle, writeThrottle);
+        // Files are appended one at a time, so reading listings ahead keeps the writer from waiting on them
+        DirectoryScanner scanner = new DirectoryScanner(false, 2);
+        try {
+            writeDirectory(writer, scanner, source, "", null, ignoreHidden, logger, statistics);
+            writer.finish();
+        } catch (IOException | RuntimeException exc) {
+            writer.abandon();
+            throw exc;
+        } finally {
+            scanner.close();
+        }
+        statistics.setWallNanos(System.nanoTime() - start);
+        logger.log("Archive " + archive.getAbsolutePath() + " is " + String.format("%.1f", archive.length() / (1024.0 * 1024.0)) + " MB");
+    }
+
+    private static void writeDirectory(Writer writer, DirectoryScanner scanner, File source, String relativePath, IgnoreRules ignoreRules, boolean ignoreHidden, Logger logger, CopyStatistics statistics) throws IOException {
+        writer.readThrottle.acquire(0);
+        long scanStart = System.nanoTime();
+        DirectoryScanner.Listing listing;
+        try {
+            listing = scanner.list(source);
+        } catch (IOException exc) {
+            logger.log("Failed to list directory " + source.getAbsolutePath());
+            return;
+        }
+        IgnoreRules rules = IgnoreRules.forDirectory(source, listing.getIgnoreFile() == null ? null : listing.getIgnoreFile().getFile(), relativePath, ignoreRules, logger);
+        if (rules != null && rules.excludesDirectory())
+            return;
+        List<DirectoryScanner.Entry> entries = new ArrayList<DirectoryScanner.Entry>(listing.getEntries());
+        // A stable order makes archives of the same tree list the same way
+        Collections.sort(entries, new Comparator<DirectoryScanner.Entry>() {
+            @Override
+            public int compare(DirectoryScanner.Entry a, DirectoryScanner.Entry b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        statistics.directoryScanned(System.nanoTime() - scanStart);
+
+        List<DirectoryScanner.Entry> kept = new ArrayList<DirectoryScanner.Entry>();
+        for (DirectoryScanner.Entry entry : entries) {
+            if (entry.isHidden() && ignoreHidden) {
+                logger.log("Ignoring " + entry.getFile().getAbsolutePath() + " since it is hidden!");
+                continue;
+            }
+            String childPath = relativePath.isEmpty() ? entry.getName() : relativePath + "/" + entry.getName();
+            if (rules != null && rules.isIgnored(childPath, entry.isDirectory())) {
+                if (entry.isDirectory())
+                    logger.log("Ignoring directory " + entry.getFile().getAbsolutePath() + " because of sjdbignore rules!");
+                continue;
+            }
+            kept.add(entry);
+            if (entry.isDirectory())
+                scanner.prefetch(entry.getFile());
+        }
+
+        for (DirectoryScanner.Entry entry : kept) {
+            File f = entry.getFile();
+            String childPath = relativePath.isEmpty() ? entry.getName() : relativePath + "/" + entry.getName();
+            if (entry.isDirectory()) {
+                writer.addDirectory(childPath, f);
+                writeDirectory(writer, scanner, f, childPath, rules, ignoreHidden, logger, statistics);
+                continue;
+            }
+            if (!entry.isFile()) {
+                logger.log("Ignoring unrecognized entity at " + f.getAbsolutePath());
+                continue;
+            }
+            long copyStart = System.nanoTime();
+            try {
+                long bytes = writer.add(childPath, f);
+                statistics.fileCopied(bytes, System.nanoTime() - copyStart);
+            } catch (IOException exc) {
+                if (writer.isBroken())
+                    throw exc;
+                logger.log("Failed to archive " + f.getAbsolutePath() + ": " + exc.getMessage());
+                statistics.fileFailed();
+            }
+        }
+    }
+}
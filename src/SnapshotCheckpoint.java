@@ -0,0 +1,194 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+    Records which files of an unfinished snapshot are complete, so a copy cut short by a crash or a disconnected
+    destination carries on where it stopped instead of starting over. The checkpoint is an append-only file in the
+    snapshot's working directory. Every file is recorded with the size and modification time its source had when it
+    was copied, and its MD5 if it was hashed, once its data and modification time are in place. Records are buffered
+    and pushed to disk every second or every thousand files, so losing the tail of the checkpoint only means
+    copying those files again.
+
+    A record cut off by a crash is dropped when the checkpoint is opened again.
+ */
+public class SnapshotCheckpoint {
+
+    public static final String FILE_NAME = ".sjdbcheckpoint";
+    private static final int FLUSH_INTERVAL_RECORDS = 1024;
+    private static final long FLUSH_INTERVAL_NANOS = 1000000000L;
+    // Guards against reading garbage as an enormous path
+    private static final int MAX_PATH_BYTES = 1 << 16;
+
+    private final boolean resumed;
+    // What earlier attempts completed, never changed once opened
+    private final Map<String, Entry> completed;
+    private final FileOutputStream fileStream;
+    private final DataOutputStream outputStream;
+    private int unflushedRecords;
+    private long lastFlushNanos = System.nanoTime();
+    private boolean closed;
+
+    private SnapshotCheckpoint(File file, boolean resumed, Map<String, Entry> completed) throws IOException {
+        this.resumed = resumed;
+        this.completed = completed;
+        this.fileStream = new FileOutputStream(file, true);
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(fileStream, 1 << 16));
+    }
+
+    /**
+     * Open the checkpoint of the snapshot being written to workingDirectory, reading back whatever an earlier attempt
+     * recorded there.
+     */
+    public static SnapshotCheckpoint open(File workingDirectory) throws IOException {
+        File file = new File(workingDirectory, FILE_NAME);
+        if (!file.isFile())
+            return new SnapshotCheckpoint(file, false, Collections.<String, Entry>emptyMap());
+
+        Map<String, Entry> completed = new HashMap<String, Entry>();
+        long validLength = 0;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                int pathLength = inputStream.readInt();
+                if (pathLength < 0 || pathLength > MAX_PATH_BYTES)
+                    break;
+                byte[] path = new byte[pathLength];
+                inputStream.readFully(path);
+                long size = inputStream.readLong();
+                long lastModified = inputStream.readLong();
+                byte[] hash = null;
+                if (inputStream.readBoolean()) {
+                    hash = new byte[SnapshotManifest.HASH_SIZE];
+                    inputStream.readFully(hash);
+                }
+                completed.put(new String(path, StandardCharsets.UTF_8), new Entry(size, lastModified, hash));
+                validLength += recordLength(pathLength, hash);
+            }
+        } catch (EOFException exc) {
+            // The last record was only partly written
+        }
+        // Drop the broken tail so new records are not appended behind it
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if (randomAccessFile.length() > validLength)
+                randomAccessFile.setLength(validLength);
+        }
+        return new SnapshotCheckpoint(file, true, completed);
+    }
+
+    /**
+     *
+     * @return Whether an earlier attempt already wrote to this snapshot.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     *
+     * @return How many files earlier attempts completed.
+     */
+    public int getCompletedCount() {
+        return completed.size();
+    }
+
+    /**
+     *
+     * @param path The path of the file relative to the snapshot, using '/' separators.
+     * @return What an earlier attempt recorded for path, or null if it did not complete it.
+     */
+    public Entry getCompleted(String path) {
+        return completed.get(path);
+    }
+
+    /**
+     * Record that path is complete.
+     *
+     * @param size The size of the source file.
+     * @param lastModified The modification time of the source file.
+     * @param hash The MD5 of the file's content, or null if it is not known.
+     */
+    public synchronized void record(String path, long size, long lastModified, byte[] hash) throws IOException {
+        if (closed)
+            return;
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        outputStream.writeInt(pathBytes.length);
+        outputStream.write(pathBytes);
+        outputStream.writeLong(size);
+        outputStream.writeLong(lastModified);
+        outputStream.writeBoolean(hash != null);
+        if (hash != null)
+            outputStream.write(hash);
+        unflushedRecords++;
+        long now = System.nanoTime();
+        if (unflushedRecords >= FLUSH_INTERVAL_RECORDS || now - lastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+            flush();
+            lastFlushNanos = now;
+        }
+    }
+
+    /**
+     * Push everything recorded to disk and stop recording. Safe to call more than once.
+     */
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            flush();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private void flush() throws IOException {
+        outputStream.flush();
+        fileStream.getFD().sync();
+        unflushedRecords = 0;
+    }
+
+    private static int recordLength(int pathLength, byte[] hash) {
+        return 4 + pathLength + 16 + 1 + (hash == null ? 0 : SnapshotManifest.HASH_SIZE);
+    }
+
+    /*
+        A file an earlier attempt completed.
+     */
+    public static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final byte[] hash;
+
+        private Entry(long size, long lastModified, byte[] hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        /**
+         *
+         * @return Whether the source file still has the size and modification time it had when it was copied.
+         */
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+        /**
+         *
+         * @return The MD5 of the file's content, or null if it was not hashed.
+         */
+        public byte[] getHash() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,476 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+/*
+    An index of every version of every file across the snapshots of a destination, kept in a single file next to
+    them. A version is a path with a given size, modification time and, where known, MD5, along with the oldest and
+    newest snapshot it was seen in without a change in between. "Every version of X" is a binary search, and "the tree
+    as of time T" is one sequential read of the index, neither of which touches the snapshots themselves.
+
+    The index is brought up to date after each snapshot is written by merging the new snapshot's sorted listing into
+    it, which takes its manifest where there is one. Versions only found in snapshots that have since been pruned are
+    dropped on the way. If the index is missing or unreadable it is rebuilt from every snapshot, oldest first.
+
+    Layout, all numbers big-endian:
+        8 bytes    magic "SJDBIDX1"
+        long       version count
+        long       offset of the position table
+        long       time of the newest snapshot merged in
+        records    int path length, UTF-8 path, long size, long modification time, 16 byte MD5 (all 0 if unknown),
+                   long time of the oldest snapshot with this version, long time of the newest
+        positions  one long per record giving its position
+
+    Records are sorted by path in manifest order, and the versions of each path from oldest to newest.
+ */
+public class SnapshotIndex {
+
+    public static final String FILE_NAME = ".sjdbindex";
+    private static final byte[] MAGIC = "SJDBIDX1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 32;
+    // Sorted listings of snapshots without a manifest are built in here
+    private static final String WORK_DIRECTORY_NAME = ".sjdbindex.work";
+
+    private final File file;
+    private final long versionCount;
+    private final long positionsOffset;
+    private final long newestSnapshot;
+
+    private SnapshotIndex(File file, long versionCount, long positionsOffset, long newestSnapshot) {
+        this.file = file;
+        this.versionCount = versionCount;
+        this.positionsOffset = positionsOffset;
+        this.newestSnapshot = newestSnapshot;
+    }
+
+    /**
+     *
+     * @return The index of destination, or null if it has none or it cannot be read.
+     */
+    public static SnapshotIndex open(File destination) {
+        File file = new File(destination, FILE_NAME);
+        if (!file.isFile())
+            return null;
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(file))) {
+            byte[] magic = new byte[MAGIC.length];
+            inputStream.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                return null;
+            return new SnapshotIndex(file, inputStream.readLong(), inputStream.readLong(), inputStream.readLong());
+        } catch (IOException exc) {
+            return null;
+        }
+    }
+
+    /**
+     * Bring the index of destination up to date with snapshots, which are all of its snapshots from oldest to
+     * newest.
+     */
+    public static void update(File destination, List<File> snapshots, Logger logger) {
+        SnapshotIndex index = open(destination);
+        long oldestKept = snapshots.isEmpty() ? Long.MAX_VALUE : SnapshotPruner.snapshotMillis(snapshots.get(0));
+        long newest = index == null ? -1 : index.newestSnapshot;
+        if (index == null)
+            logger.log("Building snapshot index for " + destination.getAbsolutePath() + " from " + snapshots.size() + " snapshots");
+        for (File snapshot : snapshots) {
+            long millis = SnapshotPruner.snapshotMillis(snapshot);
+            if (millis <= newest)
+                continue;
+            try {
+                merge(destination, index, snapshot, millis, oldestKept);
+            } catch (IOException exc) {
+                logger.log("Failed to add " + snapshot.getAbsolutePath() + " to the snapshot index: " + exc.getMessage());
+                return;
+            }
+            index = open(destination);
+            newest = millis;
+        }
+    }
+
+    /**
+     *
+     * @return The time of the newest snapshot merged into the index.
+     */
+    public long getNewestSnapshot() {
+        return newestSnapshot;
+    }
+
+    /**
+     *
+     * @param path The path of a file relative to the snapshots, using '/' separators.
+     * @return Every version of path the index knows about, oldest first.
+     */
+    public List<Version> findVersions(String path) throws IOException {
+        byte[] target = path.getBytes(StandardCharsets.UTF_8);
+        List<Version> versions = new ArrayList<Version>();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            long low = 0;
+            long high = versionCount;
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (SnapshotManifest.comparePaths(readPath(channel, positionOf(channel, middle)), target) < 0)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            for (long i = low; i < versionCount; i++) {
+                Version version = readVersion(channel, positionOf(channel, i));
+                if (!Arrays.equals(version.path, target))
+                    break;
+                versions.add(version);
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Hand every version present in the snapshot taken at snapshotMillis to visitor, in path order.
+     */
+    public void visitSnapshot(long snapshotMillis, Visitor visitor) throws IOException {
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            inputStream.readFully(new byte[HEADER_SIZE]);
+            for (long i = 0; i < versionCount; i++) {
+                Version version = readVersion(inputStream);
+                if (version.firstSnapshot <= snapshotMillis && snapshotMillis <= version.lastSnapshot)
+                    visitor.visit(version);
+            }
+        }
+    }
+
+    private long positionOf(FileChannel channel, long index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        readFully(channel, buffer, positionsOffset + index * 8);
+        return buffer.getLong(0);
+    }
+
+    private static byte[] readPath(FileChannel channel, long position) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, position);
+        ByteBuffer path = ByteBuffer.allocate(length.getInt(0));
+        readFully(channel, path, position + 4);
+        return path.array();
+    }
+
+    private static Version readVersion(FileChannel channel, long position) throws IOException {
+        byte[] path = readPath(channel, position);
+        ByteBuffer rest = ByteBuffer.allocate(16 + SnapshotManifest.HASH_SIZE + 16);
+        readFully(channel, rest, position + 4 + path.length);
+        byte[] hash = new byte[SnapshotManifest.HASH_SIZE];
+        rest.position(16);
+        rest.get(hash);
+        return new Version(path, rest.getLong(0), rest.getLong(8), hash, rest.getLong(16 + SnapshotManifest.HASH_SIZE), rest.getLong(24 + SnapshotManifest.HASH_SIZE));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Snapshot index is truncated");
+        }
+    }
+
+    /*
+      Merge the snapshot taken at millis into index, which may be null to start
+      a new one, dropping versions last seen before oldestKept.
+    */
+    private static void merge(File destination, SnapshotIndex index, File snapshot, long millis, long oldestKept) throws IOException {
+        File workDirectory = new File(destination, WORK_DIRECTORY_NAME);
+        File temporary = new File(destination, FILE_NAME + ".tmp");
+        File positions = new File(destination, FILE_NAME + ".positions");
+        try {
+            long previousNewest = index == null ? -1 : index.newestSnapshot;
+            long count = 0;
+            long positionsOffset;
+            // Closed before the work directory holding it is deleted
+            try (SnapshotManifest listing = listSnapshot(snapshot, workDirectory);
+                 DataOutputStream records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+                 DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(positions), 1 << 16));
+                 VersionReader old = new VersionReader(index)) {
+                records.write(new byte[HEADER_SIZE]);
+                long position = HEADER_SIZE;
+                long next = 0;
+                Version oldVersion = old.next();
+                while (oldVersion != null || next < listing.getEntryCount()) {
+                    SnapshotManifest.Entry entry = next < listing.getEntryCount() ? listing.get(next) : null;
+                    int order = oldVersion == null ? 1 : entry == null ? -1 : SnapshotManifest.comparePaths(oldVersion.path, entry.getPathBytes());
+                    byte[] path = order <= 0 ? oldVersion.path : entry.getPathBytes();
+
+                    // Every old version of this path, holding back the newest in case the new snapshot extends it
+                    Version latest = null;
+                    while (oldVersion != null && Arrays.equals(oldVersion.path, path)) {
+                        if (latest != null && latest.lastSnapshot >= oldestKept) {
+                            offsets.writeLong(position);
+                            position += writeVersion(records, latest);
+                            count++;
+                        }
+                        latest = oldVersion;
+                        oldVersion = old.next();
+                    }
+                    Version added = null;
+                    if (order >= 0) {
+                        added = new Version(path, entry.getSize(), entry.getLastModified(), entry.getHash(), millis, millis);
+                        next++;
+                    }
+                    if (added != null && latest != null && latest.lastSnapshot == previousNewest && latest.sameContent(added)) {
+                        latest = new Version(path, latest.size, latest.lastModified, hasHash(latest.hash) ? latest.hash : added.hash, latest.firstSnapshot, millis);
+                        added = null;
+                    }
+                    for (Version version : new Version[]{latest, added}) {
+                        if (version == null || version.lastSnapshot < oldestKept)
+                            continue;
+                        offsets.writeLong(position);
+                        position += writeVersion(records, version);
+                        count++;
+                    }
+                }
+                positionsOffset = position;
+            }
+
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(temporary, "rw")) {
+                randomAccessFile.seek(positionsOffset);
+                try (FileInputStream positionStream = new FileInputStream(positions)) {
+                    byte[] buffer = new byte[1 << 16];
+                    int read;
+                    while ((read = positionStream.read(buffer)) > 0) {
+                        randomAccessFile.write(buffer, 0, read);
+                    }
+                }
+                randomAccessFile.seek(0);
+                randomAccessFile.write(MAGIC);
+                randomAccessFile.writeLong(count);
+                randomAccessFile.writeLong(positionsOffset);
+                randomAccessFile.writeLong(millis);
+            }
+            Files.move(temporary.toPath(), new File(destination, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            positions.delete();
+            temporary.delete();
+            FileUtils.deleteQuietly(workDirectory);
+        }
+    }
+
+    /*
+      The files of snapshot sorted by path, taken from its manifest if it has
+      one and nothing packed, and otherwise sorted in workDirectory. The
+      caller has to close it.
+    */
+    private static SnapshotManifest listSnapshot(File snapshot, File workDirectory) throws IOException {
+        SnapshotManifest manifest = null;
+        SnapshotPack pack = null;
+        try {
+            if (snapshot.isDirectory()) {
+                manifest = SnapshotManifest.open(snapshot);
+                if (manifest != null && !new File(snapshot, SnapshotPack.DIRECTORY_NAME).isDirectory()) {
+                    // The caller closes it
+                    SnapshotManifest listing = manifest;
+                    manifest = null;
+                    return listing;
+                }
+                pack = SnapshotPack.open(snapshot);
+            }
+            FileUtils.deleteQuietly(workDirectory);
+            if (!workDirectory.mkdir())
+                throw new IOException("Failed to create " + workDirectory.getAbsolutePath());
+            ManifestWriter writer = new ManifestWriter(workDirectory);
+            if (snapshot.isDirectory()) {
+                if (manifest != null) {
+                    for (long position = 0; position < manifest.getEntryCount(); position++) {
+                        SnapshotManifest.Entry entry = manifest.get(position);
+                        writer.add(entry.getPath(), entry.getSize(), entry.getLastModified(), entry.getInode(), entry.getHash());
+                    }
+                } else {
+                    listDirectory(snapshot, "", writer);
+                }
+                if (pack != null) {
+                    for (long position = 0; position < pack.getEntryCount(); position++) {
+                        SnapshotPack.Entry entry = pack.get(position);
+                        if (!entry.isDirectory())
+                            writer.add(entry.getPath(), entry.getSize(), entry.getLastModified(), 0, entry.getHash());
+                    }
+                }
+            } else {
+                for (SnapshotArchive.Entry entry : SnapshotArchive.open(snapshot).getEntries()) {
+                    if (!entry.isDirectory())
+                        writer.add(entry.getPath(), entry.getSize(), entry.getLastModified(), 0, null);
+                }
+            }
+            writer.finish();
+        } finally {
+            if (manifest != null)
+                manifest.close();
+            if (pack != null)
+                pack.close();
+        }
+        SnapshotManifest listing = SnapshotManifest.open(workDirectory);
+        if (listing == null)
+            throw new IOException("Failed to read back the listing of " + snapshot.getAbsolutePath());
+        return listing;
+    }
+
+    private static void listDirectory(File directory, String relativePath, ManifestWriter writer) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null)
+            throw new IOException("Failed to list directory " + directory.getAbsolutePath());
+        for (File f : files) {
+            // The snapshot's own bookkeeping is not part of the copy
+            if (relativePath.isEmpty() && SnapshotManifest.isSnapshotFile(f.getName()))
+                continue;
+            String childPath = relativePath.isEmpty() ? f.getName() : relativePath + "/" + f.getName();
+            if (f.isDirectory())
+                listDirectory(f, childPath, writer);
+            else if (f.isFile())
+                writer.add(childPath, f.length(), f.lastModified(), 0, null);
+        }
+    }
+
+    private static int writeVersion(DataOutputStream outputStream, Version version) throws IOException {
+        outputStream.writeInt(version.path.length);
+        outputStream.write(version.path);
+        outputStream.writeLong(version.size);
+        outputStream.writeLong(version.lastModified);
+        outputStream.write(version.hash);
+        outputStream.writeLong(version.firstSnapshot);
+        outputStream.writeLong(version.lastSnapshot);
+        return 4 + version.path.length + 16 + SnapshotManifest.HASH_SIZE + 16;
+    }
+
+    private static Version readVersion(DataInputStream inputStream) throws IOException {
+        byte[] path = new byte[inputStream.readInt()];
+        inputStream.readFully(path);
+        long size = inputStream.readLong();
+        long lastModified = inputStream.readLong();
+        byte[] hash = new byte[SnapshotManifest.HASH_SIZE];
+        inputStream.readFully(hash);
+        return new Version(path, size, lastModified, hash, inputStream.readLong(), inputStream.readLong());
+    }
+
+    private static boolean hasHash(byte[] hash) {
+        for (byte b : hash) {
+            if (b != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /*
+        Reads the versions of an existing index in order, or nothing if there is no index yet.
+     */
+    private static class VersionReader implements AutoCloseable {
+        private final DataInputStream inputStream;
+        private long remaining;
+
+        private VersionReader(SnapshotIndex index) throws IOException {
+            if (index == null) {
+                this.inputStream = null;
+                return;
+            }
+            this.inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(index.file), 1 << 16));
+            this.remaining = index.versionCount;
+            inputStream.readFully(new byte[HEADER_SIZE]);
+        }
+
+        private Version next() throws IOException {
+            if (remaining == 0)
+                return null;
+            remaining--;
+            try {
+                return readVersion(inputStream);
+            } catch (EOFException exc) {
+                throw new IOException("Snapshot index is truncated", exc);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inputStream != null)
+                inputStream.close();
+        }
+    }
+
+    /*
+        Receives the versions of a single snapshot from visitSnapshot().
+     */
+    public interface Visitor {
+        void visit(Version version) throws IOException;
+    }
+
+    /*
+        One version of a file, and the range of snapshots it was seen in.
+     */
+    public static class Version {
+        private final byte[] path;
+        private final long size;
+        private final long lastModified;
+        private final byte[] hash;
+        private final long firstSnapshot;
+        private final long lastSnapshot;
+
+        private Version(byte[] path, long size, long lastModified, byte[] hash, long firstSnapshot, long lastSnapshot) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.firstSnapshot = firstSnapshot;
+            this.lastSnapshot = lastSnapshot;
+        }
+
+        public String getPath() {
+            return new String(path, StandardCharsets.UTF_8);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         *
+         * @return The MD5 of this version's content, all zeros if it is not known.
+         */
+        public byte[] getHash() {
+            return hash;
+        }
+
+        /**
+         *
+         * @return The time of the oldest snapshot this version was seen in.
+         */
+        public long getFirstSnapshot() {
+            return firstSnapshot;
+        }
+
+        /**
+         *
+         * @return The time of the newest snapshot this version was seen in. Every snapshot in between has it too.
+         */
+        public long getLastSnapshot() {
+            return lastSnapshot;
+        }
+
+        private boolean sameContent(Version other) {
+            if (size != other.size || lastModified != other.lastModified)
+                return false;
+            return !hasHash(hash) || !hasHash(other.hash) || Arrays.equals(hash, other.hash);
+        }
+    }
+}
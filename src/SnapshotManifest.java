@@ -0,0 +1,336 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    A read-only view of the manifest stored in a snapshot, recording the path, size, modification time, inode and
+    content hash of every file copied into it. The file is memory-mapped rather than loaded, so opening even a manifest
+    with many millions of entries is cheap and costs no heap beyond the entries actually looked at.
+
+    Layout, all numbers big-endian:
+        8 bytes    magic "SJDBMAN1"
+        long       entry count
+        long       offset of the index
+        records    int path length, UTF-8 path relative to the snapshot using '/' separators, long size,
+                   long modification time, long inode (0 if unknown), 16 byte MD5 of the content (all 0 if unknown)
+        index      one long per record giving its position, in path order
+
+    Records are sorted by path with '/' ordered before every other character, which is the order of a depth first
+    walk that visits the entries of each directory sorted by name. See {@link #comparePaths(byte[], byte[])}.
+
+    A mapping otherwise lasts until the garbage collector gets to it, and Windows refuses to replace or delete a file
+    while it is mapped, so a manifest is to be closed once it is no longer needed.
+ */
+public class SnapshotManifest implements AutoCloseable {
+
+    public static final String FILE_NAME = ".sjdbmanifest";
+    static final byte[] MAGIC = "SJDBMAN1".getBytes(StandardCharsets.US_ASCII);
+    static final int HEADER_SIZE = 24;
+    static final int HASH_SIZE = 16;
+
+    // Each mapping is limited to 2GB, so large manifests are mapped in segments
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final File file;
+    // Null once closed
+    private MappedByteBuffer[] segments;
+    private final long entryCount;
+    private final long indexOffset;
+
+    private SnapshotManifest(File file) throws IOException {
+        this.file = file;
+        long size;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            size = channel.size();
+            List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+            for (long position = 0; position < size; position += SEGMENT_SIZE) {
+                mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position)));
+            }
+            this.segments = mapped.toArray(new MappedByteBuffer[]{});
+        }
+        try {
+            if (size < HEADER_SIZE)
+                throw new IOException("Manifest " + file.getAbsolutePath() + " is truncated");
+            byte[] magic = new byte[MAGIC.length];
+            read(0, magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i])
+                    throw new IOException("Not a manifest: " + file.getAbsolutePath());
+            }
+        } catch (IOException exc) {
+            close();
+            throw exc;
+        }
+        this.entryCount = readLong(8);
+        this.indexOffset = readLong(16);
+    }
+
+    /**
+     *
+     * @return The manifest stored in snapshot, or null if there is none or it cannot be read.
+     */
+    public static SnapshotManifest open(File snapshot) {
+        File file = new File(snapshot, FILE_NAME);
+        if (!file.isFile())
+            return null;
+        try {
+            return new SnapshotManifest(file);
+        } catch (IOException exc) {
+            return null;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Unmap the manifest, so its file can be replaced or deleted. Nothing may be read from it afterwards, and nothing
+     * may still be reading from it on another thread.
+     */
+    @Override
+    public synchronized void close() {
+        if (segments == null)
+            return;
+        for (MappedByteBuffer segment : segments) {
+            unmap(segment);
+        }
+        segments = null;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     *
+     * @return The entry at the given position in path order.
+     */
+    public Entry get(long index) {
+        long position = readLong(indexOffset + index * 8);
+        int pathLength = readInt(position);
+        byte[] path = new byte[pathLength];
+        read(position + 4, path);
+        position += 4 + pathLength;
+        byte[] hash = new byte[HASH_SIZE];
+        read(position + 24, hash);
+        return new Entry(path, readLong(position), readLong(position + 8), readLong(position + 16), hash);
+    }
+
+    /**
+     *
+     * @return The path of the entry at the given position in path order, without reading the rest of the entry.
+     */
+    public byte[] getPath(long index) {
+        long position = readLong(indexOffset + index * 8);
+        byte[] path = new byte[readInt(position)];
+        read(position + 4, path);
+        return path;
+    }
+
+    /**
+     *
+     * @return The position of the first entry whose path is not less than path.
+     */
+    public long lowerBound(byte[] path) {
+        long low = 0;
+        long high = entryCount;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (comparePaths(getPath(middle), path) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     *
+     * @return The position just past the last entry whose path starts with directoryPrefix, which must end in '/'.
+     */
+    public long endOfDirectory(byte[] directoryPrefix) {
+        // '/' sorts before everything, so the paths in the directory form one block starting at the prefix
+        long low = lowerBound(directoryPrefix);
+        long high = entryCount;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (startsWith(getPath(middle), directoryPrefix))
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    static boolean startsWith(byte[] path, byte[] prefix) {
+        if (path.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (path[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compare two UTF-8 paths byte by byte, with '/' ordered before every other byte.
+     */
+    public static int comparePaths(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int x = a[i] == '/' ? -1 : a[i] & 0xFF;
+            int y = b[i] == '/' ? -1 : b[i] & 0xFF;
+            if (x != y)
+                return x - y;
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     *
+     * @return f's inode number, or 0 where the file system does not have them.
+     */
+    public static long inodeOf(File f) {
+        try {
+            Object inode = Files.getAttribute(f.toPath(), "unix:ino");
+            return inode instanceof Number ? ((Number) inode).longValue() : 0;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException exc) {
+            return 0;
+        }
+    }
+
+    /**
+     * Whether name, found at the root of a snapshot, is one of the snapshot's own files rather than part of the copy:
+     * its manifest along with what writing one leaves behind, its checkpoint, or its packs. Anything else there, such
+     * as a .sjdbignore copied from the root of the source, belongs to the copy.
+     */
+    public static boolean isSnapshotFile(String name) {
+        return name.equals(FILE_NAME) || name.startsWith(FILE_NAME + ".") || name.equals(SnapshotCheckpoint.FILE_NAME)
+                || name.equals(SnapshotPack.DIRECTORY_NAME);
+    }
+
+    /*
+      Release a mapping right away rather than whenever it is garbage
+      collected. There is no public way to do it, so this goes through
+      Unsafe.invokeCleaner on Java 9 and later and the buffer's cleaner on
+      Java 8. If neither works the mapping is left to the garbage collector.
+    */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException exc) {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception exc) {
+            // Left to the garbage collector
+        }
+    }
+
+    private void read(long position, byte[] destination) {
+        for (int i = 0; i < destination.length; ) {
+            MappedByteBuffer segment = segments[(int) ((position + i) / SEGMENT_SIZE)];
+            int offset = (int) ((position + i) % SEGMENT_SIZE);
+            int length = Math.min(destination.length - i, segment.limit() - offset);
+            for (int j = 0; j < length; j++) {
+                destination[i + j] = segment.get(offset + j);
+            }
+            i += length;
+        }
+    }
+
+    private long readLong(long position) {
+        MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+        int offset = (int) (position % SEGMENT_SIZE);
+        if (offset + 8 <= segment.limit())
+            return segment.getLong(offset);
+        byte[] bytes = new byte[8];
+        read(position, bytes);
+        long value = 0;
+        for (byte b : bytes) {
+            value = (value << 8) | (b & 0xFF);
+        }
+        return value;
+    }
+
+    private int readInt(long position) {
+        MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+        int offset = (int) (position % SEGMENT_SIZE);
+        if (offset + 4 <= segment.limit())
+            return segment.getInt(offset);
+        byte[] bytes = new byte[4];
+        read(position, bytes);
+        return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+    }
+
+    /*
+        A single file recorded in a manifest.
+     */
+    public static class Entry {
+        private final byte[] path;
+        private final long size;
+        private final long lastModified;
+        private final long inode;
+        private final byte[] hash;
+
+        public Entry(byte[] path, long size, long lastModified, long inode, byte[] hash) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+            this.hash = hash;
+        }
+
+        public byte[] getPathBytes() {
+            return path;
+        }
+
+        public String getPath() {
+            return new String(path, StandardCharsets.UTF_8);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getInode() {
+            return inode;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        /**
+         *
+         * @return Whether a file with the given attributes is the same file this entry recorded. Inodes are only
+         * compared when both are known.
+         */
+        public boolean matches(long size, long lastModified, long inode) {
+            return this.size == size && this.lastModified == lastModified && (this.inode == 0 || inode == 0 || this.inode == inode);
+        }
+    }
+}
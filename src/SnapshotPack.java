@@ -0,0 +1,290 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    The small files of a snapshot packed together into a few large files, for destinations where creating and closing
+    a file costs far more than writing its data, such as FAT and exFAT drives and SMB shares. Packed files are appended
+    one after another to the pack files in the snapshot's .sjdbpack directory, a new one being started whenever the
+    current one would grow past PACK_SIZE.
+
+    The index of the packs is a SnapshotManifest kept in the same directory, so it is written from bounded sorted runs
+    and looked up by path without being loaded. In place of an inode it holds where the data of a file is, the number
+    of its pack in the upper 32 bits and its offset in the lower 32. Every packed file has its MD5 in the index.
+    Directories are recorded with a size of -1, since in a packed snapshot a directory is only created for real when a
+    file that is not packed goes into it, and otherwise would not come back on restore.
+ */
+public class SnapshotPack {
+
+    public static final String DIRECTORY_NAME = ".sjdbpack";
+    // Files are read whole into memory to be packed, so only small ones may be
+    public static final long MAX_THRESHOLD = 16L * 1024 * 1024;
+    // A new pack is started before one grows past this, which keeps them well below FAT32's 4 GB limit on a file
+    static final long PACK_SIZE = 1L << 30;
+    private static final String PACK_PREFIX = "pack";
+    private static final long DIRECTORY_SIZE = -1;
+
+    private final File directory;
+    private final SnapshotManifest index;
+    private final Map<Integer, FileChannel> channels = new HashMap<Integer, FileChannel>();
+
+    private SnapshotPack(File directory, SnapshotManifest index) {
+        this.directory = directory;
+        this.index = index;
+    }
+
+    /**
+     *
+     * @return The packs of snapshot, or null if it has none.
+     * @throws IOException If snapshot has packs but their index is missing or cannot be read.
+     */
+    public static SnapshotPack open(File snapshot) throws IOException {
+        File directory = new File(snapshot, DIRECTORY_NAME);
+        if (!directory.isDirectory())
+            return null;
+        SnapshotManifest index = SnapshotManifest.open(directory);
+        if (index == null)
+            throw new IOException("The pack index in " + directory.getAbsolutePath() + " is missing or damaged");
+        return new SnapshotPack(directory, index);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getEntryCount() {
+        return index.getEntryCount();
+    }
+
+    /**
+     *
+     * @return The entry at the given position in path order.
+     */
+    public Entry get(long position) {
+        return new Entry(index.get(position));
+    }
+
+    /**
+     *
+     * @param path A path relative to the snapshot using '/' separators, or null for the whole snapshot.
+     * @return The entry for path itself, if it was packed or is a directory, followed by everything below it, in
+     *         path order.
+     */
+    public List<Entry> list(String path) {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (path == null) {
+            for (long position = 0; position < index.getEntryCount(); position++) {
+                entries.add(get(position));
+            }
+            return entries;
+        }
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        long position = index.lowerBound(pathBytes);
+        if (position < index.getEntryCount() && SnapshotManifest.comparePaths(index.getPath(position), pathBytes) == 0)
+            entries.add(get(position));
+        // '/' sorts before everything, so nothing but path itself comes between it and what is below it
+        byte[] prefix = (path + "/").getBytes(StandardCharsets.UTF_8);
+        long end = index.endOfDirectory(prefix);
+        for (position = index.lowerBound(prefix); position < end; position++) {
+            entries.add(get(position));
+        }
+        return entries;
+    }
+
+    /**
+     * Read the data of a packed file. Safe to call from several threads at once.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        FileChannel channel = channel(entry.getPack());
+        ByteBuffer buffer = ByteBuffer.allocate((int) entry.getSize());
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.getOffset() + buffer.position()) < 0)
+                throw new IOException("Pack " + packFile(directory, entry.getPack()).getAbsolutePath() + " ends before the data of " + entry.getPath());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Write a packed file out to target, with its modification time.
+     */
+    public void extract(Entry entry, File target) throws IOException {
+        byte[] data = read(entry);
+        try (OutputStream outputStream = new FileOutputStream(target)) {
+            outputStream.write(data);
+        }
+        target.setLastModified(entry.getLastModified());
+    }
+
+    public synchronized void close() {
+        index.close();
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.close();
+            } catch (IOException exc) {
+                exc.printStackTrace();
+            }
+        }
+        channels.clear();
+    }
+
+    private synchronized FileChannel channel(int pack) throws IOException {
+        FileChannel channel = channels.get(pack);
+        if (channel == null) {
+            channel = FileChannel.open(packFile(directory, pack).toPath(), StandardOpenOption.READ);
+            channels.put(pack, channel);
+        }
+        return channel;
+    }
+
+    private static File packFile(File directory, int pack) {
+        return new File(directory, PACK_PREFIX + pack);
+    }
+
+    /*
+        A packed file or a directory, as recorded in the index.
+     */
+    public static class Entry {
+        private final SnapshotManifest.Entry indexEntry;
+
+        private Entry(SnapshotManifest.Entry indexEntry) {
+            this.indexEntry = indexEntry;
+        }
+
+        public String getPath() {
+            return indexEntry.getPath();
+        }
+
+        public boolean isDirectory() {
+            return indexEntry.getSize() == DIRECTORY_SIZE;
+        }
+
+        public long getSize() {
+            return indexEntry.getSize();
+        }
+
+        public long getLastModified() {
+            return indexEntry.getLastModified();
+        }
+
+        public byte[] getHash() {
+            return indexEntry.getHash();
+        }
+
+        private int getPack() {
+            return (int) (indexEntry.getInode() >>> 32);
+        }
+
+        private long getOffset() {
+            return indexEntry.getInode() & 0xFFFFFFFFL;
+        }
+    }
+
+    /*
+        Appends small files to the packs of a snapshot as they are copied, from any number of threads. The packs and
+        their directory are only created once there is something to put in them.
+     */
+    public static class Writer {
+        private final File directory;
+        private final IoThrottle throttle;
+        private final ManifestWriter index;
+        private FileOutputStream fileStream;
+        private OutputStream outputStream;
+        private boolean created;
+        private int pack = -1;
+        private long offset;
+
+        public Writer(File snapshot, IoThrottle throttle) {
+            this.directory = new File(snapshot, DIRECTORY_NAME);
+            this.throttle = throttle;
+            this.index = new ManifestWriter(directory);
+        }
+
+        /**
+         * Append a file to the current pack.
+         *
+         * @param path The path of the file relative to the snapshot, using '/' separators.
+         * @param hash The MD5 of data.
+         */
+        public void add(String path, byte[] data, long lastModified, byte[] hash) throws IOException {
+            throttle.acquire(data.length);
+            synchronized (this) {
+                if (outputStream == null || (offset > 0 && offset + data.length > PACK_SIZE))
+                    startPack();
+                long location = ((long) pack << 32) | offset;
+                outputStream.write(data);
+                offset += data.length;
+                index.add(path, data.length, lastModified, location, hash);
+            }
+        }
+
+        /**
+         * Record a directory, so it is recreated on restore even if nothing in it was packed.
+         */
+        public synchronized void addDirectory(String path, long lastModified) throws IOException {
+            createDirectory();
+            index.add(path, DIRECTORY_SIZE, lastModified, 0, null);
+        }
+
+        /**
+         * Flush the current pack to disk and write the index. Does nothing if nothing was ever added.
+         */
+        public synchronized void finish() throws IOException {
+            if (!created)
+                return;
+            closePack();
+            index.finish();
+        }
+
+        /**
+         * Throw away the index, e.g. because the copy failed. The packs are left to go with the rest of the snapshot.
+         */
+        public synchronized void abandon() {
+            try {
+                closePack();
+            } catch (IOException exc) {
+                // Nothing is going to read them anyway
+            }
+            index.abandon();
+        }
+
+        private void startPack() throws IOException {
+            createDirectory();
+            closePack();
+            pack++;
+            offset = 0;
+            fileStream = new FileOutputStream(packFile(directory, pack));
+            outputStream = new BufferedOutputStream(fileStream, 1 << 20);
+        }
+
+        private void closePack() throws IOException {
+            if (outputStream == null)
+                return;
+            try {
+                outputStream.flush();
+                fileStream.getFD().sync();
+            } finally {
+                outputStream.close();
+                outputStream = null;
+                fileStream = null;
+            }
+        }
+
+        private void createDirectory() throws IOException {
+            if (created)
+                return;
+            if (!directory.mkdirs() && !directory.isDirectory())
+                throw new IOException("Failed to create " + directory.getAbsolutePath());
+            created = true;
+        }
+    }
+}
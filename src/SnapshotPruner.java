@@ -0,0 +1,399 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+
+/*
+    Keeps track of the snapshots in each destination and removes the expired ones without holding up the next copy.
+
+    Each destination has a small catalog file listing its snapshots, so finding the newest or oldest does not mean
+    listing and parsing the whole destination every time. If the catalog is missing or names a snapshot that is gone,
+    it is rebuilt from a listing.
+
+    Pruning renames every expired snapshot into the destination's trash directory, which is a cheap atomic rename on
+    the same file system, so the destination is down to the keep count straight away. The trash is then emptied on a
+    background thread, deleting the files of each snapshot in parallel. Anything still in the trash from an earlier
+    run is deleted along with it. A snapshot with packed files is removed the same way, its packs and their index
+    going with the rest of it.
+
+    Snapshots are written under their name with PARTIAL_SUFFIX appended and only renamed once complete, so anything
+    unfinished is never counted, linked against or restored from. The newest unfinished snapshot directory can be
+    resumed, and every other unfinished snapshot is thrown away like an expired one.
+ */
+public class SnapshotPruner {
+
+    public static final String CATALOG_FILE_NAME = ".sjdbcatalog";
+    public static final String TRASH_DIRECTORY_NAME = ".sjdbtrash";
+    public static final String PARTIAL_SUFFIX = ".partial";
+    // Deleting is bound by metadata I/O rather than CPU, so use a few more threads than cores would suggest
+    private static final int DELETE_THREADS = 8;
+    // Files of a single directory are deleted in batches of this many, so huge flat directories are split up too
+    private static final int DELETE_BATCH_SIZE = 256;
+
+    private final Logger logger;
+    private final BackupMetrics metrics;
+    // Empties one trash directory at a time
+    private final ExecutorService backgroundExecutor;
+    private final ForkJoinPool deletePool;
+
+    public SnapshotPruner(Logger logger, BackupMetrics metrics) {
+        this.logger = logger;
+        this.metrics = metrics;
+        this.backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SnapshotPruner");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.deletePool = new ForkJoinPool(DELETE_THREADS);
+    }
+
+    /**
+     *
+     * @return The time the snapshot directory or archive file was taken, or -1 if file is not a snapshot.
+     */
+    public static long snapshotMillis(File file) {
+        String name = file.getName();
+        if (!file.isDirectory()) {
+            if (!name.endsWith(SnapshotArchive.EXTENSION))
+                return -1;
+            name = name.substring(0, name.length() - SnapshotArchive.EXTENSION.length());
+        }
+        return parseMillis(name);
+    }
+
+    /**
+     *
+     * @return The time the unfinished snapshot directory was started, or -1 if file is not one.
+     */
+    public static long unfinishedMillis(File file) {
+        String name = file.getName();
+        if (!name.endsWith(PARTIAL_SUFFIX) || !file.isDirectory())
+            return -1;
+        return parseMillis(name.substring(0, name.length() - PARTIAL_SUFFIX.length()));
+    }
+
+    /*
+      Whether file is an unfinished snapshot directory or archive.
+    */
+    private static boolean isUnfinished(File file) {
+        String name = file.getName();
+        if (!name.endsWith(PARTIAL_SUFFIX))
+            return false;
+        name = name.substring(0, name.length() - PARTIAL_SUFFIX.length());
+        if (name.endsWith(SnapshotArchive.EXTENSION))
+            name = name.substring(0, name.length() - SnapshotArchive.EXTENSION.length());
+        return parseMillis(name) >= 0;
+    }
+
+    private static long parseMillis(String name) {
+        // Only plain digits, so names like "-1" or "+5" are not taken for snapshots
+        if (name.isEmpty())
+            return -1;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9')
+                return -1;
+        }
+        try {
+            return Long.parseLong(name);
+        } catch (NumberFormatException exc) {
+            return -1;
+        }
+    }
+
+    /**
+     *
+     * @return The newest unfinished snapshot directory in destination, or null if there is none.
+     */
+    public synchronized File findUnfinished(File destination) {
+        File newest = null;
+        long newestMillis = -1;
+        File[] existingFiles = destination.getAbsoluteFile().listFiles();
+        if (existingFiles != null) {
+            for (File file : existingFiles) {
+                long millis = unfinishedMillis(file);
+                if (millis > newestMillis) {
+                    newest = file;
+                    newestMillis = millis;
+                }
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Move every unfinished snapshot in destination apart from keep to its trash, and delete them in the background.
+     *
+     * @param keep The unfinished snapshot directory to carry on with, or null to discard all of them.
+     */
+    public synchronized void discardUnfinished(File destination, File keep) {
+        File[] existingFiles = destination.getAbsoluteFile().listFiles();
+        if (existingFiles == null)
+            return;
+        for (File file : existingFiles) {
+            if (!isUnfinished(file) || file.equals(keep))
+                continue;
+            logger.log("Discarding unfinished snapshot " + file.getAbsolutePath());
+            moveToTrash(destination, file);
+        }
+        emptyTrashInBackground(destination);
+    }
+
+    /**
+     *
+     * @return The newest snapshot in destination, or null if there is none.
+     */
+    public synchronized File findNewest(File destination) {
+        TreeMap<Long, String> catalog = readCatalog(destination);
+        if (catalog.isEmpty())
+            return null;
+        return new File(destination.getAbsoluteFile(), catalog.lastEntry().getValue());
+    }
+
+    /**
+     *
+     * @return Every snapshot in destination, oldest first.
+     */
+    public synchronized List<File> list(File destination) {
+        List<File> snapshots = new ArrayList<File>();
+        for (String name : readCatalog(destination).values()) {
+            snapshots.add(new File(destination.getAbsoluteFile(), name));
+        }
+        return snapshots;
+    }
+
+    /**
+     * Record a snapshot just written to destination.
+     */
+    public synchronized void add(File destination, File snapshot) {
+        long millis = snapshotMillis(snapshot);
+        if (millis < 0)
+            return;
+        TreeMap<Long, String> catalog = readCatalog(destination);
+        catalog.put(millis, snapshot.getName());
+        writeCatalog(destination, catalog);
+    }
+
+    /**
+     * Move the oldest snapshots in destination to its trash until at most limit remain, and delete them in the
+     * background.
+     */
+    public synchronized void prune(File destination, int limit) {
+        TreeMap<Long, String> catalog = readCatalog(destination);
+        if (catalog.size() <= limit) {
+            emptyTrashInBackground(destination);
+            return;
+        }
+        logger.log("Too many entries in destination, removing " + (catalog.size() - Math.max(limit, 0)) + " oldest!");
+        while (catalog.size() > limit) {
+            Map.Entry<Long, String> oldest = catalog.pollFirstEntry();
+            File snapshot = new File(destination, oldest.getValue());
+            if (snapshot.exists())
+                moveToTrash(destination, snapshot);
+        }
+        writeCatalog(destination, catalog);
+        emptyTrashInBackground(destination);
+    }
+
+    /**
+     * Wait until every delete queued so far has finished.
+     */
+    public void awaitBackgroundDeletes() throws InterruptedException {
+        try {
+            backgroundExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // Only runs once everything queued before it is done
+                }
+            }).get();
+        } catch (ExecutionException exc) {
+            // Nothing in the empty task can throw
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    private void moveToTrash(File destination, File file) {
+        File trash = new File(destination, TRASH_DIRECTORY_NAME);
+        if (!trash.isDirectory() && !trash.mkdir())
+            logger.log("Failed to create trash directory " + trash.getAbsolutePath() + ", deleting in place");
+        File trashed = new File(trash, file.getName());
+        if (trashed.exists())
+            trashed = new File(trash, file.getName() + "-" + System.nanoTime());
+        try {
+            Files.move(file.toPath(), trashed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            logger.log("Moved " + file.getAbsolutePath() + " to trash");
+        } catch (IOException exc) {
+            // Still gets removed, just not before the copy goes ahead
+            logger.log("Failed to move " + file.getAbsolutePath() + " to trash, deleting in place: " + exc.getMessage());
+            deleteInBackground(destination, file);
+        }
+    }
+
+    private void emptyTrashInBackground(File destination) {
+        File trash = new File(destination, TRASH_DIRECTORY_NAME);
+        File[] trashed = trash.listFiles();
+        if (trashed == null || trashed.length == 0)
+            return;
+        for (File file : trashed) {
+            deleteInBackground(destination, file);
+        }
+    }
+
+    private void deleteInBackground(final File destination, final File file) {
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!file.exists())
+                    return;
+                long startTime = System.nanoTime();
+                deletePool.invoke(new DeleteTask(file));
+                long nanos = System.nanoTime() - startTime;
+                if (file.exists()) {
+                    logger.log("Failed to completely remove " + file.getAbsolutePath() + ", will try again after the next copy");
+                } else {
+                    logger.log("Removed " + file.getAbsolutePath() + " in " + String.format("%.1f", nanos / 1e9) + " seconds");
+                    metrics.recordPrune(destination.getAbsolutePath(), nanos);
+                }
+            }
+        });
+    }
+
+    /*
+      Read the catalog of destination, rebuilding it from a listing if it is
+      missing, unreadable or out of date.
+    */
+    private TreeMap<Long, String> readCatalog(File destination) {
+        TreeMap<Long, String> catalog = new TreeMap<Long, String>();
+        File catalogFile = new File(destination, CATALOG_FILE_NAME);
+        if (catalogFile.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(catalogFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty())
+                        continue;
+                    File snapshot = new File(destination, line);
+                    long millis = snapshotMillis(snapshot);
+                    if (millis < 0) {
+                        // Gone, or never was a snapshot, so the catalog cannot be trusted
+                        catalog = null;
+                        break;
+                    }
+                    catalog.put(millis, line);
+                }
+                if (catalog != null)
+                    return catalog;
+            } catch (IOException exc) {
+                logger.log("Failed to read " + catalogFile.getAbsolutePath() + ", rebuilding it: " + exc.getMessage());
+            }
+        }
+
+        catalog = new TreeMap<Long, String>();
+        File[] existingFiles = destination.listFiles();
+        if (existingFiles != null) {
+            for (File file : existingFiles) {
+                long millis = snapshotMillis(file);
+                if (millis >= 0)
+                    catalog.put(millis, file.getName());
+            }
+        }
+        writeCatalog(destination, catalog);
+        return catalog;
+    }
+
+    private void writeCatalog(File destination, TreeMap<Long, String> catalog) {
+        File catalogFile = new File(destination, CATALOG_FILE_NAME);
+        File temporary = new File(destination, CATALOG_FILE_NAME + ".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8)) {
+                for (String name : catalog.values()) {
+                    writer.write(name);
+                    writer.write('\n');
+                }
+            }
+            Files.move(temporary.toPath(), catalogFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException exc) {
+            // Only costs a listing the next time
+            logger.log("Failed to write " + catalogFile.getAbsolutePath() + ": " + exc.getMessage());
+            temporary.delete();
+        }
+    }
+
+    /*
+        Deletes a file, or a directory with everything below it, deleting the entries of each directory in parallel.
+        Symbolic links are deleted rather than followed.
+     */
+    private class DeleteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+
+        private DeleteTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+            if (Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                File[] children = file.listFiles();
+                if (children != null) {
+                    List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                    List<File> batch = new ArrayList<File>();
+                    for (File child : children) {
+                        if (Files.isDirectory(child.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                            tasks.add(new DeleteTask(child));
+                        } else {
+                            batch.add(child);
+                            if (batch.size() == DELETE_BATCH_SIZE) {
+                                tasks.add(deleteBatch(batch));
+                                batch = new ArrayList<File>();
+                            }
+                        }
+                    }
+                    if (!batch.isEmpty())
+                        tasks.add(deleteBatch(batch));
+                    invokeAll(tasks);
+                }
+            }
+            delete(file);
+        }
+
+        private RecursiveAction deleteBatch(final List<File> files) {
+            return new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    for (File file : files) {
+                        delete(file);
+                    }
+                }
+            };
+        }
+
+        private void delete(File target) {
+            try {
+                Files.deleteIfExists(target.toPath());
+            } catch (IOException exc) {
+                logger.log("Failed to delete " + target.getAbsolutePath() + ": " + exc.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+    Copies a snapshot, or a single file or directory inside one, back out of a destination. Snapshot directories are
+    restored by a CopyEngine, so the walk and the copies run in parallel and the copy backend can clone data rather
+    than copy it. Archives are extracted on a pool of threads, each taking a run of entries that are next to each
+    other in the archive so that every compressed block is only decompressed about once. Files a snapshot directory
+    holds in packs are extracted on a pool of threads as well, after everything that is not packed.
+
+    The snapshot's own files, such as its manifest and checkpoint, are never restored.
+ */
+public class SnapshotRestorer {
+
+    // Bytes of file content each archive extraction task takes on, so small files sharing a block stay together
+    private static final long ARCHIVE_BATCH_BYTES = 16L * SnapshotArchive.BLOCK_SIZE;
+
+    private final Logger logger;
+    private final CopyEngine copyEngine;
+    private final FileCopier fileCopier;
+    private final int threads;
+
+    public SnapshotRestorer(Logger logger, int traversalThreads, int copyThreads, FileCopier fileCopier) {
+        this.logger = logger;
+        this.fileCopier = fileCopier;
+        this.threads = copyThreads;
+        this.copyEngine = new CopyEngine(logger, false, traversalThreads, copyThreads, false, fileCopier, IoThrottle.unlimited());
+    }
+
+    /**
+     * Restore snapshot, or the file or directory at path inside it, into target. The content of a directory ends up
+     * directly in target, a single file ends up in target under its own name. Files that cannot be restored are
+     * logged and skipped.
+     *
+     * @param snapshot A snapshot directory or archive.
+     * @param path The path to restore relative to the snapshot, using '/' separators, or null for all of it.
+     * @return Statistics about the restore.
+     */
+    public CopyStatistics restore(File snapshot, String path, File target) throws Exception {
+        if (!target.isDirectory() && !target.mkdirs())
+            throw new IOException("Failed to create " + target.getAbsolutePath());
+        logger.log("Restoring " + (path == null ? "" : path + " from ") + snapshot.getAbsolutePath() + " to " + target.getAbsolutePath());
+        long startTime = System.nanoTime();
+        CopyStatistics statistics;
+        if (snapshot.isDirectory())
+            statistics = restoreDirectory(snapshot, path, target);
+        else
+            statistics = restoreArchive(SnapshotArchive.open(snapshot), path, target);
+        statistics.setWallNanos(System.nanoTime() - startTime);
+        logger.log("Restore complete! " + statistics);
+        return statistics;
+    }
+
+    private CopyStatistics restoreDirectory(File snapshot, String path, File target) throws Exception {
+        File from = path == null ? snapshot : new File(snapshot, path);
+        boolean snapshotFile = path != null && path.indexOf('/') < 0 && SnapshotManifest.isSnapshotFile(path);
+        SnapshotPack pack = snapshotFile ? null : SnapshotPack.open(snapshot);
+        List<SnapshotPack.Entry> packed = pack == null ? new ArrayList<SnapshotPack.Entry>() : pack.list(path);
+        CopyStatistics statistics;
+        if (from.isDirectory()) {
+            statistics = copyEngine.restore(from, target, path == null);
+        } else if (from.isFile() && !snapshotFile) {
+            statistics = new CopyStatistics();
+            long start = System.nanoTime();
+            File restored = new File(target, from.getName());
+            fileCopier.copy(from, restored, false, IoThrottle.unlimited(), IoThrottle.unlimited());
+            statistics.fileCopied(restored.length(), System.nanoTime() - start);
+        } else if (!packed.isEmpty()) {
+            statistics = new CopyStatistics();
+        } else {
+            throw new IOException(path + " is not in " + snapshot.getAbsolutePath());
+        }
+        if (!packed.isEmpty()) {
+            try {
+                restorePacked(pack, path, packed, target, statistics);
+            } finally {
+                pack.close();
+            }
+        }
+        return statistics;
+    }
+
+    /*
+      Extract the packed entries at or below path into target, the same way
+      restoreDirectory places everything else.
+    */
+    private void restorePacked(final SnapshotPack pack, String path, List<SnapshotPack.Entry> entries, File target, final CopyStatistics statistics) throws Exception {
+        String prefix = path == null ? "" : path + "/";
+        List<SnapshotPack.Entry> directories = new ArrayList<SnapshotPack.Entry>();
+        List<File> directoryTargets = new ArrayList<File>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> extractions = new ArrayList<Future<?>>();
+        try {
+            for (final SnapshotPack.Entry entry : entries) {
+                final File restored;
+                if (entry.getPath().equals(path)) {
+                    // A directory's content goes directly into target, a single file keeps its name
+                    if (entry.isDirectory())
+                        continue;
+                    restored = new File(target, entry.getPath().substring(entry.getPath().lastIndexOf('/') + 1));
+                } else {
+                    restored = new File(target, entry.getPath().substring(prefix.length()));
+                }
+                if (entry.isDirectory()) {
+                    restored.mkdirs();
+                    directories.add(entry);
+                    directoryTargets.add(restored);
+                    continue;
+                }
+                // Directories come before what is in them in path order, so there is always somewhere to put it
+                extractions.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = System.nanoTime();
+                        try {
+                            pack.extract(entry, restored);
+                            statistics.fileCopied(entry.getSize(), System.nanoTime() - start);
+                        } catch (IOException exc) {
+                            logger.log("Failed to restore " + entry.getPath() + ": " + exc.getMessage());
+                            statistics.fileFailed();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> extraction : extractions) {
+                try {
+                    extraction.get();
+                } catch (ExecutionException exc) {
+                    throw new IOException("Failed to extract from " + pack.getDirectory().getAbsolutePath(), exc.getCause());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // Writing the files changed the modification times of their directories
+        for (int i = 0; i < directories.size(); i++) {
+            directoryTargets.get(i).setLastModified(directories.get(i).getLastModified());
+        }
+    }
+
+    private CopyStatistics restoreArchive(final SnapshotArchive archive, String path, File target) throws Exception {
+        final CopyStatistics statistics = new CopyStatistics();
+        String prefix = path == null ? "" : path + "/";
+        List<SnapshotArchive.Entry> entries = new ArrayList<SnapshotArchive.Entry>();
+        List<File> targets = new ArrayList<File>();
+        for (SnapshotArchive.Entry entry : archive.getEntries()) {
+            if (path != null && entry.getPath().equals(path) && !entry.isDirectory()) {
+                // A single file, which keeps its name
+                entries.add(entry);
+                targets.add(new File(target, entry.getPath().substring(entry.getPath().lastIndexOf('/') + 1)));
+            } else if (entry.getPath().startsWith(prefix) && entry.getPath().length() > prefix.length()) {
+                entries.add(entry);
+                targets.add(new File(target, entry.getPath().substring(prefix.length())));
+            }
+        }
+        if (entries.isEmpty())
+            throw new IOException(path + " is not in " + archive.getFile().getAbsolutePath());
+
+        // Directories come first in their own pass, so every file has somewhere to go whatever order the batches run in
+        List<SnapshotArchive.Entry> directories = new ArrayList<SnapshotArchive.Entry>();
+        List<File> directoryTargets = new ArrayList<File>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> batches = new ArrayList<Future<?>>();
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i).isDirectory()) {
+                    directories.add(entries.get(i));
+                    directoryTargets.add(targets.get(i));
+                    targets.get(i).mkdirs();
+                } else {
+                    targets.get(i).getParentFile().mkdirs();
+                }
+            }
+            int batchStart = 0;
+            long batchBytes = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                if (!entries.get(i).isDirectory())
+                    batchBytes += entries.get(i).getSize();
+                if (batchBytes >= ARCHIVE_BATCH_BYTES || i == entries.size() - 1) {
+                    batches.add(executor.submit(extractBatch(archive, entries.subList(batchStart, i + 1), targets.subList(batchStart, i + 1), statistics)));
+                    batchStart = i + 1;
+                    batchBytes = 0;
+                }
+            }
+            for (Future<?> batch : batches) {
+                try {
+                    batch.get();
+                } catch (ExecutionException exc) {
+                    throw new IOException("Failed to extract from " + archive.getFile().getAbsolutePath(), exc.getCause());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // Writing the files changed the modification times of their directories
+        for (int i = 0; i < directories.size(); i++) {
+            directoryTargets.get(i).setLastModified(directories.get(i).getLastModified());
+        }
+        return statistics;
+    }
+
+    private Runnable extractBatch(final SnapshotArchive archive, final List<SnapshotArchive.Entry> entries, final List<File> targets, final CopyStatistics statistics) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                List<SnapshotArchive.Entry> files = new ArrayList<SnapshotArchive.Entry>();
+                List<File> fileTargets = new ArrayList<File>();
+                long bytes = 0;
+                for (int i = 0; i < entries.size(); i++) {
+                    if (!entries.get(i).isDirectory()) {
+                        files.add(entries.get(i));
+                        fileTargets.add(targets.get(i));
+                        bytes += entries.get(i).getSize();
+                    }
+                }
+                long start = System.nanoTime();
+                try {
+                    archive.extract(files, fileTargets);
+                    for (int i = 0; i < files.size(); i++) {
+                        statistics.fileCopied(files.get(i).getSize(), (System.nanoTime() - start) / Math.max(1, files.size()));
+                    }
+                    return;
+                } catch (IOException exc) {
+                    logger.log("Failed to extract a batch of " + files.size() + " files (" + bytes + " bytes), retrying them one by one: " + exc.getMessage());
+                }
+                // Find out which files were the problem
+                for (int i = 0; i < files.size(); i++) {
+                    long fileStart = System.nanoTime();
+                    try {
+                        archive.extract(files.get(i), fileTargets.get(i));
+                        statistics.fileCopied(files.get(i).getSize(), System.nanoTime() - fileStart);
+                    } catch (IOException exc) {
+                        logger.log("Failed to restore " + files.get(i).getPath() + ": " + exc.getMessage());
+                        statistics.fileFailed();
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.File;
+
+/*
+    A single snapshot being written during a copy iteration: the destination it belongs to, the new timestamped
+    directory, and the previous snapshot to link unchanged files against. Each target keeps its own statistics and its
+    own failure, so one destination going away does not affect the others, and has the throttle for writes to its
+    destination.
+
+    A checkpointed snapshot is written into a working directory next to it and only renamed to its final name once
+    the copy is complete, so an unfinished snapshot is never taken for a real one.
+ */
+public class SnapshotTarget {
+    private final File destination;
+    private final File snapshot;
+    private final File workingDirectory;
+    private final File previous;
+    private final IoThrottle throttle;
+    private final SnapshotCheckpoint checkpoint;
+    private final CopyStatistics statistics = new CopyStatistics();
+    private volatile Exception failure;
+
+    public SnapshotTarget(File destination, File snapshot, File previous) {
+        this(destination, snapshot, previous, IoThrottle.unlimited());
+    }
+
+    public SnapshotTarget(File destination, File snapshot, File previous, IoThrottle throttle) {
+        this(destination, snapshot, snapshot, previous, throttle, null);
+    }
+
+    /**
+     * @param workingDirectory Where the snapshot is written until it is complete.
+     * @param checkpoint Records progress in workingDirectory, or null if the snapshot is written in place.
+     */
+    public SnapshotTarget(File destination, File snapshot, File workingDirectory, File previous, IoThrottle throttle, SnapshotCheckpoint checkpoint) {
+        this.destination = destination;
+        this.snapshot = snapshot;
+        this.workingDirectory = workingDirectory;
+        this.previous = previous;
+        this.throttle = throttle;
+        this.checkpoint = checkpoint;
+    }
+
+    public File getDestination() {
+        return destination;
+    }
+
+    public File getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     *
+     * @return Where the snapshot's files are written, which is the snapshot itself unless it is checkpointed.
+     */
+    public File getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    /**
+     *
+     * @return The checkpoint of an unfinished snapshot, or null if it is not checkpointed.
+     */
+    public SnapshotCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     *
+     * @return Whether this target carries on with a snapshot an earlier attempt did not finish.
+     */
+    public boolean isResumed() {
+        return checkpoint != null && checkpoint.isResumed();
+    }
+
+    public File getPrevious() {
+        return previous;
+    }
+
+    public IoThrottle getThrottle() {
+        return throttle;
+    }
+
+    public CopyStatistics getStatistics() {
+        return statistics;
+    }
+
+    public Exception getFailure() {
+        return failure;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Mark this target as failed. Only the first failure is kept.
+     */
+    public synchronized void fail(Exception cause) {
+        if (failure == null)
+            failure = cause;
+    }
+}
@@ -0,0 +1,412 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Checks that the files of a snapshot still hold what was copied into them. Files are hashed through memory-mapped
+    chunks on a fork/join pool, so several files are read at once and no file is ever loaded onto the heap.
+
+    Where the snapshot's manifest has the MD5 of a file, only the snapshot's copy is read and compared against it.
+    Anything else is compared against the source, as long as the source file still has the size and modification
+    time the snapshot's copy was given. If any hashes were worked out that way, the manifest is rewritten with them,
+    so the next verification only has to read the destination. Files whose source changed since the snapshot was taken
+    cannot be checked against anything and are only counted. Files the snapshot holds in packs always have their MD5 in
+    the pack index, so they are read back out of the packs and checked against it.
+
+    Work is split by ranges of manifest entries or by directory, so memory use does not grow with the size of the
+    snapshot beyond what ManifestWriter buffers.
+ */
+public class SnapshotVerifier {
+
+    // How many files a single task hashes before the work is split up further
+    private static final int BATCH_SIZE = 64;
+
+    private final Logger logger;
+    private final int threads;
+
+    public SnapshotVerifier(Logger logger, int threads) {
+        this.logger = logger;
+        this.threads = threads;
+    }
+
+    /**
+     * Verify the snapshot directory snapshot. Every mismatch is logged.
+     *
+     * @param source The directory the snapshot was taken of, or null to check only against stored hashes.
+     * @return What was found.
+     */
+    public Result verify(File snapshot, File source) {
+        Result result = new Result();
+        long startTime = System.nanoTime();
+        VerifyJob job = new VerifyJob(snapshot, source, result);
+        // Unmapped before the manifest is replaced below, which Windows does not allow while it is mapped
+        try (SnapshotManifest manifest = SnapshotManifest.open(snapshot)) {
+            SnapshotPack pack = null;
+            try {
+                pack = SnapshotPack.open(snapshot);
+            } catch (IOException exc) {
+                result.mismatches.incrementAndGet();
+                logger.log("Verification mismatch: " + exc.getMessage());
+            }
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                if (pack != null) {
+                    logger.log("Verifying " + pack.getEntryCount() + " packed entries of " + snapshot.getAbsolutePath() + " against the pack index");
+                    pool.invoke(new PackRangeTask(job, pack, 0, pack.getEntryCount()));
+                }
+                if (manifest != null) {
+                    logger.log("Verifying " + snapshot.getAbsolutePath() + " against manifest with " + manifest.getEntryCount() + " entries");
+                    pool.invoke(new ManifestRangeTask(job, manifest, 0, manifest.getEntryCount()));
+                } else if (source != null) {
+                    logger.log("Verifying " + snapshot.getAbsolutePath() + " against " + source.getAbsolutePath());
+                    pool.invoke(new DirectoryTask(job, snapshot, ""));
+                } else {
+                    logger.log("Cannot verify " + snapshot.getAbsolutePath() + (pack == null ? "" : " beyond its packs") + ", it has no manifest and no source was given");
+                }
+            } finally {
+                pool.shutdown();
+                // Nothing may still be reading the manifest or the packs when they are closed
+                try {
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+                if (pack != null)
+                    pack.close();
+            }
+        }
+        result.nanos = System.nanoTime() - startTime;
+
+        if (job.manifestChanged.get()) {
+            try {
+                job.manifestWriter.finish();
+                logger.log("Stored hashes in " + new File(snapshot, SnapshotManifest.FILE_NAME).getAbsolutePath());
+            } catch (IOException exc) {
+                logger.log("Failed to store hashes for " + snapshot.getAbsolutePath() + ": " + exc.getMessage());
+            }
+        } else {
+            job.manifestWriter.abandon();
+        }
+        logger.log(result.toString());
+        return result;
+    }
+
+    /*
+        State shared by every task verifying a single snapshot.
+     */
+    private class VerifyJob {
+        private final File snapshot;
+        private final File source;
+        private final Result result;
+        // Collects every file with the best hash known for it, in case anything new turns up
+        private final ManifestWriter manifestWriter;
+        private final AtomicBoolean manifestChanged = new AtomicBoolean();
+
+        private VerifyJob(File snapshot, File source, Result result) {
+            this.snapshot = snapshot;
+            this.source = source;
+            this.result = result;
+            this.manifestWriter = new ManifestWriter(snapshot);
+        }
+
+        /*
+          Verify the file at path. known is what the manifest recorded for it,
+          or null if the snapshot has no manifest.
+        */
+        private void verifyFile(String path, SnapshotManifest.Entry known) {
+            File copy = new File(snapshot, path);
+            long size = known == null ? copy.length() : known.getSize();
+            long lastModified = known == null ? copy.lastModified() : known.getLastModified();
+            long inode = known == null ? 0 : known.getInode();
+            byte[] expected = known != null && hasHash(known.getHash()) ? known.getHash() : null;
+
+            if (!copy.isFile()) {
+                mismatch(path, "is missing from the snapshot");
+                record(path, size, lastModified, inode, expected);
+                return;
+            }
+            if (copy.length() != size) {
+                mismatch(path, "has " + copy.length() + " bytes instead of " + size);
+                record(path, size, lastModified, inode, expected);
+                return;
+            }
+
+            boolean learned = false;
+            if (expected == null) {
+                File sourceFile = source == null ? null : new File(source, path);
+                if (sourceFile != null && sourceFile.isFile() && copy.lastModified() > sourceFile.lastModified()) {
+                    // Copies get the source's modification time, which only ever moves forward on the source side
+                    mismatch(path, "was modified after it was copied");
+                    record(path, size, lastModified, inode, null);
+                    return;
+                }
+                if (sourceFile == null || !sourceFile.isFile() || sourceFile.lastModified() != lastModified) {
+                    // Nothing left to compare against
+                    result.filesUnverifiable.incrementAndGet();
+                    record(path, size, lastModified, inode, null);
+                    return;
+                }
+                if (sourceFile.length() != copy.length()) {
+                    mismatch(path, "has " + copy.length() + " bytes but the source has " + sourceFile.length());
+                    // Keep the source's size, so later verifications still catch it
+                    record(path, sourceFile.length(), lastModified, inode, null);
+                    manifestChanged.set(true);
+                    return;
+                }
+                try {
+                    expected = FileCopier.hashFile(sourceFile);
+                    learned = true;
+                    if (inode == 0)
+                        inode = SnapshotManifest.inodeOf(sourceFile);
+                } catch (IOException exc) {
+                    logger.log("Failed to read " + sourceFile.getAbsolutePath() + " for verification: " + exc.getMessage());
+                    result.filesUnverifiable.incrementAndGet();
+                    record(path, size, lastModified, inode, null);
+                    return;
+                }
+            }
+
+            byte[] actual;
+            try {
+                actual = FileCopier.hashFile(copy);
+            } catch (IOException exc) {
+                mismatch(path, "cannot be read: " + exc.getMessage());
+                record(path, size, lastModified, inode, expected);
+                return;
+            }
+            result.filesVerified.incrementAndGet();
+            result.bytesVerified.addAndGet(size);
+            if (!Arrays.equals(actual, expected))
+                mismatch(path, "has MD5 " + toHex(actual) + " instead of " + toHex(expected));
+            // The source's hash is stored even on a mismatch, so later verifications keep reporting it
+            record(path, size, lastModified, inode, expected);
+            if (learned)
+                manifestChanged.set(true);
+        }
+
+        /*
+          Verify a file held in pack against the hash in the pack index.
+        */
+        private void verifyPacked(SnapshotPack pack, SnapshotPack.Entry entry) {
+            byte[] actual;
+            try {
+                actual = FileCopier.newDigest().digest(pack.read(entry));
+            } catch (IOException exc) {
+                mismatch(entry.getPath(), "cannot be read from its pack: " + exc.getMessage());
+                return;
+            }
+            result.filesVerified.incrementAndGet();
+            result.bytesVerified.addAndGet(entry.getSize());
+            if (!Arrays.equals(actual, entry.getHash()))
+                mismatch(entry.getPath(), "has MD5 " + toHex(actual) + " in its pack instead of " + toHex(entry.getHash()));
+        }
+
+        private void mismatch(String path, String problem) {
+            result.mismatches.incrementAndGet();
+            logger.log("Verification mismatch: " + new File(snapshot, path).getAbsolutePath() + " " + problem);
+        }
+
+        private void record(String path, long size, long lastModified, long inode, byte[] hash) {
+            try {
+                manifestWriter.add(path, size, lastModified, inode, hash);
+            } catch (IOException exc) {
+                // Only means the hashes are not stored, the verification itself still counts
+                logger.log("Failed to record " + path + " in manifest: " + exc.getMessage());
+            }
+        }
+    }
+
+    /*
+        Verifies the manifest entries in [start, end), halving the range until it is small enough to do directly.
+     */
+    private class ManifestRangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final VerifyJob job;
+        private final SnapshotManifest manifest;
+        private final long start;
+        private final long end;
+
+        private ManifestRangeTask(VerifyJob job, SnapshotManifest manifest, long start, long end) {
+            this.job = job;
+            this.manifest = manifest;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > BATCH_SIZE) {
+                long middle = start + (end - start) / 2;
+                invokeAll(new ManifestRangeTask(job, manifest, start, middle), new ManifestRangeTask(job, manifest, middle, end));
+                return;
+            }
+            for (long position = start; position < end; position++) {
+                SnapshotManifest.Entry entry = manifest.get(position);
+                job.verifyFile(new String(entry.getPathBytes(), StandardCharsets.UTF_8), entry);
+            }
+        }
+    }
+
+    /*
+        Verifies the packed files among the pack index entries in [start, end), split up like a ManifestRangeTask.
+     */
+    private class PackRangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final VerifyJob job;
+        private final SnapshotPack pack;
+        private final long start;
+        private final long end;
+
+        private PackRangeTask(VerifyJob job, SnapshotPack pack, long start, long end) {
+            this.job = job;
+            this.pack = pack;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > BATCH_SIZE) {
+                long middle = start + (end - start) / 2;
+                invokeAll(new PackRangeTask(job, pack, start, middle), new PackRangeTask(job, pack, middle, end));
+                return;
+            }
+            for (long position = start; position < end; position++) {
+                SnapshotPack.Entry entry = pack.get(position);
+                if (!entry.isDirectory())
+                    job.verifyPacked(pack, entry);
+            }
+        }
+    }
+
+    /*
+        Verifies the files of a single snapshot directory without a manifest, in batches, and forks a task for every
+        subdirectory.
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final VerifyJob job;
+        private final File directory;
+        // The path of directory relative to the snapshot using '/' separators, empty for the snapshot itself
+        private final String relativePath;
+
+        private DirectoryTask(VerifyJob job, File directory, String relativePath) {
+            this.job = job;
+            this.directory = directory;
+            this.relativePath = relativePath;
+        }
+
+        @Override
+        protected void compute() {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                logger.log("Failed to list directory " + directory.getAbsolutePath());
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            List<String> batch = new ArrayList<String>();
+            for (File f : files) {
+                // The snapshot's own bookkeeping is not part of the copy
+                if (relativePath.isEmpty() && SnapshotManifest.isSnapshotFile(f.getName()))
+                    continue;
+                String childPath = relativePath.isEmpty() ? f.getName() : relativePath + "/" + f.getName();
+                if (f.isDirectory()) {
+                    tasks.add(new DirectoryTask(job, f, childPath));
+                } else if (f.isFile()) {
+                    batch.add(childPath);
+                    if (batch.size() == BATCH_SIZE) {
+                        tasks.add(verifyBatch(batch));
+                        batch = new ArrayList<String>();
+                    }
+                }
+            }
+            if (!batch.isEmpty())
+                tasks.add(verifyBatch(batch));
+            invokeAll(tasks);
+        }
+
+        private RecursiveAction verifyBatch(final List<String> paths) {
+            return new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    for (String path : paths) {
+                        job.verifyFile(path, null);
+                    }
+                }
+            };
+        }
+    }
+
+    private static boolean hasHash(byte[] hash) {
+        for (byte b : hash) {
+            if (b != 0)
+                return true;
+        }
+        return false;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    /*
+        The outcome of verifying one snapshot. Updated concurrently by the verifying threads.
+     */
+    public static class Result {
+        private final AtomicLong filesVerified = new AtomicLong();
+        private final AtomicLong bytesVerified = new AtomicLong();
+        private final AtomicLong mismatches = new AtomicLong();
+        private final AtomicLong filesUnverifiable = new AtomicLong();
+        private volatile long nanos;
+
+        public long getFilesVerified() {
+            return filesVerified.get();
+        }
+
+        public long getBytesVerified() {
+            return bytesVerified.get();
+        }
+
+        /**
+         *
+         * @return How many files are missing, have the wrong size or the wrong content.
+         */
+        public long getMismatches() {
+            return mismatches.get();
+        }
+
+        /**
+         *
+         * @return How many files had neither a stored hash nor an unchanged source to compare against.
+         */
+        public long getFilesUnverifiable() {
+            return filesUnverifiable.get();
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public String toString() {
+            double seconds = nanos / 1e9;
+            return String.format("Verified %d files (%.1f MB), %d mismatches, %d could not be checked, in %.1f seconds (%.1f MB/s).",
+                    getFilesVerified(), getBytesVerified() / (1024.0 * 1024.0), getMismatches(), getFilesUnverifiable(), seconds,
+                    seconds <= 0 ? 0 : getBytesVerified() / (1024.0 * 1024.0) / seconds);
+        }
+    }
+}